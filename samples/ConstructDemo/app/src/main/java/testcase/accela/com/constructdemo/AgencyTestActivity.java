@@ -60,6 +60,7 @@ import com.accela.mobile.AMRequestDelegate;
 import com.accela.mobile.AMRequestSender;
 import com.accela.mobile.AMSessionDelegate;
 import com.accela.mobile.AMSetting;
+import com.accela.mobile.AMUriTemplate;
 import com.accela.mobile.AccelaMobile;
 import com.accela.mobile.http.AMDocDownloadRequest;
 import com.accela.mobile.http.RequestParams;
@@ -78,6 +79,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
@@ -88,7 +90,7 @@ public class AgencyTestActivity extends AppCompatActivity implements View.OnClic
     private static final String APP_SECRET = "28c6edc56e714078a23a50a4193f348f";
 
     private static String SERVICE_URI_RECORD_LIST = "/v4/records/";
-    private static String SERVICE_URI_RECORD_SEARCH = "/v4/records/{recordIds}/";
+    private static AMUriTemplate SERVICE_URI_RECORD_SEARCH = AMUriTemplate.compile("/v4/records/{recordIds}/");
     private static String SERVICE_URI_RECORD_CREATE = "/v4/records/";
     private static String SERVICE_URI_RECORD_AttachmentList = "/v4/records/{recordId}/documents/";
     private static String SERVICE_URI_RECORD_AttachmentUpload = "/v4/records/{recordId}/documents/";
@@ -201,10 +203,9 @@ public class AgencyTestActivity extends AppCompatActivity implements View.OnClic
                 break;
             case R.id.btnAgencyGetSpecificRecord:
                 if (isSessionValid()) {
-                    servicePath = SERVICE_URI_RECORD_SEARCH.replace("{recordIds}",
-                            recordId);
-                    currentRequest = request.sendRequest(servicePath, null, null,
-                            requestDelegate);
+                    currentRequest = request.sendRequest(SERVICE_URI_RECORD_SEARCH,
+                            Collections.singletonMap("recordIds", recordId), null, null,
+                            AMRequest.HTTPMethod.GET, null, requestDelegate);
                 }
                 break;
             case R.id.btnAgencyCreateRecord:
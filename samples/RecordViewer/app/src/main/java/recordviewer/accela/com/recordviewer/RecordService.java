@@ -20,9 +20,8 @@ package recordviewer.accela.com.recordviewer;
 
 import com.accela.mobile.AMError;
 import com.accela.mobile.AMLogger;
-import com.accela.mobile.AMRequest;
+import com.accela.mobile.AMPaginator;
 import com.accela.mobile.AMRequest.HTTPMethod;
-import com.accela.mobile.AMRequestDelegate;
 import com.accela.mobile.AccelaMobile;
 import com.accela.mobile.http.RequestParams;
 
@@ -57,7 +56,7 @@ public class RecordService {
 	private List<RecordModel> listRecord = new ArrayList<RecordModel>();
 
 	private AccelaMobile accelaMobile;
-	private AMRequest currentRequest;
+	private AMPaginator paginator;
 
 
 	private RecordService() {
@@ -73,25 +72,46 @@ public class RecordService {
 
 	public void loadRecordAsyn(boolean clearExistRecord) {
 
-		String servicePath = SERVICE_URI_RECORD_LIST;
-		RequestParams requestParams = new RequestParams();
-		if(clearExistRecord) {
+		if(clearExistRecord || paginator == null) {
+			if(paginator != null) {
+				paginator.cancel();
+			}
 			listRecord.clear();
+
+			String servicePath = SERVICE_URI_RECORD_LIST;
+			RequestParams requestParams = new RequestParams();
+			Map<String, String> urlParamMap = new HashMap<>();
+			urlParamMap.put("expand","addresses");
+			requestParams.setUrlParams(urlParamMap);
+
+			RequestParams postParams = new RequestParams();
+			//postParams.put("module", "Building");
+			postParams.put("openedDateFrom",  "2013-01-01");
+			postParams.put("openedDateTo",  "2014-12-01");
+
+			// The paginator adds the offset and limit, and fetches the next page while the list is scrolled.
+			paginator = accelaMobile.getRequestSender().paginate(servicePath, requestParams, null, HTTPMethod.POST, postParams, pageDelegate);
+			paginator.setPageSize(15, 15, 100);
 		}
-		Map<String, String> urlParamMap = new HashMap<>();
-		urlParamMap.put("limit", "15");
-		urlParamMap.put("offset", String.format("%d", listRecord.size()));
-		urlParamMap.put("expand","addresses");
-		requestParams.setUrlParams(urlParamMap);
 
-		RequestParams postParams = new RequestParams();
-		//postParams.put("module", "Building");
-		postParams.put("openedDateFrom",  "2013-01-01");
-		postParams.put("openedDateTo",  "2014-12-01");
+		if(!paginator.hasMore()) {
+			return;
+		}
+		if(delegate!=null) {
+			delegate.onLoadStart();
+		}
+		//asynchronous request, pageDelegate handles results
+		paginator.loadNextPage();
 
-		//asynchronous request, put requestDelegate for handling results
-		currentRequest = accelaMobile.getRequestSender().sendRequest(servicePath, requestParams, null, HTTPMethod.POST, postParams, requestDelegate);
+	}
 
+	/**
+	 * Report the position of a record shown in the list, the next page is read ahead as the end of the list nears.
+	 */
+	public void onRecordVisible(int position) {
+		if(paginator != null) {
+			paginator.onItemVisible(position);
+		}
 	}
 
 	public List<RecordModel> getRecordList() {
@@ -104,27 +124,11 @@ public class RecordService {
 
 
 	/**
-	 * Private variable, defines the request delegate used by inspection searching.
+	 * Private variable, defines the page delegate used by record searching.
 	 */
-	private AMRequestDelegate requestDelegate = new AMRequestDelegate() {
-		@Override
-		public void onStart() {
-			amRequestStarted(currentRequest);
-			if(delegate!=null) {
-				delegate.onLoadStart();
-			}
-		}
-
+	private AMPaginator.PageDelegate pageDelegate = new AMPaginator.PageDelegate() {
 		@Override
-		public void onSuccess(JSONObject responseJson) {
-			amRequestDidReceiveResponse(currentRequest);
-			// Parse json data
-			JSONArray recordsArray = null;
-			try {
-				recordsArray = responseJson.getJSONArray("result");
-			} catch (JSONException e) {
-				AMLogger.logError("Error in parsing inspections json array: %s", e.getMessage());
-			}
+		public void onPage(JSONArray recordsArray, int offset, boolean hasMore) {
 			if ((recordsArray != null) && (recordsArray.length() > 0)) {
 				for (int i = 0; i < recordsArray.length(); i++) {
 					RecordModel recordModel = new RecordModel();
@@ -145,22 +149,23 @@ public class RecordService {
 					}
 					listRecord.add(recordModel);
 				}
-				// Refresh the inspection list view with data.
-				amRequestDidLoad(currentRequest, responseJson);
+				// Refresh the record list view with data.
 				if(delegate!=null) {
 					delegate.onLoadSuccess();
 				}
-			} else {
+			} else if (offset == 0) {
 				if(delegate!=null) {
 					delegate.onLoadFailed();
 				}
+			} else if(delegate!=null) {
+				// An empty last page, the list is already complete.
+				delegate.onLoadSuccess();
 			}
 
 		}
 
 		@Override
 		public void onFailure(AMError error) {
-			amRequestDidReceiveResponse(currentRequest);
 			// Show dialog with the returned error
 			if(delegate!=null) {
 				delegate.onLoadFailed();
@@ -159,6 +159,7 @@ public class RecordListFragment extends Fragment  {
     			convertView = LayoutInflater.from(getActivity()).inflate(R.layout.list_item_record, null);
     		}
     		RecordModel record = recordService.getRecordList().get(position);
+    		recordService.onRecordVisible(position);
     		TextView textView = (TextView) convertView.findViewById(R.id.textViewIndex);
     		textView.setText(String.format("%d", position + 1));
     		textView = (TextView) convertView.findViewById(R.id.textViewType);
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.accela.mobile.AMRequest.HTTPMethod;
+import com.accela.mobile.AMRequest.RequestPriority;
+import com.accela.mobile.http.RequestParams;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ *  Collects the GET requests issued within a short window and sends them together as one batch request,
+ *  see {@link AMRequestSender#setAutoBatching(long, int)}. The result of each request of the batch is handed to its own delegate.
+ *
+ * @since 4.1
+ */
+final class AMAutoBatcher {
+	private static final String BATCH_PATH = "/v4/batch";
+
+	private final long windowMs;
+	private final int maxBatchSize;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final List<AMRequest> pending = new ArrayList<AMRequest>();
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	AMAutoBatcher(long windowMs, int maxBatchSize) {
+		this.windowMs = windowMs;
+		this.maxBatchSize = Math.max(2, maxBatchSize);
+	}
+
+	/**
+	 * Check whether a request can go in a batch: a GET to the API host, the batch carries the session headers only.
+	 * Requests which shouldn't wait for the window (HIGH or IMMEDIATE priority, a time budget) or which read the cache go on their own.
+	 */
+	static boolean accepts(AMRequest request, Map<String, String> customHttpHeader) {
+		String apisHost = AccelaMobile.getInstance().amApisHost;
+		RequestPriority priority = request.getPriority();
+		return request.getHttpMethod() == HTTPMethod.GET
+				&& (customHttpHeader == null || customHttpHeader.isEmpty())
+				&& priority != RequestPriority.HIGH && priority != RequestPriority.IMMEDIATE
+				&& request.getTimeBudget() == 0 && !request.shouldCache()
+				&& apisHost != null && request.getServiceURL() != null && request.getServiceURL().startsWith(apisHost);
+	}
+
+	/**
+	 * Add a started request to the batch being collected, the batch is sent when the window ends or once it is full.
+	 */
+	void add(AMRequest request) {
+		boolean full;
+		synchronized (this) {
+			pending.add(request);
+			full = pending.size() >= maxBatchSize;
+			if (pending.size() == 1 && !full) {
+				handler.postDelayed(flushTask, windowMs);
+			}
+		}
+		if (full) {
+			handler.removeCallbacks(flushTask);
+			handler.post(flushTask);
+		}
+	}
+
+	/**
+	 * Remove a request cancelled before its batch was sent.
+	 */
+	synchronized void remove(AMRequest request) {
+		pending.remove(request);
+	}
+
+	/**
+	 * Send the requests collected so far. A single request is sent on its own.
+	 */
+	void flush() {
+		final List<AMRequest> batch;
+		synchronized (this) {
+			handler.removeCallbacks(flushTask);
+			batch = new ArrayList<AMRequest>(pending);
+			pending.clear();
+		}
+		for (AMRequest request : batch) {
+			request.setAutoBatcher(null);
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		if (batch.size() == 1) {
+			dispatch(batch);
+			return;
+		}
+
+		String apisHost = AccelaMobile.getInstance().amApisHost;
+		JSONArray models = new JSONArray();
+		for (AMRequest request : batch) {
+			if (apisHost == null || !request.getServiceURL().startsWith(apisHost)) {
+				// The host has changed since the requests were issued.
+				dispatch(batch);
+				return;
+			}
+			AMBatchRequestModel model = new AMBatchRequestModel();
+			String url = request.getServiceURL().substring(apisHost.length());
+			model.setRelativeUrl(request.assembleUrlWithParams(url, request.getUrlParams()));
+			model.setMethod(HTTPMethod.GET.toString());
+			models.put(model.toJsonObject());
+		}
+
+		AMRequest batchRequest = new AMRequest(apisHost + BATCH_PATH, null, new RequestParams(models.toString()), HTTPMethod.POST);
+		// The batch only reads, it can be retried like its GET requests.
+		batchRequest.setIdempotent(true);
+		try {
+			batchRequest.sendRequest(new AMRequestDelegate() {
+				@Override
+				public void onStart() {}
+
+				@Override
+				public void onSuccess(JSONObject content) {
+					List<JSONObject> childResponses = new AMBatchResponse(content).getResult();
+					if (childResponses.size() != batch.size()) {
+						AMLogger.logWarn("Batch response has " + childResponses.size() + " results for " + batch.size() + " requests, sending them one by one");
+						dispatch(batch);
+						return;
+					}
+					for (int index = 0; index < batch.size(); index++) {
+						deliver(batch.get(index), childResponses.get(index));
+					}
+				}
+
+				@Override
+				public void onFailure(AMError error) {
+					for (AMRequest request : batch) {
+						fail(request, error);
+					}
+				}
+			});
+		} catch (JSONException e) {
+			AMLogger.logError(e.toString());
+			dispatch(batch);
+		}
+	}
+
+	/**
+	 * Hand the result of one request of the batch to its delegate, a result with an error status fails the request.
+	 * A request refused with 401 is sent again on its own, so the access token is refreshed as for any other request.
+	 */
+	private static void deliver(final AMRequest request, final JSONObject childResponse) {
+		int status = childResponse.optInt("status", 200);
+		if (status == 401) {
+			dispatch(Collections.singletonList(request));
+			return;
+		}
+		if (status >= 400) {
+			fail(request, new AMError(status, childResponse.optString("code", null), childResponse.optString("traceId", null),
+					childResponse.optString("message", null), childResponse.optString("more", null)));
+			return;
+		}
+		post(request, new Runnable() {
+			@Override
+			public void run() {
+				AMRequestDelegate requestDelegate = request.getRequestDelegate();
+				if (!request.isCancelled() && requestDelegate != null) {
+					requestDelegate.onSuccess(childResponse, false);
+				}
+			}
+		});
+	}
+
+	private static void fail(final AMRequest request, final AMError error) {
+		post(request, new Runnable() {
+			@Override
+			public void run() {
+				AMRequestDelegate requestDelegate = request.getRequestDelegate();
+				if (!request.isCancelled() && requestDelegate != null) {
+					requestDelegate.onFailure(error);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Call the delegate of a request on its delivery executor, as if it had been sent on its own. The batch is delivered on the main thread.
+	 */
+	private static void post(AMRequest request, Runnable delivery) {
+		Executor deliveryExecutor = request.getDeliveryExecutor();
+		if (deliveryExecutor != null) {
+			deliveryExecutor.execute(delivery);
+		} else {
+			delivery.run();
+		}
+	}
+
+	/**
+	 * Send the requests one by one, when they can't go or didn't go through the batch.
+	 */
+	private static void dispatch(List<AMRequest> requests) {
+		for (AMRequest request : requests) {
+			if (request.isCancelled()) {
+				continue;
+			}
+			try {
+				request.dispatchRequest();
+			} catch (JSONException e) {
+				AMLogger.logError(e.toString());
+			}
+		}
+	}
+}
@@ -21,6 +21,8 @@ import com.accela.mobile.AMRequest.HTTPMethod;
 import com.accela.mobile.http.RequestParams;
 
 import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -80,6 +82,19 @@ public class AMBatchSession {
 	 * @since 4.0
 	 */
 	public void executeAsync(Map<String, String> customHttpHeader, AMRequestDelegate requestDelegate) {
+		executeAsync(customHttpHeader, null, requestDelegate);
+	}
+
+	/**
+     * Execute the batch request in asynchronous way with the given priority.
+     * 
+     * @param priority The priority of the batch request, or null for the default priority.
+     * @param requestDelegate The delegate which handles the request's callbacks.
+     * 
+	 *
+	 * @since 4.1
+	 */
+	public void executeAsync(Map<String, String> customHttpHeader, AMRequest.RequestPriority priority, AMRequestDelegate requestDelegate) {
 		List<AMBatchRequestModel> models = new ArrayList<AMBatchRequestModel>();
 		for (AMRequest request : requests) {
 			String url = request.getServiceURL();
@@ -90,7 +105,7 @@ public class AMBatchSession {
 			model.setMethod(method);
 			if ((httpMethod == HTTPMethod.POST || httpMethod == HTTPMethod.PUT)
 				&& request.getPostParams() != null) {
-				model.setBody(request.getPostParams());
+				model.setBody(toJsonBody(request.getPostParams()));
 			}else if(httpMethod == HTTPMethod.GET) {		
 				model.setRelativeUrl(request.assembleUrlWithParams(url, request.getUrlParams()));
 			}
@@ -100,9 +115,24 @@ public class AMBatchSession {
 
 		String json = toJsonArray(models);
         RequestParams params = new RequestParams(json);
-        AccelaMobile.getInstance().getRequestSender().sendRequest(path, null, customHttpHeader, HTTPMethod.POST, params,requestDelegate);
+        AccelaMobile.getInstance().getRequestSender().sendRequest(path, null, customHttpHeader, HTTPMethod.POST, params, priority, requestDelegate);
 	}
 	
+	/**
+	 * Private method, used to embed the body of a request as JSON rather than as the text of its parameters.
+	 */
+	private Object toJsonBody(RequestParams postParams) {
+		String body = postParams.getStringBody();
+		if (body == null) {
+			return null;
+		}
+		try {
+			return body.trim().startsWith("[") ? new JSONArray(body) : new JSONObject(body);
+		} catch (JSONException e) {
+			return body;
+		}
+	}
+
 	/**
 	 * Private method, used to convert batch request models to JSON array.
 	 */	
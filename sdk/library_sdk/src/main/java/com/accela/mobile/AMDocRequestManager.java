@@ -21,13 +21,22 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.os.SystemClock;
 
+import com.accela.mobile.http.AMMultiPartRequest;
 import com.accela.mobile.http.DocumentRequest;
 import com.accela.mobile.http.volley.NetworkResponse;
 import com.accela.mobile.http.volley.ServerError;
 
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by eyang on 8/26/15.
@@ -36,17 +45,33 @@ import java.util.concurrent.BlockingQueue;
 /**
  *  Document request management class for binary files download and upload.
  *
+ *  Uploads and downloads run in separate lanes, each with its own pool of workers, so a large upload
+ *  doesn't hold back attachment downloads. The number of transfers running against the same host is
+ *  limited as well, and requests wait in a pending queue until a worker is free.
+ *
  * @since 4.1
  */
 
 public class AMDocRequestManager {
     public final static int IOEXCEPTION_ERROR = 1;
     public final static int SERVEREXCEPTION_ERROR = 2;
-    private final static int DOWNLOAD_STATUS_LOADING = 128;
-    private final static int DOWNLOAD_STATUS_IDLE = 256;
-    private int mStatus = DOWNLOAD_STATUS_IDLE;
+    public final static int QUEUE_FULL_ERROR = 3;
+    public final static int DEADLINE_EXCEEDED_ERROR = 4;
+    public final static int CANCELLED_ERROR = 5;
+
+    private final static int DEFAULT_UPLOAD_WORKERS = 2;
+    private final static int DEFAULT_DOWNLOAD_WORKERS = 3;
+    private final static int DEFAULT_MAX_PER_HOST = 4;
+    private final static int DEFAULT_MAX_PENDING = 512;
+    private final static long WORKER_KEEP_ALIVE_SECONDS = 30;
+
     private static AMDocRequestManager mInstance;
-    private final BlockingQueue<DocumentRequest> mBlockingQueue = new ArrayBlockingQueue(128);
+
+    private final TransferLane mUploadLane = new TransferLane("upload", DEFAULT_UPLOAD_WORKERS);
+    private final TransferLane mDownloadLane = new TransferLane("download", DEFAULT_DOWNLOAD_WORKERS);
+    private final Map<String, Integer> mActivePerHost = new HashMap<String, Integer>();
+    private int mMaxPerHost = DEFAULT_MAX_PER_HOST;
+    private int mMaxPending = DEFAULT_MAX_PENDING;
 
     private AMDocRequestManager(){}
 
@@ -56,47 +81,198 @@ public class AMDocRequestManager {
         }
         return mInstance;
     }
+
+    /**
+     *
+     * Configure the concurrency of document transfers. New limits apply to transfers started afterwards.
+     *
+     * @param uploadWorkers Maximum number of uploads running at the same time.
+     * @param downloadWorkers Maximum number of downloads running at the same time.
+     * @param maxPerHost Maximum number of transfers, uploads and downloads together, running against the same host.
+     * @param maxPending Maximum number of transfers waiting in each lane, further requests fail with {@link #QUEUE_FULL_ERROR}.
+     *
+     * @since 4.1
+     */
+    public static synchronized void setTransferLimits(int uploadWorkers, int downloadWorkers, int maxPerHost, int maxPending) {
+        AMDocRequestManager manager = getAMDocumentManager(null);
+        synchronized (manager) {
+            manager.mUploadLane.setMaxWorkers(uploadWorkers);
+            manager.mDownloadLane.setMaxWorkers(downloadWorkers);
+            manager.mMaxPerHost = Math.max(1, maxPerHost);
+            manager.mMaxPending = Math.max(1, maxPending);
+        }
+        manager.startRequest();
+    }
+
     /**
      *
      * Add task to the queue for further execute
      *
      * @param task based on DocumentRequest interface
      *
-     * @return AMDocRequestManager.
+     * @return true if the task is queued, false if its lane already holds the maximum number of pending tasks.
      *
      * @since 4.1
      */
-    AMDocRequestManager addRequest(DocumentRequest task){
-        mBlockingQueue.add(task);
-        return this;
+    synchronized boolean addRequest(DocumentRequest task){
+        if (task == null) {
+            return false;
+        }
+        TransferLane lane = laneOf(task);
+        if (lane.mPending.size() >= mMaxPending) {
+            return false;
+        }
+        lane.mPending.add(task);
+        return true;
     }
+
     /**
      *
-     * Pulling task from BlockingQueue and execute one by one
+     * Fail a task which couldn't be queued, the failure is reported through the delegate of the task.
      *
+     * @param task The task rejected by {@link #addRequest(DocumentRequest)}.
      *
      * @since 4.1
      */
-    void startRequest(){
-        if (mStatus == DOWNLOAD_STATUS_LOADING)
+    void rejectRequest(DocumentRequest task) {
+        if (task == null) {
             return;
-        if (!mBlockingQueue.isEmpty()){
-            DocumentRequest task = mBlockingQueue.poll();
-            new DocumentTask().execute(task);
+        }
+        Map<String, String> headers = Collections.emptyMap();
+        task.handleResponse(new NetworkResponse(QUEUE_FULL_ERROR, null, headers, false, 0));
+    }
+
+    /**
+     *
+     * Cancel a task, whether it is still waiting in the queue or already running. The delegate of the task receives
+     * a {@link #CANCELLED_ERROR} failure once the task has stopped.
+     *
+     * @param task based on DocumentRequest interface
+     *
+     * @since 4.1
+     */
+    void cancelRequest(DocumentRequest task) {
+        boolean wasPending;
+        synchronized (this) {
+            wasPending = laneOf(task).mPending.remove(task);
+        }
+        task.cancel();
+        if (wasPending) {
+            // It never reached a worker, so nothing else reports it.
+            task.handleResponse(cancelledResponse());
+        }
+    }
+
+    /**
+     *
+     * Get the response a cancelled task reports to its delegate.
+     *
+     * @return A response with the {@link #CANCELLED_ERROR} status.
+     *
+     * @since 4.1
+     */
+    public static NetworkResponse cancelledResponse() {
+        Map<String, String> headers = Collections.emptyMap();
+        return new NetworkResponse(CANCELLED_ERROR, null, headers, false, 0);
+    }
+
+    /**
+     *
+     * Start as many pending tasks as the worker pools and the per host limit allow
+     *
+     *
+     * @since 4.1
+     */
+    synchronized void startRequest(){
+        schedule(mUploadLane);
+        schedule(mDownloadLane);
+    }
+
+    private void schedule(TransferLane lane) {
+        Iterator<DocumentRequest> iterator = lane.mPending.iterator();
+        while (lane.mActive < lane.mMaxWorkers && iterator.hasNext()) {
+            DocumentRequest task = iterator.next();
+            String host = hostOf(task);
+            Integer activeOnHost = mActivePerHost.get(host);
+            if (activeOnHost != null && activeOnHost >= mMaxPerHost) {
+                // Leave it queued, a task for another host may still be able to run.
+                continue;
+            }
+            iterator.remove();
+            lane.mActive++;
+            mActivePerHost.put(host, activeOnHost != null ? activeOnHost + 1 : 1);
+            new DocumentTask(lane, host, task).executeOnExecutor(lane.mExecutor, task);
         }
     }
 
+    private synchronized void finishRequest(TransferLane lane, String host) {
+        lane.mActive--;
+        Integer activeOnHost = mActivePerHost.get(host);
+        if (activeOnHost == null || activeOnHost <= 1) {
+            mActivePerHost.remove(host);
+        } else {
+            mActivePerHost.put(host, activeOnHost - 1);
+        }
+    }
+
+    private TransferLane laneOf(DocumentRequest task) {
+        return (task instanceof AMMultiPartRequest) ? mUploadLane : mDownloadLane;
+    }
+
+    private static String hostOf(DocumentRequest task) {
+        return (task.getUrl() != null) ? task.getUrl().getHost() : "";
+    }
+
+    private static class TransferLane {
+        final LinkedList<DocumentRequest> mPending = new LinkedList<DocumentRequest>();
+        final ThreadPoolExecutor mExecutor;
+        int mMaxWorkers;
+        int mActive = 0;
+
+        TransferLane(final String name, int maxWorkers) {
+            mMaxWorkers = maxWorkers;
+            // The lane never hands the executor more tasks than it has workers, so its queue stays short.
+            mExecutor = new ThreadPoolExecutor(maxWorkers, maxWorkers, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "AMDocRequest-" + name + "-" + mCount.getAndIncrement());
+                }
+            });
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        void setMaxWorkers(int maxWorkers) {
+            mMaxWorkers = Math.max(1, maxWorkers);
+            if (mMaxWorkers > mExecutor.getMaximumPoolSize()) {
+                mExecutor.setMaximumPoolSize(mMaxWorkers);
+                mExecutor.setCorePoolSize(mMaxWorkers);
+            } else {
+                mExecutor.setCorePoolSize(mMaxWorkers);
+                mExecutor.setMaximumPoolSize(mMaxWorkers);
+            }
+        }
+    }
 
     private class DocumentTask extends AsyncTask<DocumentRequest, Object, NetworkResponse> {
-        DocumentRequest mTask;
+        private final TransferLane mLane;
+        private final String mHost;
+        private final DocumentRequest mTask;
+
+        DocumentTask(TransferLane lane, String host, DocumentRequest task) {
+            mLane = lane;
+            mHost = host;
+            mTask = task;
+        }
+
         @Override
         protected NetworkResponse doInBackground(DocumentRequest... task) {
-            mStatus = DOWNLOAD_STATUS_LOADING;
             NetworkResponse response = null;
             if (task!=null) {
                 long requestStart = SystemClock.elapsedRealtime();
                 try {
-                    this.mTask = task[0];
                     response = mTask.request(this);
                 } catch (IOException e) {
                     response = new NetworkResponse(IOEXCEPTION_ERROR, null, null, false,
@@ -110,9 +286,23 @@ public class AMDocRequestManager {
 
         @Override
         protected void onPostExecute(NetworkResponse networkResponse) {
-            mTask.handleResponse(networkResponse);
-            mStatus = DOWNLOAD_STATUS_IDLE;
-            startRequest(); // after finish a task, start to poll a new task again.
+            try {
+                mTask.handleResponse(networkResponse);
+            } finally {
+                // A delegate which throws mustn't keep the slots of the lane and the host.
+                finishRequest(mLane, mHost);
+                startRequest(); // after finish a task, start to poll a new task again.
+            }
+        }
+
+        @Override
+        protected void onCancelled(NetworkResponse networkResponse) {
+            try {
+                mTask.handleResponse(cancelledResponse());
+            } finally {
+                finishRequest(mLane, mHost);
+                startRequest();
+            }
         }
 
     }
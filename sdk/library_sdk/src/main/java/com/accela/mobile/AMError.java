@@ -33,6 +33,22 @@ public class AMError {
 	 */
 	public static final String ERROR_CODE_REQUEST_TIMEOUT = "request_timeout_error";
 
+	/**
+	 * A customized error code, which means the deadline of the request passed before it completed,
+	 * see {@link AMRequest#setTimeBudget(long)}. The request isn't tried again.
+	 *
+	 * @since 4.1
+	 */
+	public static final String ERROR_CODE_DEADLINE_EXCEEDED = "deadline_exceeded_error";
+
+	/**
+	 * A customized error code, which means the request wasn't sent because its endpoint failed repeatedly
+	 * and is given time to recover, see {@link com.accela.mobile.http.AMRequestQueueManager#setCircuitBreaker}.
+	 *
+	 * @since 4.1
+	 */
+	public static final String ERROR_CODE_CIRCUIT_OPEN = "circuit_open_error";
+
 	/**
 	 * A customized error code, which returned from cloud API when an
 	 * operation(e.g. result inspection) fails due to EMSE event.
@@ -0,0 +1,534 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.accela.mobile.http.AMOutboxJournal;
+import com.accela.mobile.http.RequestParams;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ *  Outbox of write requests, which keeps them on disk until the server has them. Requests are queued through
+ *  {@link AMRequestSender#queueRequest(String, RequestParams, Map, AMRequest.HTTPMethod, RequestParams, String, String)}
+ *  and {@link AMRequestSender#queueUploadAttachments(String, RequestParams, RequestParams, Map, Map, String, String)},
+ *  and sent as soon as the network allows, or replayed when connectivity returns, including after the app was restarted.
+ *
+ *  Requests sharing an ordering key, typically the ID of the record they change, are sent one at a time in the order
+ *  they were queued. Requests with different keys are sent together, combined into /v4/batch calls, except those with
+ *  custom HTTP headers and those sent before. Requests which fail because of the network, the server being unavailable
+ *  or an expired session are kept and tried again later, up to a limit, other failures are reported and the next
+ *  request with the same key goes ahead. A request sent on its own carries the same {@link #IDEMPOTENCY_KEY_HEADER}
+ *  every time. A batch call carries a key of its own, and when it fails as a whole its requests are only sent again
+ *  together, in the same batch under the same key. Either way the server can recognize a request it already applied
+ *  before the response was lost.
+ *
+ *  Delegates can't survive the process, so results are reported to the {@link ResultListener} with the callback ID
+ *  given when the request was queued. Set the listener when the app starts, nothing is replayed until it is set.
+ *
+ * @since 4.1
+ */
+public class AMOutbox {
+    /** Maximum number of requests combined in one batch call. */
+    public final static int MAX_BATCH_SIZE = 20;
+    /** Number of attempts after which a request refused by the server is reported as failed. */
+    public final static int MAX_SERVER_ATTEMPTS = 10;
+    /** Number of attempts after which a request which never got a response is reported as failed. */
+    public final static int MAX_OFFLINE_ATTEMPTS = 50;
+    /** Header carrying the idempotency key of a request, see {@link AMOutboxJournal.Entry#idempotencyKey}. */
+    public final static String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    private final static long MIN_RETRY_DELAY_MS = 30 * 1000;
+    private final static long MAX_RETRY_DELAY_MS = 15 * 60 * 1000;
+
+    private static AMOutbox mInstance;
+
+    /**
+     * Receives the results of the requests replayed by the outbox, on the main thread.
+     *
+     * @since 4.1
+     */
+    public interface ResultListener {
+        /**
+         * Fired when the server accepted a queued request.
+         *
+         * @param callbackId The ID given when the request was queued.
+         * @param result The JSON response of the request.
+         */
+        public void onSuccess(String callbackId, JSONObject result);
+
+        /**
+         * Fired when a queued request failed for good, it won't be sent again.
+         *
+         * @param callbackId The ID given when the request was queued.
+         * @param error The error returned for the request.
+         */
+        public void onFailure(String callbackId, AMError error);
+    }
+
+    private final Context mContext;
+    private final AMOutboxJournal mJournal;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /** Entries not delivered yet, in order. Only used on the main thread. */
+    private final List<AMOutboxJournal.Entry> mEntries = new ArrayList<AMOutboxJournal.Entry>();
+    /** Whether the entries saved by a previous process have been read, nothing is sent before. */
+    private boolean mLoaded = false;
+    /** Entries currently being sent. */
+    private final Set<AMOutboxJournal.Entry> mInFlight = new HashSet<AMOutboxJournal.Entry>();
+    private ResultListener mResultListener;
+    private boolean mProgress = false;
+    private boolean mFlushPending = false;
+    private long mRetryDelayMs = MIN_RETRY_DELAY_MS;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushNow();
+        }
+    };
+
+    private AMOutbox(Context context) {
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        mJournal = new AMOutboxJournal(mContext);
+        loadEntries();
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (isConnected()) {
+                    mRetryDelayMs = MIN_RETRY_DELAY_MS;
+                    flush();
+                }
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Read the saved entries on a background thread, the outbox is typically created on the main thread.
+     */
+    private void loadEntries() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final List<AMOutboxJournal.Entry> savedEntries = mJournal.getEntries();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Entries queued meanwhile are already there, and may be among the saved ones.
+                        Set<Long> sequences = new HashSet<Long>();
+                        for (AMOutboxJournal.Entry entry : mEntries) {
+                            sequences.add(entry.sequence);
+                        }
+                        int index = 0;
+                        for (AMOutboxJournal.Entry entry : savedEntries) {
+                            if (!sequences.contains(entry.sequence)) {
+                                mEntries.add(index++, entry);
+                            }
+                        }
+                        mLoaded = true;
+                        flushNow();
+                    }
+                });
+            }
+        }, "AMOutbox-load").start();
+    }
+
+    /**
+     * Get the outbox of the app. AccelaMobile must have been initialized.
+     *
+     * @return The outbox, or null if AccelaMobile isn't initialized.
+     *
+     * @since 4.1
+     */
+    public static synchronized AMOutbox getInstance() {
+        if (mInstance == null) {
+            Context context = AccelaMobile.getInstance().ownerContext;
+            if (context == null) {
+                return null;
+            }
+            mInstance = new AMOutbox(context);
+        }
+        return mInstance;
+    }
+
+    /**
+     * Set the listener receiving the results of the queued requests, and start replaying them.
+     *
+     * @param resultListener The listener, or null to stop replaying.
+     *
+     * @since 4.1
+     */
+    public void setResultListener(final ResultListener resultListener) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mResultListener = resultListener;
+                flushNow();
+            }
+        });
+    }
+
+    /**
+     * Send the queued requests now, without waiting for connectivity to change or for the next retry.
+     *
+     * @since 4.1
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(mFlushRunnable);
+    }
+
+    /**
+     * Drop a queued request, it is neither sent nor reported. A request already being sent can't be dropped.
+     *
+     * @param callbackId The ID given when the request was queued.
+     *
+     * @since 4.1
+     */
+    public void discard(final String callbackId) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Iterator<AMOutboxJournal.Entry> iterator = mEntries.iterator();
+                while (iterator.hasNext()) {
+                    AMOutboxJournal.Entry entry = iterator.next();
+                    if (entry.callbackId.equals(callbackId) && !mInFlight.contains(entry)) {
+                        iterator.remove();
+                        mJournal.remove(entry);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Record a request at the end of the outbox and try to send it.
+     *
+     * @return false if the request couldn't be saved.
+     */
+    boolean enqueue(final AMOutboxJournal.Entry entry) {
+        if (!mJournal.append(entry)) {
+            return false;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mEntries.add(entry);
+                flushNow();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Send the first entry of each ordering key, once the previous round is over.
+     */
+    private void flushNow() {
+        if (!mInFlight.isEmpty()) {
+            mFlushPending = true;
+            return;
+        }
+        mFlushPending = false;
+        mProgress = false;
+        if (!mLoaded || mResultListener == null) {
+            return;
+        }
+        reportUnreadableEntries();
+        if (mEntries.isEmpty() || !isConnected()) {
+            return;
+        }
+        mHandler.removeCallbacks(mFlushRunnable);
+        Set<String> orderingKeys = new HashSet<String>();
+        List<AMOutboxJournal.Entry> uploads = new ArrayList<AMOutboxJournal.Entry>();
+        List<AMOutboxJournal.Entry> singles = new ArrayList<AMOutboxJournal.Entry>();
+        List<AMOutboxJournal.Entry> requests = new ArrayList<AMOutboxJournal.Entry>();
+        Map<String, List<AMOutboxJournal.Entry>> pendingBatches = new LinkedHashMap<String, List<AMOutboxJournal.Entry>>();
+        for (AMOutboxJournal.Entry entry : mEntries) {
+            if (entry.orderingKey != null && !orderingKeys.add(entry.orderingKey)) {
+                continue;
+            }
+            if (entry.batchKey != null) {
+                List<AMOutboxJournal.Entry> batch = pendingBatches.get(entry.batchKey);
+                if (batch == null) {
+                    batch = new ArrayList<AMOutboxJournal.Entry>();
+                    pendingBatches.put(entry.batchKey, batch);
+                }
+                batch.add(entry);
+            } else if (entry.isUpload()) {
+                uploads.add(entry);
+            } else if (!isBatchable(entry)) {
+                singles.add(entry);
+            } else {
+                requests.add(entry);
+            }
+        }
+        mInFlight.addAll(uploads);
+        mInFlight.addAll(singles);
+        mInFlight.addAll(requests);
+        for (List<AMOutboxJournal.Entry> batch : pendingBatches.values()) {
+            mInFlight.addAll(batch);
+        }
+        for (List<AMOutboxJournal.Entry> batch : pendingBatches.values()) {
+            sendBatch(batch);
+        }
+        for (AMOutboxJournal.Entry upload : uploads) {
+            sendUpload(upload);
+        }
+        for (AMOutboxJournal.Entry single : singles) {
+            sendRequest(single);
+        }
+        for (int start = 0; start < requests.size(); start += MAX_BATCH_SIZE) {
+            List<AMOutboxJournal.Entry> chunk = requests.subList(start, Math.min(requests.size(), start + MAX_BATCH_SIZE));
+            if (chunk.size() == 1) {
+                sendRequest(chunk.get(0));
+            } else {
+                sendBatch(new ArrayList<AMOutboxJournal.Entry>(chunk));
+            }
+        }
+    }
+
+    /**
+     * Report the entries which can't be sent, because their record couldn't be read or their files are gone.
+     */
+    private void reportUnreadableEntries() {
+        Iterator<AMOutboxJournal.Entry> iterator = mEntries.iterator();
+        while (iterator.hasNext()) {
+            AMOutboxJournal.Entry entry = iterator.next();
+            if (entry.failure == null) {
+                continue;
+            }
+            iterator.remove();
+            mJournal.remove(entry);
+            mResultListener.onFailure(entry.callbackId, new AMError(AMError.ERROR_CODE_EXCEPTION, AMError.ERROR_CODE_OTHER_ERROR, null,
+                    "Queued request can't be sent", entry.failure));
+        }
+    }
+
+    /**
+     * The batch carries neither custom headers nor the idempotency keys of its requests, so entries with custom headers
+     * and entries which may already have reached the server on their own are sent on their own.
+     */
+    private static boolean isBatchable(AMOutboxJournal.Entry entry) {
+        return (entry.httpHeader == null || entry.httpHeader.isEmpty()) && entry.attempts == 0;
+    }
+
+    /**
+     * The custom headers of an entry plus its idempotency key.
+     */
+    private Map<String, String> headersOf(AMOutboxJournal.Entry entry) {
+        if (entry.idempotencyKey == null) {
+            // Saved by a version which didn't assign keys.
+            entry.idempotencyKey = UUID.randomUUID().toString();
+            mJournal.update(entry);
+        }
+        Map<String, String> headers = (entry.httpHeader != null) ? new HashMap<String, String>(entry.httpHeader) : new HashMap<String, String>();
+        headers.put(IDEMPOTENCY_KEY_HEADER, entry.idempotencyKey);
+        return headers;
+    }
+
+    private void sendRequest(final AMOutboxJournal.Entry entry) {
+        AMRequest amRequest = new AMRequest(AccelaMobile.getInstance().amApisHost + entry.path, toUrlParams(entry.urlParams),
+                entry.body != null ? new RequestParams(entry.body) : null, AMRequest.HTTPMethod.valueOf(entry.method));
+        amRequest.setHttpHeader(headersOf(entry));
+        try {
+            amRequest.sendRequest(new EntryDelegate(entry));
+        } catch (JSONException e) {
+            onEntryFailure(entry, new AMError(AMError.ERROR_CODE_EXCEPTION, AMError.ERROR_CODE_OTHER_ERROR, null, e.toString(), null));
+        }
+    }
+
+    private void sendUpload(AMOutboxJournal.Entry entry) {
+        AMRequest amRequest = new AMRequest(AccelaMobile.getInstance().amApisHost + entry.path, toUrlParams(entry.urlParams),
+                null, AMRequest.HTTPMethod.POST);
+        amRequest.setHttpHeader(headersOf(entry));
+        amRequest.uploadAttachments(entry.postParams, new HashMap<String, String>(), new EntryDelegate(entry));
+    }
+
+    /**
+     * Send entries in one batch call. A batch which failed as a whole is sent again with the same entries and the same key.
+     */
+    private void sendBatch(final List<AMOutboxJournal.Entry> entries) {
+        String batchKey = entries.get(0).batchKey;
+        if (batchKey == null) {
+            // Saved before the batch goes out, so a lost response is followed by the same batch.
+            batchKey = UUID.randomUUID().toString();
+            for (AMOutboxJournal.Entry entry : entries) {
+                entry.batchKey = batchKey;
+                mJournal.update(entry);
+            }
+        }
+        Map<String, String> batchHeaders = new HashMap<String, String>();
+        batchHeaders.put(IDEMPOTENCY_KEY_HEADER, batchKey);
+        AMBatchSession batchSession = new AMBatchSession();
+        for (AMOutboxJournal.Entry entry : entries) {
+            String path = entry.path;
+            if (entry.urlParams != null && !entry.urlParams.isEmpty()) {
+                path += (path.contains("?") ? "&" : "?") + toUrlParams(entry.urlParams).getParamString();
+            }
+            batchSession.add(new AMRequest(path, null, entry.body != null ? new RequestParams(entry.body) : null,
+                    AMRequest.HTTPMethod.valueOf(entry.method)));
+        }
+        batchSession.executeAsync(batchHeaders, new AMRequestDelegate() {
+            @Override
+            public void onStart() {}
+
+            @Override
+            public void onSuccess(JSONObject content) {
+                List<JSONObject> results = new AMBatchResponse(content).getResult();
+                for (int index = 0; index < entries.size(); index++) {
+                    AMOutboxJournal.Entry entry = entries.get(index);
+                    // Each request has its own result now, one tried again goes on its own with its own key.
+                    entry.batchKey = null;
+                    if (results.size() != entries.size()) {
+                        // The requests may have been applied, so they can't be sent again.
+                        onEntryFailure(entry, new AMError(200, AMError.ERROR_CODE_OTHER_ERROR, null,
+                                "Batch response doesn't match the requests", content.toString()));
+                        continue;
+                    }
+                    JSONObject result = results.get(index);
+                    int status = result.optInt("status", 200);
+                    if (status >= 200 && status <= 299) {
+                        onEntrySuccess(entry, result);
+                    } else {
+                        onEntryFailure(entry, new AMError(status, result.optString("code", null), result.optString("traceId", null),
+                                result.optString("message", null), result.toString()));
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(AMError error) {
+                // The batch may have been applied, its entries keep their batch key and are only sent again together.
+                for (AMOutboxJournal.Entry entry : entries) {
+                    onEntryFailure(entry, error);
+                }
+            }
+        });
+    }
+
+    private void onEntrySuccess(AMOutboxJournal.Entry entry, JSONObject result) {
+        mEntries.remove(entry);
+        mJournal.remove(entry);
+        mProgress = true;
+        if (mResultListener != null) {
+            mResultListener.onSuccess(entry.callbackId, result);
+        }
+        onEntryDone(entry);
+    }
+
+    private void onEntryFailure(AMOutboxJournal.Entry entry, AMError error) {
+        int status = error.getStatus();
+        // Below 100 the request didn't get an HTTP response, see AMDocRequestManager for the transfer errors. It may still
+        // have reached the server, the idempotency key covers the replay.
+        boolean offline = status < 100;
+        boolean retryable = (offline && status != AMDocRequestManager.CANCELLED_ERROR)
+                || status >= 500 || status == 408 || status == 429 || status == AMError.ERROR_CODE_Unauthorized;
+        entry.attempts++;
+        if (retryable && entry.attempts < (offline ? MAX_OFFLINE_ATTEMPTS : MAX_SERVER_ATTEMPTS)) {
+            mJournal.update(entry);
+        } else {
+            mEntries.remove(entry);
+            mJournal.remove(entry);
+            mProgress = true;
+            if (mResultListener != null) {
+                mResultListener.onFailure(entry.callbackId, error);
+            }
+        }
+        onEntryDone(entry);
+    }
+
+    /**
+     * Start the next round once every entry of this one is done. Without progress, wait for connectivity to change or
+     * for a growing delay.
+     */
+    private void onEntryDone(AMOutboxJournal.Entry entry) {
+        mInFlight.remove(entry);
+        if (!mInFlight.isEmpty()) {
+            return;
+        }
+        if (mProgress || mFlushPending) {
+            mRetryDelayMs = MIN_RETRY_DELAY_MS;
+            flush();
+        } else if (!mEntries.isEmpty()) {
+            mHandler.postDelayed(mFlushRunnable, mRetryDelayMs);
+            mRetryDelayMs = Math.min(mRetryDelayMs * 2, MAX_RETRY_DELAY_MS);
+        }
+    }
+
+    private boolean isConnected() {
+        try {
+            ConnectivityManager connectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo networkInfo = (connectivityManager != null) ? connectivityManager.getActiveNetworkInfo() : null;
+            return networkInfo != null && networkInfo.isConnected();
+        } catch (SecurityException e) {
+            // Without the network state permission, let the requests find out.
+            return true;
+        }
+    }
+
+    private static RequestParams toUrlParams(Map<String, String> urlParams) {
+        if (urlParams == null || urlParams.isEmpty()) {
+            return null;
+        }
+        RequestParams requestParams = new RequestParams();
+        requestParams.setUrlParams(new HashMap<String, String>(urlParams));
+        return requestParams;
+    }
+
+    /**
+     * Delegate of a request sent on its own.
+     */
+    private class EntryDelegate extends AMRequestDelegate {
+        private final AMOutboxJournal.Entry mEntry;
+
+        EntryDelegate(AMOutboxJournal.Entry entry) {
+            mEntry = entry;
+        }
+
+        @Override
+        public void onStart() {}
+
+        @Override
+        public void onSuccess(JSONObject content) {
+            onEntrySuccess(mEntry, content);
+        }
+
+        @Override
+        public void onFailure(AMError error) {
+            onEntryFailure(mEntry, error);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile;
+
+import android.os.SystemClock;
+
+import com.accela.mobile.http.RequestParams;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ *  Pages through a search or list endpoint which takes offset and limit URL parameters, see
+ *  {@link AMRequestSender#paginate(String, RequestParams, Map, AMRequest.HTTPMethod, RequestParams, AMPaginator.PageDelegate)}.
+ *
+ *  The consumer asks for pages with {@link #loadNextPage()} and reports how far it has got with {@link #onItemVisible(int)}.
+ *  When the consumer nears the end of the items it has been given, the next pages are fetched in the background at LOW
+ *  priority, so they are usually ready when asked for. The size of the pages follows the latency and the size of the
+ *  responses measured so far. Call {@link #cancel()} when the consumer goes away, the read-ahead is dropped with it.
+ *
+ *  The end of the results is taken from the hasmore field of the page object of the response, or from a page shorter than
+ *  asked for when the response doesn't have one. All the methods must be called on the main thread.
+ *
+ * @since 4.1
+ */
+public class AMPaginator {
+	/**
+	 * Receives the pages of a paginator on the main thread, in order.
+	 *
+	 * @since 4.1
+	 */
+	public interface PageDelegate {
+		/**
+		 * Fired with the next page asked for with {@link AMPaginator#loadNextPage()}.
+		 *
+		 * @param items The objects of the result array of the page.
+		 * @param offset The position of the first object of the page in the whole result.
+		 * @param hasMore false if this is the last page.
+		 *
+		 * @since 4.1
+		 */
+		void onPage(JSONArray items, int offset, boolean hasMore);
+
+		/**
+		 * Fired when the page asked for couldn't be fetched. Calling {@link AMPaginator#loadNextPage()} again tries it again.
+		 *
+		 * @param error The underlying cause of the failure.
+		 *
+		 * @since 4.1
+		 */
+		void onFailure(AMError error);
+	}
+
+	/**
+	 * The default name of the URL parameter holding the position of the first item of a page.
+	 *
+	 * @since 4.1
+	 */
+	public static final String DEFAULT_OFFSET_PARAM = "offset";
+
+	/**
+	 * The default name of the URL parameter holding the number of items of a page.
+	 *
+	 * @since 4.1
+	 */
+	public static final String DEFAULT_LIMIT_PARAM = "limit";
+
+	private static final String RESULT_KEY = "result";
+	private static final String PAGE_KEY = "page";
+	private static final String HAS_MORE_KEY = "hasmore";
+
+	private static final int DEFAULT_PAGE_SIZE = 25;
+	private static final int DEFAULT_MIN_PAGE_SIZE = 10;
+	private static final int DEFAULT_MAX_PAGE_SIZE = 200;
+	private static final int DEFAULT_READ_AHEAD_PAGES = 1;
+	/** The page size aims at pages which take about this long to come back. */
+	private static final long TARGET_PAGE_LATENCY_MS = 1500;
+	/** The page size is kept under this response size, so one page doesn't take too much memory to parse. */
+	private static final int MAX_PAGE_CHARS = 256 * 1024;
+	/** Weight of the latest page in the latency estimate. */
+	private static final double LATENCY_WEIGHT = 0.3;
+
+	private final AMRequestSender requestSender;
+	private final String path;
+	private final Map<String, String> urlParams;
+	private final Map<String, String> customHttpHeader;
+	private final AMRequest.HTTPMethod httpMethod;
+	private final RequestParams postData;
+	private final PageDelegate pageDelegate;
+
+	private String offsetParam = DEFAULT_OFFSET_PARAM;
+	private String limitParam = DEFAULT_LIMIT_PARAM;
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private int minPageSize = DEFAULT_MIN_PAGE_SIZE;
+	private int maxPageSize = DEFAULT_MAX_PAGE_SIZE;
+	private int readAheadPages = DEFAULT_READ_AHEAD_PAGES;
+	private int prefetchDistance = -1;
+
+	/** Pages fetched and not handed to the consumer yet, in order. */
+	private final LinkedList<Page> pages = new LinkedList<Page>();
+	/** The offset of the next page to fetch. */
+	private int nextOffset = 0;
+	/** The number of items handed to the consumer. */
+	private int deliveredCount = 0;
+	/** The highest position reported by the consumer, -1 until it reports one. */
+	private int lastVisiblePosition = -1;
+	private boolean serverHasMore = true;
+	/** true while the consumer waits for a page which hasn't been fetched. */
+	private boolean waiting = false;
+	/** true once a read-ahead failed, no more read-ahead until the consumer asks for a page. */
+	private boolean readAheadFailed = false;
+	private boolean cancelled = false;
+	private AMRequest pageRequest;
+	private int fetchSequence = 0;
+	private double msPerItem = -1;
+	private int charsPerItem = -1;
+
+	AMPaginator(AMRequestSender requestSender, String path, RequestParams urlParams, Map<String, String> customHttpHeader,
+			AMRequest.HTTPMethod httpMethod, RequestParams postData, PageDelegate pageDelegate) {
+		this.requestSender = requestSender;
+		this.path = path;
+		this.urlParams = (urlParams != null && urlParams.getUrlParams() != null)
+				? new HashMap<String, String>(urlParams.getUrlParams()) : new HashMap<String, String>();
+		this.customHttpHeader = customHttpHeader;
+		this.httpMethod = (httpMethod != null) ? httpMethod : AMRequest.HTTPMethod.GET;
+		this.postData = postData;
+		this.pageDelegate = pageDelegate;
+	}
+
+	/**
+	 * Set the names of the URL parameters holding the position of the first item and the number of items of a page.
+	 * Call it before the first page is asked for.
+	 *
+	 * @param offsetParam The name of the offset parameter, "offset" by default.
+	 * @param limitParam The name of the limit parameter, "limit" by default.
+	 *
+	 * @since 4.1
+	 */
+	public void setPagingParams(String offsetParam, String limitParam) {
+		this.offsetParam = offsetParam;
+		this.limitParam = limitParam;
+	}
+
+	/**
+	 * Set the bounds of the page size, and the size of the first page. The size of the next pages is adapted within the bounds.
+	 *
+	 * @param initialPageSize The number of items of the first page.
+	 * @param minPageSize The smallest number of items of a page.
+	 * @param maxPageSize The largest number of items of a page, within the limit the endpoint accepts.
+	 *
+	 * @since 4.1
+	 */
+	public void setPageSize(int initialPageSize, int minPageSize, int maxPageSize) {
+		this.minPageSize = Math.max(1, minPageSize);
+		this.maxPageSize = Math.max(this.minPageSize, maxPageSize);
+		this.pageSize = clampPageSize(initialPageSize);
+	}
+
+	/**
+	 * Set how many pages are fetched ahead of the consumer, 0 to only fetch the pages asked for.
+	 *
+	 * @param readAheadPages The number of pages fetched ahead, 1 by default.
+	 *
+	 * @since 4.1
+	 */
+	public void setReadAhead(int readAheadPages) {
+		this.readAheadPages = Math.max(0, readAheadPages);
+	}
+
+	/**
+	 * Set how close to the end of the items it has been given the consumer must be for the next pages to be fetched.
+	 * Only applies once the consumer reports its position with {@link #onItemVisible(int)}, until then the next pages are
+	 * fetched as soon as a page is handed over.
+	 *
+	 * @param prefetchDistance The number of items left, by default half the page size.
+	 *
+	 * @since 4.1
+	 */
+	public void setPrefetchDistance(int prefetchDistance) {
+		this.prefetchDistance = prefetchDistance;
+	}
+
+	/**
+	 * Ask for the next page, which is handed to {@link PageDelegate#onPage(JSONArray, int, boolean)} right away if it has
+	 * been read ahead, or once it is fetched.
+	 *
+	 * @return false if there are no more pages or the paginator was cancelled.
+	 *
+	 * @since 4.1
+	 */
+	public boolean loadNextPage() {
+		if (cancelled || !hasMore()) {
+			return false;
+		}
+		if (!pages.isEmpty()) {
+			deliverNextPage();
+			return true;
+		}
+		waiting = true;
+		readAheadFailed = false;
+		if (pageRequest == null) {
+			fetchPage(AMRequest.RequestPriority.HIGH);
+		} else {
+			// The consumer now waits on the page being read ahead.
+			pageRequest.raisePriority(AMRequest.RequestPriority.HIGH);
+		}
+		return true;
+	}
+
+	/**
+	 * Report the position of an item the consumer has reached, for instance from the getView() method of a list adapter.
+	 * The next pages are fetched in the background when the position nears the end of the items handed over.
+	 *
+	 * @param position The position of the item in the whole result.
+	 *
+	 * @since 4.1
+	 */
+	public void onItemVisible(int position) {
+		if (position > lastVisiblePosition) {
+			lastVisiblePosition = position;
+			readAhead();
+		}
+	}
+
+	/**
+	 * Check whether there are pages left to ask for.
+	 *
+	 * @return true if the end of the results hasn't been handed over.
+	 *
+	 * @since 4.1
+	 */
+	public boolean hasMore() {
+		return !pages.isEmpty() || serverHasMore;
+	}
+
+	/**
+	 * Get the number of items handed to the consumer so far.
+	 *
+	 * @return The number of items.
+	 *
+	 * @since 4.1
+	 */
+	public int getItemCount() {
+		return deliveredCount;
+	}
+
+	/**
+	 * Get the number of items the next page will be asked for.
+	 *
+	 * @return The current page size.
+	 *
+	 * @since 4.1
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Stop the paginator, the page being fetched is cancelled and the pages read ahead are dropped. The delegate isn't called anymore.
+	 *
+	 * @since 4.1
+	 */
+	public void cancel() {
+		cancelled = true;
+		waiting = false;
+		pages.clear();
+		if (pageRequest != null) {
+			AMRequest request = pageRequest;
+			pageRequest = null;
+			request.cancelRequest();
+		}
+	}
+
+	/**
+	 * Check whether {@link #cancel()} was called.
+	 *
+	 * @return true if the paginator was cancelled.
+	 *
+	 * @since 4.1
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	private void deliverNextPage() {
+		Page page = pages.removeFirst();
+		waiting = false;
+		deliveredCount += page.items.length();
+		if (pageDelegate != null) {
+			pageDelegate.onPage(page.items, page.offset, page.hasMore);
+		}
+		readAhead();
+	}
+
+	private void readAhead() {
+		if (cancelled || waiting || readAheadFailed || pageRequest != null || !serverHasMore || pages.size() >= readAheadPages) {
+			return;
+		}
+		if (lastVisiblePosition >= 0) {
+			int distance = (prefetchDistance >= 0) ? prefetchDistance : pageSize / 2;
+			int itemsAhead = deliveredCount - 1 - lastVisiblePosition;
+			for (Page page : pages) {
+				itemsAhead += page.items.length();
+			}
+			if (itemsAhead > distance) {
+				return;
+			}
+		}
+		fetchPage(AMRequest.RequestPriority.LOW);
+	}
+
+	private void fetchPage(AMRequest.RequestPriority priority) {
+		Map<String, String> pageParams = new HashMap<String, String>(urlParams);
+		pageParams.put(offsetParam, String.valueOf(nextOffset));
+		pageParams.put(limitParam, String.valueOf(pageSize));
+		RequestParams requestParams = new RequestParams();
+		requestParams.setUrlParams(pageParams);
+		pageRequest = requestSender.sendRequest(path, requestParams, customHttpHeader, httpMethod, postData, priority,
+				new PageRequestDelegate(++fetchSequence, nextOffset, pageSize));
+	}
+
+	private void onPageFetched(int offset, int limit, JSONObject content, long latency) {
+		pageRequest = null;
+		JSONArray items = (content != null) ? content.optJSONArray(RESULT_KEY) : null;
+		if (items == null) {
+			items = new JSONArray();
+		}
+		JSONObject pageInfo = (content != null) ? content.optJSONObject(PAGE_KEY) : null;
+		boolean hasMore = (pageInfo != null && pageInfo.has(HAS_MORE_KEY)) ? pageInfo.optBoolean(HAS_MORE_KEY) : items.length() >= limit;
+		// An empty page can't move the offset forward.
+		serverHasMore = hasMore && items.length() > 0;
+		nextOffset = offset + items.length();
+		adaptPageSize(items, latency);
+		pages.addLast(new Page(items, offset, serverHasMore));
+		if (waiting) {
+			deliverNextPage();
+		} else {
+			readAhead();
+		}
+	}
+
+	private void onPageFailed(AMError error) {
+		pageRequest = null;
+		if (waiting) {
+			waiting = false;
+			if (pageDelegate != null) {
+				pageDelegate.onFailure(error);
+			}
+		} else {
+			// Only the consumer asking for the page tries it again.
+			readAheadFailed = true;
+			AMLogger.logWarn("Read-ahead of " + path + " failed: " + error);
+		}
+	}
+
+	/**
+	 * Size the next page so it comes back in about {@link #TARGET_PAGE_LATENCY_MS} and stays under {@link #MAX_PAGE_CHARS}.
+	 */
+	private void adaptPageSize(JSONArray items, long latency) {
+		int count = items.length();
+		if (count == 0) {
+			return;
+		}
+		double sample = Math.max(1, latency) / (double) count;
+		msPerItem = (msPerItem < 0) ? sample : msPerItem * (1 - LATENCY_WEIGHT) + sample * LATENCY_WEIGHT;
+		if (charsPerItem < 0) {
+			// Measured on the first page only, items of the same endpoint are about the same size.
+			charsPerItem = Math.max(1, items.toString().length() / count);
+		}
+		int size = (int) (TARGET_PAGE_LATENCY_MS / msPerItem);
+		size = Math.min(size, MAX_PAGE_CHARS / charsPerItem);
+		// Grow gradually, one fast page shouldn't bring a huge one.
+		size = Math.min(size, pageSize * 2);
+		pageSize = clampPageSize(size);
+	}
+
+	private int clampPageSize(int size) {
+		return Math.max(minPageSize, Math.min(maxPageSize, size));
+	}
+
+	private static class Page {
+		final JSONArray items;
+		final int offset;
+		final boolean hasMore;
+
+		Page(JSONArray items, int offset, boolean hasMore) {
+			this.items = items;
+			this.offset = offset;
+			this.hasMore = hasMore;
+		}
+	}
+
+	/**
+	 * Delegate of the request of one page, ignored once the paginator is cancelled.
+	 */
+	private class PageRequestDelegate extends AMRequestDelegate {
+		private final int sequence;
+		private final int offset;
+		private final int limit;
+		private final long startTime = SystemClock.elapsedRealtime();
+
+		PageRequestDelegate(int sequence, int offset, int limit) {
+			this.sequence = sequence;
+			this.offset = offset;
+			this.limit = limit;
+		}
+
+		private boolean isCurrent() {
+			return !cancelled && sequence == fetchSequence;
+		}
+
+		@Override
+		public void onStart() {
+		}
+
+		@Override
+		public void onSuccess(JSONObject content) {
+			if (isCurrent()) {
+				onPageFetched(offset, limit, content, SystemClock.elapsedRealtime() - startTime);
+			}
+		}
+
+		@Override
+		public void onFailure(AMError error) {
+			if (isCurrent()) {
+				onPageFailed(error);
+			}
+		}
+	}
+}
@@ -18,27 +18,35 @@
 package com.accela.mobile;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.widget.ImageView;
 
 import com.accela.mobile.http.AMDocDownloadRequest;
 import com.accela.mobile.http.AMHttpRequest;
 import com.accela.mobile.http.AMImageLoader;
+import com.accela.mobile.http.AMJsonBinder;
 import com.accela.mobile.http.AMRequestFactory;
+import com.accela.mobile.http.AMMultiPartRequest;
 import com.accela.mobile.http.AMRequestQueueManager;
+import com.accela.mobile.http.AMUploadJournal;
+import com.accela.mobile.http.AMUrlEncoder;
 import com.accela.mobile.http.DocumentRequest;
 import com.accela.mobile.http.RequestParams;
 import com.accela.mobile.http.volley.Request;
+import com.accela.mobile.http.volley.toolbox.ImageLoader;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
 import java.util.ResourceBundle;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -69,6 +77,17 @@ public class AMRequest {
 		AUTHENTICATION, MULTIPART, IMAGE, DEFAULT
 	}
 
+	/**
+	 * Request priority enumerations. Higher priority requests are sent first, and HIGH or IMMEDIATE requests
+	 * can also use the network threads reserved for them, so they don't wait behind background traffic.
+	 *
+	 * @since 4.1
+	 */
+	public enum RequestPriority
+	{
+		LOW, NORMAL, HIGH, IMMEDIATE
+	}
+
 	/**
 	 * Trace ID header name in HTTP/HTTPS response headers.
 	 *
@@ -151,6 +170,44 @@ public class AMRequest {
 	 */
 	private String tag;
 
+	/**
+	 * The sequence the default tags are taken from, so each request has its own.
+	 *
+	 * @since 4.1
+	 */
+	private static final AtomicInteger TAG_SEQUENCE = new AtomicInteger();
+
+	/**
+	 * The headers of the current session, shared by the requests until the token, agency or environment changes.
+	 *
+	 * @since 4.1
+	 */
+	private static volatile HeaderTemplate headerTemplate;
+
+	/**
+	 * The group the request belongs to, or null.
+	 *
+	 * @since 4.1
+	 */
+	private AMRequestGroup requestGroup = null;
+
+	/**
+	 * The scheduler holding the request until its conditions are met, or null if it isn't deferred.
+	 */
+	private volatile AMRequestScheduler scheduler = null;
+
+	/**
+	 * The auto-batcher holding the request until its batch is sent, or null if it isn't waiting in one.
+	 */
+	private volatile AMAutoBatcher autoBatcher = null;
+
+	/**
+	 * The image load of the request, or null.
+	 *
+	 * @since 4.1
+	 */
+	private ImageLoader.ImageContainer mImageContainer;
+
 	/**
 	 * The service's full URL, which consists of both cloud host and service URI.
 	 *
@@ -158,6 +215,13 @@ public class AMRequest {
 	 */
 	private String serviceURL;
 
+	/**
+	 * The key of the endpoint the request is sent to, set when the URL is expanded from an {@link AMUriTemplate}.
+	 *
+	 * @since 4.1
+	 */
+	private String endpointKey;
+
 	/**
 	 * HTTP method of the request.
 	 *
@@ -201,7 +265,7 @@ public class AMRequest {
 	 *
 	 * @since 3.0
 	 */
-	private Boolean isCancelled = false;
+	private volatile Boolean isCancelled = false;
 
     /**
      * The collection of request parameters which will be appended to service URL with & symbol.
@@ -223,6 +287,79 @@ public class AMRequest {
 
     private Map<String, String> requestHttpHeader = new HashMap<String, String>();
 
+	/**
+	 * The flag which indicates whether the GET response can be served from and stored in the response cache.
+	 *
+	 * @since 4.1
+	 */
+	private boolean shouldCache = false;
+
+	/**
+	 * Freshness in milliseconds applied to cached responses which have no caching headers.
+	 *
+	 * @since 4.1
+	 */
+	private long cacheTtl = 0;
+
+	/**
+	 * Window in milliseconds during which a stale cached response is still delivered while it is refreshed.
+	 *
+	 * @since 4.1
+	 */
+	private long staleWhileRevalidate = 0;
+
+	/**
+	 * The flag which indicates whether an attachment upload is recorded so it can be sent again after the process was killed.
+	 *
+	 * @since 4.1
+	 */
+	private boolean resumableUpload = false;
+
+	/**
+	 * The ID of the upload journal record of the request, kept so sending it again replaces the record.
+	 */
+	private String uploadId = null;
+
+	/**
+	 * The flag which indicates whether the objects of the result array are delivered one by one while the response is read.
+	 *
+	 * @since 4.1
+	 */
+	private boolean streamingResponse = false;
+
+	/**
+	 * Binder of the result array for typed requests, or null.
+	 */
+	private AMJsonBinder<?> resultBinder = null;
+
+	/**
+	 * The priority of the request, or null for the default priority of its type.
+	 *
+	 * @since 4.1
+	 */
+	private RequestPriority priority = null;
+
+	/**
+	 * The total time in milliseconds the request may take once sent, or 0 for no limit.
+	 *
+	 * @since 4.1
+	 */
+	private long timeBudgetMs = 0;
+
+	/**
+	 * Whether the request may be sent again after a failure the server may have seen, or null to decide by its method.
+	 *
+	 * @since 4.1
+	 */
+	private Boolean idempotent = null;
+
+	/**
+	 * The executor the delegate is called on, or null for the main thread.
+	 *
+	 * @since 4.1
+	 */
+	private Executor deliveryExecutor = null;
+
     protected AMHttpRequest mRequest;
 
 	protected DocumentRequest mDocRequest;
@@ -237,12 +374,13 @@ public class AMRequest {
 	 */
 	public AMRequest(String serviceURL, RequestParams urlParams, RequestParams postParams, HTTPMethod httpMethod) {
 		this.accelaMobile = AccelaMobile.getInstance();
-		this.ownerContext = accelaMobile.ownerContext;
+		// The application context, so an in-flight request doesn't keep an activity alive.
+		this.ownerContext = (accelaMobile.ownerContext != null) ? accelaMobile.ownerContext.getApplicationContext() : null;
 		this.serviceURL = serviceURL;
 		this.urlParams = urlParams;
         this.postParams = postParams;
 		this.httpMethod = httpMethod;
-		this.tag = String.valueOf(new Random().nextInt(100));
+		this.tag = String.valueOf(TAG_SEQUENCE.incrementAndGet());
         requestQueue = AMRequestQueueManager.buildAMRequestQueue();
 	}
 
@@ -269,10 +407,31 @@ public class AMRequest {
 	 * @since 1.0
 	 */
 	public void cancelRequest() {
+		AMRequestScheduler scheduler = this.scheduler;
+		if (scheduler != null) {
+			this.scheduler = null;
+			scheduler.remove(this);
+		}
+		AMAutoBatcher autoBatcher = this.autoBatcher;
+		if (autoBatcher != null) {
+			this.autoBatcher = null;
+			autoBatcher.remove(this);
+		}
+		// A request already sent in a batch has no transfer of its own, the flag drops its part of the batch response.
+		this.isCancelled = true;
+		stopTransfer();
+	}
+
+	/**
+	 * Stop the network part of the request without reporting anything to its delegate, a deferred request is paused this way.
+	 */
+	void stopTransfer() {
 		if(mRequest !=null)
             mRequest.cancel();
 		if (mDocRequest !=null )
-			mDocRequest.cancel();
+			AMDocRequestManager.getAMDocumentManager(this.ownerContext).cancelRequest(mDocRequest);
+		if (mImageContainer != null)
+			mImageContainer.cancelRequest();
 	}
 
 	/**
@@ -287,15 +446,25 @@ public class AMRequest {
 
 
     private HashMap<String, String> generateHttpHeader(){
-        HashMap<String, String> httpHeader = new HashMap<String, String>();
-        // Add app version and app id to HTTP header
-        httpHeader.put(HEADER_X_ACCELA_APPVERSION, accelaMobile.getAppVersion());
-        httpHeader.put(HEADER_X_ACCELA_ENVIRONMENT, accelaMobile.environment.name());
-        httpHeader.put(HEADER_X_ACCELA_APPSECRET, accelaMobile.appSecret);
-        httpHeader.put(HEADER_X_ACCELA_APPID, accelaMobile.appId);
-
-        httpHeader.put(HEADER_X_ACCELA_AGENCY, accelaMobile.getAgency());
-        httpHeader.put("Accept", "*/*");
+        // The session headers are built once, each request only copies them and adds its own.
+        AuthorizationManager authorizationManager = accelaMobile.authorizationManager;
+        String accessToken = (authorizationManager != null) ? authorizationManager.getAccessToken() : null;
+        String agency = accelaMobile.getAgency();
+        HeaderTemplate template = headerTemplate;
+        if (template == null || !template.matches(accelaMobile, agency, accessToken)) {
+            template = new HeaderTemplate(accelaMobile, agency, accessToken);
+            headerTemplate = template;
+        }
+        int headerCount = template.headers.size() + ((requestHttpHeader != null) ? requestHttpHeader.size() : 0) + 1;
+        HashMap<String, String> httpHeader = new HashMap<String, String>(headerCount * 4 / 3 + 1);
+        httpHeader.putAll(template.headers);
+        if (RequestType.IMAGE.equals(this.requestType)) {
+            httpHeader.put("Accept", "image/*");
+        }
+        // Token requests go without the access token, which may be the expired one they replace.
+        if (RequestType.AUTHENTICATION.equals(this.requestType)) {
+            httpHeader.remove("Authorization");
+        }
 
         if(requestHttpHeader!=null && requestHttpHeader.get(AMRequest.IS_ALL_AGENCIES)!=null){
             httpHeader.put(HEADER_X_ACCELA_AGENCIES, requestHttpHeader.get(AMRequest.IS_ALL_AGENCIES));
@@ -305,19 +474,6 @@ public class AMRequest {
 
         if(requestHttpHeader!=null && requestHttpHeader.get(AMRequest.ENVIRONMENT_NAME)!=null){
             httpHeader.put(HEADER_X_ACCELA_ENVIRONMENT, requestHttpHeader.get(AMRequest.ENVIRONMENT_NAME));
-        }else {
-			httpHeader.put(HEADER_X_ACCELA_ENVIRONMENT, accelaMobile.environment.name());
-		}
-
-
-        httpHeader.put(HEADER_X_ACCELA_APPPLATFORM, accelaMobile.getAppPlatform());
-        // Add access token or app secret to HTTP header
-        AuthorizationManager authorizationManager = accelaMobile.authorizationManager;
-        if ((authorizationManager != null) && (authorizationManager.getAccessToken() != null)) {
-            httpHeader.put("Authorization", accelaMobile.authorizationManager.getAccessToken());
-        }
-        else if ((accelaMobile != null) && (accelaMobile.appSecret != null)) {
-            httpHeader.put(HEADER_X_ACCELA_APPSECRET, accelaMobile.appSecret);
         }
 
         if(requestHttpHeader!=null){   //copy the requestHttpHeader
@@ -347,13 +503,55 @@ public class AMRequest {
         } else {
             this.requestDelegate = defaultRequestDelegate;
         }
+        joinRequestGroup();
         HashMap<String, String> httpHeader = generateHttpHeader();
         String serializeURL = assembleUrlWithParams(this.serviceURL, this.urlParams);
 		this.requestDelegate.onStart();
-		AMImageLoader.getAMImageLoader(ownerContext).loadImage(serializeURL, httpHeader, this.requestDelegate, maxWidth, maxHeight, scaleType);
+		mImageContainer = AMImageLoader.getAMImageLoader(ownerContext).loadImage(serializeURL, httpHeader, this.requestDelegate, maxWidth, maxHeight, scaleType, toVolleyPriority());
         return this;
     }
 
+	/**
+	 * The headers every request of a session carries, for the token, agency and environment they were built with.
+	 */
+	private static final class HeaderTemplate {
+		final String accessToken;
+		final String agency;
+		final AccelaMobile.Environment environment;
+		final String appId;
+		final String appSecret;
+		final Map<String, String> headers;
+
+		HeaderTemplate(AccelaMobile accelaMobile, String agency, String accessToken) {
+			this.accessToken = accessToken;
+			this.agency = agency;
+			this.environment = accelaMobile.environment;
+			this.appId = accelaMobile.appId;
+			this.appSecret = accelaMobile.appSecret;
+			Map<String, String> headers = new HashMap<String, String>();
+			headers.put(HEADER_X_ACCELA_APPVERSION, accelaMobile.getAppVersion());
+			headers.put(HEADER_X_ACCELA_ENVIRONMENT, environment.name());
+			headers.put(HEADER_X_ACCELA_APPSECRET, appSecret);
+			headers.put(HEADER_X_ACCELA_APPID, appId);
+			headers.put(HEADER_X_ACCELA_AGENCY, agency);
+			headers.put("Accept", "application/json");
+			headers.put(HEADER_X_ACCELA_APPPLATFORM, accelaMobile.getAppPlatform());
+			if (accessToken != null) {
+				headers.put("Authorization", accessToken);
+			}
+			this.headers = Collections.unmodifiableMap(headers);
+		}
+
+		boolean matches(AccelaMobile accelaMobile, String agency, String accessToken) {
+			return equal(this.accessToken, accessToken) && equal(this.agency, agency) && this.environment == accelaMobile.environment
+					&& equal(this.appId, accelaMobile.appId) && equal(this.appSecret, accelaMobile.appSecret);
+		}
+
+		private static boolean equal(String a, String b) {
+			return (a == null) ? b == null : a.equals(b);
+		}
+	}
+
 	/**
 	 * Download a resized image to a cache. This is suitable to download small images which may need cache for reuse, for example: thumbnails on a list view.
 	 *
@@ -372,10 +570,11 @@ public class AMRequest {
         } else {
             this.requestDelegate = defaultRequestDelegate;
         }
+        joinRequestGroup();
         HashMap<String, String> httpHeader = generateHttpHeader();
         String serializeURL = assembleUrlWithParams(this.serviceURL, this.urlParams);
 		this.requestDelegate.onStart();
-		AMImageLoader.getAMImageLoader(ownerContext).loadImage(serializeURL, httpHeader, this.requestDelegate, maxWidth, maxHeight);
+		mImageContainer = AMImageLoader.getAMImageLoader(ownerContext).loadImage(serializeURL, httpHeader, this.requestDelegate, maxWidth, maxHeight, ImageView.ScaleType.CENTER_INSIDE, toVolleyPriority());
         return this;
     }
 
@@ -395,10 +594,11 @@ public class AMRequest {
         } else {
             this.requestDelegate = defaultRequestDelegate;
         }
+        joinRequestGroup();
         HashMap<String, String> httpHeader = generateHttpHeader();
         String serializeURL = assembleUrlWithParams(this.serviceURL, this.urlParams);
 		this.requestDelegate.onStart();
-        AMImageLoader.getAMImageLoader(ownerContext).loadImage(serializeURL, httpHeader, this.requestDelegate);
+        mImageContainer = AMImageLoader.getAMImageLoader(ownerContext).loadImage(serializeURL, httpHeader, this.requestDelegate, toVolleyPriority());
         return this;
     }
 
@@ -412,12 +612,23 @@ public class AMRequest {
 	 */
     public AMRequest downloadDocument(RequestParams paramData, String localFilePath, AMDocDownloadRequest.AMDownloadDelegate downloadRequest){
         HashMap<String, String> httpHeader = generateHttpHeader();
+        httpHeader.put("Accept", "*/*");
         String serializeURL = assembleUrlWithParams(this.serviceURL, this.urlParams);
         AMDocRequestManager documentManager = AMDocRequestManager.getAMDocumentManager(this.ownerContext);
-		mDocRequest = AMRequestFactory.createAMDocDownloadRequest(serializeURL, httpHeader, paramData, localFilePath, downloadRequest);
-        documentManager.addRequest(mDocRequest);
+		if (requestGroup != null) {
+			downloadRequest = requestGroup.join(this, downloadRequest);
+		}
+		AMDocDownloadRequest docDownloadRequest = AMRequestFactory.createAMDocDownloadRequest(serializeURL, httpHeader, paramData, localFilePath, downloadRequest);
+		if (docDownloadRequest != null) {
+			docDownloadRequest.setDeadline(deadlineFromNow());
+		}
+		mDocRequest = docDownloadRequest;
 		downloadRequest.onStart();
-		documentManager.startRequest();
+		if (documentManager.addRequest(mDocRequest)) {
+			documentManager.startRequest();
+		} else {
+			documentManager.rejectRequest(mDocRequest);
+		}
         return this;
     }
 
@@ -431,13 +642,44 @@ public class AMRequest {
 	 * @since 1.0
 	 */
 	public AMRequest sendRequest(AMRequestDelegate requestDelegate) throws JSONException {
+		startRequest(requestDelegate);
+		dispatchRequest();
+		return this;
+	}
+
+	/**
+	 * Start the request like {@link #sendRequest(AMRequestDelegate)}, but leave it to the auto-batcher, which sends it
+	 * together with the requests issued around the same time.
+	 */
+	AMRequest sendBatched(AMAutoBatcher autoBatcher, AMRequestDelegate requestDelegate) {
+		startRequest(requestDelegate);
+		this.autoBatcher = autoBatcher;
+		autoBatcher.add(this);
+		return this;
+	}
+
+	/**
+	 * Take the request back from its auto-batcher once its batch is sent.
+	 */
+	void setAutoBatcher(AMAutoBatcher autoBatcher) {
+		this.autoBatcher = autoBatcher;
+	}
+
+	private void startRequest(AMRequestDelegate requestDelegate) {
 		// Initialize request delegate
 		if (requestDelegate != null) {
 			this.requestDelegate = requestDelegate;
 		} else {
 			this.requestDelegate = defaultRequestDelegate;
 		}
+		joinRequestGroup();
 		this.requestDelegate.onStart();
+	}
+
+	/**
+	 * Send a request which has been started, on its own.
+	 */
+	void dispatchRequest() throws JSONException {
         HashMap<String, String> httpHeader = generateHttpHeader();
 
 		String serializeURL = assembleUrlWithParams(this.serviceURL, this.urlParams);
@@ -447,37 +689,63 @@ public class AMRequest {
 				{
                     mRequest = AMRequestFactory.createLoginRequest(serializeURL, Request.Method.GET, httpHeader, null, false, this.requestDelegate);
 
+                }else if (isTypedRequest()) {
+                    mRequest = createBoundJsonRequest(serializeURL, Request.Method.GET, httpHeader, null);
+                }else if (streamingResponse) {
+                    mRequest = AMRequestFactory.createStreamingJsonRequest(serializeURL, Request.Method.GET, httpHeader, null, this.requestDelegate);
                 }else{
-                    mRequest = AMRequestFactory.createJsonRequest(serializeURL, Request.Method.GET, httpHeader, null, false, this.requestDelegate);
+                    mRequest = AMRequestFactory.createJsonRequest(serializeURL, Request.Method.GET, httpHeader, null, shouldCache, this.requestDelegate);
+                    mRequest.setCacheTtl(cacheTtl);
+                    mRequest.setStaleTtl(staleWhileRevalidate);
 				}
-                if (mRequest!=null)
-                    requestQueue.addToRequestQueue(mRequest);
+                enqueueRequest();
 				break;
 			case POST:
 				if (postParams == null) {
                     mRequest = AMRequestFactory.createJsonRequest(serializeURL, Request.Method.POST, httpHeader, null, false, this.requestDelegate);
-                    requestQueue.addToRequestQueue(mRequest);
+                    enqueueRequest();
 				} else {
 					String contentType = null;
 					if (RequestType.AUTHENTICATION.equals(this.requestType))
 					{
                         mRequest = AMRequestFactory.createLoginRequest(serializeURL, Request.Method.POST, httpHeader, postParams.getAuthBody(), false, this.requestDelegate);
-                        requestQueue.addToRequestQueue(mRequest);
+                        enqueueRequest();
                     } else if (RequestType.MULTIPART.equals(this.requestType)){
                         AMDocRequestManager documentManager = AMDocRequestManager.getAMDocumentManager(this.ownerContext);
-						mDocRequest = AMRequestFactory.createAMMultiPartRequests(serializeURL, httpHeader, postParams, this.requestDelegate);
-                        documentManager.addRequest(mDocRequest);
-                        documentManager.startRequest();
+						AMMultiPartRequest multiPartRequest = AMRequestFactory.createAMMultiPartRequests(serializeURL, httpHeader, postParams, this.requestDelegate);
+						if (resumableUpload && multiPartRequest != null && this.ownerContext != null) {
+							AMUploadJournal uploadJournal = new AMUploadJournal(this.ownerContext);
+							uploadId = uploadJournal.save(uploadId, serializeURL, requestHttpHeader, postParams);
+							multiPartRequest.setUploadJournal(uploadJournal, uploadId);
+						}
+						if (multiPartRequest != null) {
+							multiPartRequest.setDeadline(deadlineFromNow());
+							if (idempotent != null) {
+								multiPartRequest.setIdempotent(idempotent);
+							}
+						}
+						mDocRequest = multiPartRequest;
+                        if (documentManager.addRequest(mDocRequest)) {
+                            documentManager.startRequest();
+                        } else {
+                            documentManager.rejectRequest(mDocRequest);
+                        }
+					} else if (isTypedRequest()) {
+                        mRequest = createBoundJsonRequest(serializeURL, Request.Method.POST, httpHeader, postParams.getStringBody());
+                        enqueueRequest();
+					} else if (streamingResponse) {
+                        mRequest = AMRequestFactory.createStreamingJsonRequest(serializeURL, Request.Method.POST, httpHeader, postParams.getStringBody(), this.requestDelegate);
+                        enqueueRequest();
 					} else {
                         mRequest = AMRequestFactory.createJsonRequest(serializeURL, Request.Method.POST, httpHeader, postParams.getStringBody(), false, this.requestDelegate);
-                        requestQueue.addToRequestQueue(mRequest);
+                        enqueueRequest();
 					}
 				}
 				break;
 			case PUT:
 				if (postParams == null) {
                     mRequest = AMRequestFactory.createJsonRequest(serializeURL, Request.Method.PUT, httpHeader, null, false, this.requestDelegate);
-                    requestQueue.addToRequestQueue(mRequest);
+                    enqueueRequest();
 				} else {
 					String contentType = null;
 					if (RequestType.AUTHENTICATION.equals(this.requestType))
@@ -485,7 +753,7 @@ public class AMRequest {
 						contentType = "application/x-www-form-urlencoded";
                         httpHeader.put("Content-Type", contentType);
                         mRequest = AMRequestFactory.createJsonRequest(serializeURL, Request.Method.PUT, httpHeader, postParams.getAuthBody(), false, this.requestDelegate);
-                        requestQueue.addToRequestQueue(mRequest);
+                        enqueueRequest();
 					}
 					else if (RequestType.MULTIPART.equals(this.requestType))
 					{
@@ -498,17 +766,16 @@ public class AMRequest {
 						contentType = "application/json";
                         httpHeader.put("Content-Type", contentType);
                         mRequest = AMRequestFactory.createJsonRequest(serializeURL, Request.Method.PUT, httpHeader, postParams.getStringBody(), false, this.requestDelegate);
-                        requestQueue.addToRequestQueue(mRequest);
+                        enqueueRequest();
 					}
 				}
 				break;
 			case DELETE:
                 mRequest = AMRequestFactory.createJsonRequest(serializeURL, Request.Method.DELETE, httpHeader, null, false, this.requestDelegate);
-                requestQueue.addToRequestQueue(mRequest);
+                enqueueRequest();
 				break;
 			default:
 			}
-		return this;
 	}
 
 
@@ -688,6 +955,305 @@ public class AMRequest {
 		this.requestType = requestType;
 	}
 
+	/**
+	 * Set whether the response of a GET request should be cached. It takes effect only when the
+	 * request queue is built with a disk cache, see {@link AMRequestQueueManager#buildAMRequestQueue(Context, int, int)}.
+	 * Expired entries are revalidated with their ETag or Last-Modified date, and a 304 response is delivered from the stored body.
+	 *
+	 * @param shouldCache true to read from and write to the response cache.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void setShouldCache(boolean shouldCache) {
+		this.shouldCache = shouldCache;
+	}
+
+	/**
+	 * Get the value of property shouldCache.
+	 *
+	 * @return The value of property shouldCache.
+	 *
+	 * @since 4.1
+	 */
+	public boolean shouldCache() {
+		return this.shouldCache;
+	}
+
+	/**
+	 * Set how long a cached response stays fresh when the server sends no Cache-Control or Expires headers.
+	 *
+	 * @param cacheTtl Time to live in milliseconds, 0 to revalidate with the server on every request.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void setCacheTtl(long cacheTtl) {
+		this.cacheTtl = cacheTtl;
+	}
+
+	/**
+	 * Enable stale-while-revalidate for a cached GET request. When the cached response has expired by less than
+	 * the given window, the delegate receives it immediately through {@link AMRequestDelegate#onSuccess(JSONObject, boolean)}
+	 * flagged as stale, then the request goes to the server and the delegate is called again only if the response changed.
+	 * Caching is turned on for the request as well.
+	 *
+	 * @param staleWhileRevalidate Window in milliseconds after the response stops being fresh, 0 to disable.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void setStaleWhileRevalidate(long staleWhileRevalidate) {
+		this.staleWhileRevalidate = staleWhileRevalidate;
+		if (staleWhileRevalidate > 0) {
+			this.shouldCache = true;
+		}
+	}
+
+	/**
+	 * Set whether an attachment upload is recorded until it completes. An upload which couldn't connect to the server
+	 * is retried automatically, and if the process is killed before it completes, it can be sent again with
+	 * {@link AMRequestSender#resumePendingUploads(AMRequestDelegate)}.
+	 *
+	 * @param resumableUpload true to record the upload.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void setResumableUpload(boolean resumableUpload) {
+		this.resumableUpload = resumableUpload;
+	}
+
+	/**
+	 * Resend the upload recorded under the given journal ID, its record is replaced rather than duplicated.
+	 */
+	void setUploadId(String uploadId) {
+		this.uploadId = uploadId;
+	}
+
+	/**
+	 * Set whether a GET or POST response is parsed while it is read. Each object of its result array is then handed to
+	 * {@link AMRequestDelegate#onResultItem(JSONObject, int)} as soon as it is parsed, and {@link AMRequestDelegate#onSuccess(JSONObject)}
+	 * receives the rest of the response without the result array. It keeps large search results from being held in memory at once.
+	 * Streamed responses are neither cached nor retried.
+	 *
+	 * @param streamingResponse true to stream the response.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void setStreamingResponse(boolean streamingResponse) {
+		this.streamingResponse = streamingResponse;
+	}
+
+	/**
+	 * Set the binder of a typed GET or POST request. When the request is sent with an {@link AMTypedRequestDelegate},
+	 * the objects of the result array are bound to model objects while the response is read, and handed to
+	 * {@link AMTypedRequestDelegate#onSuccess(java.util.List, JSONObject)}. Typed responses are not cached.
+	 *
+	 * @param resultBinder The binder of the result array, or null to receive JSON.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void setResultBinder(AMJsonBinder<?> resultBinder) {
+		this.resultBinder = resultBinder;
+	}
+
+	/**
+	 * Set the priority of the request. By default image requests are LOW and other requests NORMAL.
+	 * Set HIGH or IMMEDIATE for requests a user is waiting on, so they are sent before background traffic.
+	 * It must be set before the request is sent.
+	 *
+	 * @param priority The priority, or null for the default priority.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void setPriority(RequestPriority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * Get the priority of the request.
+	 *
+	 * @return The priority set by {@link #setPriority(RequestPriority)}, or null for the default priority.
+	 *
+	 * @since 4.1
+	 */
+	public RequestPriority getPriority() {
+		return this.priority;
+	}
+
+	/**
+	 * Raise the priority of a request which has already been sent, when a user ends up waiting on it.
+	 */
+	void raisePriority(RequestPriority priority) {
+		if (this.priority != null && this.priority.compareTo(priority) >= 0) {
+			return;
+		}
+		this.priority = priority;
+		if (mRequest != null) {
+			requestQueue.raisePriority(mRequest, toVolleyPriority());
+		}
+	}
+
+	/**
+	 * Set the total time the request may take once sent, including the time it waits in the queue and its retries.
+	 * The connect and read timeouts of each attempt are cut to the time left, and once it has passed the request fails
+	 * with {@link AMError#ERROR_CODE_DEADLINE_EXCEEDED} instead of being tried again. It applies to API requests and
+	 * document transfers, and must be set before the request is sent.
+	 *
+	 * @param timeBudgetMs The time budget in milliseconds, or 0 for no limit.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void setTimeBudget(long timeBudgetMs) {
+		this.timeBudgetMs = Math.max(0, timeBudgetMs);
+	}
+
+	/**
+	 * Get the total time the request may take once sent.
+	 *
+	 * @return The time budget in milliseconds set by {@link #setTimeBudget(long)}, or 0 for no limit.
+	 *
+	 * @since 4.1
+	 */
+	public long getTimeBudget() {
+		return this.timeBudgetMs;
+	}
+
+	/**
+	 * Set whether the request can safely be sent more than once. GET, PUT and DELETE requests are retried after a
+	 * timeout or a gateway error by default, POST requests are not, as the server may already have applied them.
+	 * Mark a POST which only reads, such as a search, or an upload which carries an idempotency key, as idempotent
+	 * to have it retried too. Requests refused with
+	 * 429 or 503 are always retried, after the delay asked for by the server. It must be set before the request is sent.
+	 *
+	 * @param idempotent True if the request can safely be sent again.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void setIdempotent(boolean idempotent) {
+		this.idempotent = idempotent;
+	}
+
+	/**
+	 * Get whether the request was marked as safe to send more than once.
+	 *
+	 * @return The value set by {@link #setIdempotent(boolean)}, or null if it is decided by the HTTP method.
+	 *
+	 * @since 4.1
+	 */
+	public Boolean getIdempotent() {
+		return this.idempotent;
+	}
+
+	private long deadlineFromNow() {
+		return (timeBudgetMs > 0) ? SystemClock.elapsedRealtime() + timeBudgetMs : 0;
+	}
+
+	/**
+	 * Add the request to a group, so it is cancelled together with the other requests of the group, see {@link AMRequestGroup}.
+	 * Its delegate is then released when the group is cancelled. It must be set before the request is sent.
+	 *
+	 * @param requestGroup The group, or null.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void setRequestGroup(AMRequestGroup requestGroup) {
+		this.requestGroup = requestGroup;
+	}
+
+	/**
+	 * Get the group of the request.
+	 *
+	 * @return The group set by {@link #setRequestGroup(AMRequestGroup)}, or null.
+	 *
+	 * @since 4.1
+	 */
+	public AMRequestGroup getRequestGroup() {
+		return this.requestGroup;
+	}
+
+	/**
+	 * Set the executor the delegate of the request is called on, instead of the main thread. Use a background executor
+	 * when the response is written to a database, for instance by sync workers. The delegate must not touch views then.
+	 * It must be set before the request is sent. Images and document transfers are always delivered on the main thread.
+	 *
+	 * @param deliveryExecutor The executor, or null for the main thread.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void setDeliveryExecutor(Executor deliveryExecutor) {
+		this.deliveryExecutor = deliveryExecutor;
+	}
+
+	/**
+	 * Get the executor the delegate of the request is called on.
+	 *
+	 * @return The executor set by {@link #setDeliveryExecutor(Executor)}, or null for the main thread.
+	 *
+	 * @since 4.1
+	 */
+	public Executor getDeliveryExecutor() {
+		return this.deliveryExecutor;
+	}
+
+	/**
+	 * Hand the request over to a scheduler, or take it back once it has completed.
+	 */
+	void setScheduler(AMRequestScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	private Request.Priority toVolleyPriority() {
+		return (priority != null) ? Request.Priority.valueOf(priority.name()) : null;
+	}
+
+	private void enqueueRequest() {
+		if (mRequest == null) {
+			return;
+		}
+		if (priority != null) {
+			mRequest.setPriority(toVolleyPriority());
+		}
+		if (deliveryExecutor != null) {
+			mRequest.setDeliveryExecutor(deliveryExecutor);
+		}
+		mRequest.setTag(requestGroup != null ? requestGroup : getTag());
+		mRequest.setDeadline(deadlineFromNow());
+		if (idempotent != null) {
+			mRequest.setIdempotent(idempotent);
+		}
+		if (endpointKey != null) {
+			mRequest.setCircuitKey(endpointKey);
+		}
+		requestQueue.addToRequestQueue(mRequest, scheduler == null);
+	}
+
+	/**
+	 * Hand the delegate over to the request group, if any: it is then released when the group is cancelled.
+	 */
+	private void joinRequestGroup() {
+		if (requestGroup != null) {
+			this.requestDelegate = requestGroup.join(this, this.requestDelegate);
+		}
+	}
+
+	private boolean isTypedRequest() {
+		return resultBinder != null && requestDelegate instanceof AMTypedRequestDelegate;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private AMHttpRequest createBoundJsonRequest(String url, int method, HashMap<String, String> httpHeader, String requestBody) {
+		return AMRequestFactory.createBoundJsonRequest(url, method, httpHeader, requestBody, (AMJsonBinder) resultBinder, (AMTypedRequestDelegate) requestDelegate);
+	}
+
 	/**
 	 * Set the value of property tag.
 	 *
@@ -705,42 +1271,112 @@ public class AMRequest {
 
 
 
+	/**
+	 * Set the key of the endpoint, which the circuit breaker uses instead of the one derived from the URL.
+	 */
+	void setEndpointKey(String endpointKey) {
+		this.endpointKey = endpointKey;
+	}
+
+	/**
+	 * Builder reused by the URL assembly of each thread, dropped when a long URL made it grow too much.
+	 */
+	private static final ThreadLocal<StringBuilder> urlBuilder = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+
+	private static final int MAX_REUSED_URL_BUILDER = 4096;
+
+	private static final String LANGUAGE_PARAM = "lang";
+
+	/**
+	 * The default locale and its encoded lang parameter, computed again only when the locale changes.
+	 */
+	private static volatile LanguageParam languageParam;
+
+	private static String languageParam() {
+		Locale locale = Locale.getDefault();
+		LanguageParam cached = languageParam;
+		if (cached != null && cached.locale.equals(locale)) {
+			return cached.param;
+		}
+		StringBuilder builder = new StringBuilder(LANGUAGE_PARAM).append('=');
+		AMUrlEncoder.appendFormEncoded(builder, locale.getLanguage() + "_" + locale.getCountry());
+		String param = builder.toString();
+		languageParam = new LanguageParam(locale, param);
+		return param;
+	}
+
+	/**
+	 * The lang parameter encoded for a locale.
+	 */
+	private static final class LanguageParam {
+		final Locale locale;
+		final String param;
+
+		LanguageParam(Locale locale, String param) {
+			this.locale = locale;
+			this.param = param;
+		}
+	}
+
 	/**
 	 * Private method, used to assemble URL with query string..
+	 * The lang parameter of the default locale is added unless the URL or the parameters already have one, the parameters
+	 * of the caller are left as they are.
 	 */
 	String assembleUrlWithParams(String url, RequestParams requestParams) {
-		//AMLogger.logError("In AMRequest.assembleUrlWithParams()");
-        if(requestParams==null)
-            return url;
-		boolean urlContainsLanguage = (url != null) && (url.contains("lang="));
-        Map<String, String> urlParams = requestParams.getUrlParams();
-		boolean paramsContainsLanguage = (urlParams != null) && (urlParams.containsKey("lang"));
-		if ((!urlContainsLanguage) && (!paramsContainsLanguage)) {
-			String languageCode = String.format("%s_%s", Locale.getDefault().getLanguage(),Locale.getDefault().getCountry());
-			if (this.urlParams == null) {
-                Map<String, String> params = new HashMap<String, String>();
-                params.put("lang", languageCode);
-				this.urlParams = new RequestParams();
-                this.urlParams.setUrlParams(params);
-			} else {
-                Map<String, String> params = requestParams.getUrlParams();
-                params.put("lang", languageCode);
+		if (requestParams == null) {
+			return url;
+		}
+		this.urlParams = requestParams;
+		Map<String, String> params = requestParams.getUrlParams();
+		boolean hasParams = (params != null) && (!params.isEmpty());
+		int queryStart = url.indexOf('?');
+		boolean addLanguage = ((params == null) || (!params.containsKey(LANGUAGE_PARAM))) && (!hasQueryParam(url, queryStart, LANGUAGE_PARAM));
+		if (!hasParams && !addLanguage) {
+			return url;
+		}
+		StringBuilder builder = urlBuilder.get();
+		builder.setLength(0);
+		builder.append(url).append(queryStart < 0 ? '?' : '&');
+		if (hasParams) {
+			requestParams.appendParamString(builder);
+		}
+		if (addLanguage) {
+			if (hasParams) {
+				builder.append('&');
+			}
+			builder.append(languageParam());
+		}
+		String assembledUrl = builder.toString();
+		if (builder.capacity() > MAX_REUSED_URL_BUILDER) {
+			urlBuilder.remove();
+		}
+		return assembledUrl;
+	}
+
+	/**
+	 * Check whether the query of the URL, which starts after the given index, has a parameter of the given name.
+	 * Only whole parameter names match, "slang=" is not a lang parameter.
+	 */
+	private static boolean hasQueryParam(String url, int queryStart, String name) {
+		if (queryStart < 0) {
+			return false;
+		}
+		int start = queryStart + 1;
+		while (start > 0) {
+			int end = start + name.length();
+			if (url.startsWith(name, start)
+					&& (end == url.length() || url.charAt(end) == '=' || url.charAt(end) == '&' || url.charAt(end) == '#')) {
+				return true;
 			}
+			start = url.indexOf('&', start) + 1;
 		}
-		//Log.d("DEBUG", "************* In AMRequest.assembleUrlWithParams(): url = " + url);
-		if (requestParams != null) {
-	    	this.urlParams = requestParams;
-	    	String paramString = requestParams.getParamString();
-	    	//Log.d("DEBUG", "************* In AMRequest.assembleUrlWithParams(): paramString = " + paramString);
-	    	if (!url.contains("?")) {
-	    		//Log.d("DEBUG", "		==> Add: url.contains(\"?\") == false ");
-	    		url += "?" + paramString;
-	    	} else {
-	    		//Log.d("DEBUG", "		==> Skip: url.contains(\"?\") == true ");
-	    		url += "&" + paramString;
-	    	}
-		}
-		return url;
+		return false;
 	}
 
 
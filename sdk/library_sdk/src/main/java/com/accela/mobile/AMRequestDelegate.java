@@ -34,6 +34,33 @@ public abstract class AMRequestDelegate extends HttpResponseLogHandler {
 
 	public void onSuccess(JSONObject content) {}
 
+	/**
+	 * Fired when a JSON response is received. With stale-while-revalidate enabled, see {@link AMRequest#setStaleWhileRevalidate(long)},
+	 * it may be fired first with a stale cached response, then again with the fresh one only if it has changed.
+	 * The default implementation forwards to {@link #onSuccess(JSONObject)}.
+	 *
+	 * @param content The JSON response.
+	 * @param isStale true if the content comes from an expired cache entry and a refresh is in progress.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void onSuccess(JSONObject content, boolean isStale) {
+		onSuccess(content);
+	}
+
+	/**
+	 * Fired for each object of the "result" array of a streamed response, see {@link AMRequest#setStreamingResponse(boolean)},
+	 * as soon as it has been read. The items arrive in order, before {@link #onSuccess(JSONObject)} is fired with the rest of the response.
+	 *
+	 * @param item The object read from the result array.
+	 * @param index The position of the object in the result array.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void onResultItem(JSONObject item, int index) {}
+
 	public void onSuccess(Bitmap bitmap) {}
 
 	/**
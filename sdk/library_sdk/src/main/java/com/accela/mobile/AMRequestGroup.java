@@ -0,0 +1,414 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.accela.mobile.http.AMDocDownloadRequest;
+import com.accela.mobile.http.AMRequestQueueManager;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  A group of requests bound to a scope, such as an Activity or a Fragment, which are cancelled together when the scope
+ *  goes away, see {@link AMRequestSender#forGroup(AMRequestGroup)} and {@link AMRequestSender#cancelGroup(AMRequestGroup)}.
+ *  Cancelling the group reaches the queued and running API requests, the document transfers and the image loads.
+ *
+ *  The delegates of the requests of a group are held until the requests complete, and released as soon as the group
+ *  is cancelled, so a cancelled group doesn't keep its scope alive. Cancel the group when the scope goes away, or
+ *  create it with {@link #forActivity(Activity)}: until then, the delegates keep what they reference alive.
+ *
+ * @since 4.1
+ */
+public class AMRequestGroup {
+	/**
+	 * The requests of the group which haven't completed, with the delegates forwarding to their own delegates.
+	 */
+	private final Map<AMRequest, Member> members = new HashMap<AMRequest, Member>();
+
+	/**
+	 * Create a group for an explicit scope, call {@link #cancel()} when the scope goes away.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public AMRequestGroup() {
+	}
+
+	/**
+	 * Create a group which is cancelled when the given activity is destroyed.
+	 * Before Android 4.0 the activity isn't watched, call {@link #cancel()} from its onDestroy() instead.
+	 *
+	 * @param activity The activity the requests of the group belong to.
+	 *
+	 * @return The new group.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public static AMRequestGroup forActivity(Activity activity) {
+		AMRequestGroup requestGroup = new AMRequestGroup();
+		if (activity != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+			requestGroup.cancelOnDestroy(activity);
+		}
+		return requestGroup;
+	}
+
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	private void cancelOnDestroy(Activity activity) {
+		final Application application = activity.getApplication();
+		if (application == null) {
+			return;
+		}
+		// The callbacks only know the activity weakly, so they don't keep a destroyed activity alive either.
+		final WeakReference<Activity> activityReference = new WeakReference<Activity>(activity);
+		application.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+			@Override
+			public void onActivityDestroyed(Activity destroyed) {
+				Activity owner = activityReference.get();
+				if (owner == null || owner == destroyed) {
+					application.unregisterActivityLifecycleCallbacks(this);
+					cancel();
+				}
+			}
+
+			@Override
+			public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+			@Override
+			public void onActivityStarted(Activity activity) {}
+
+			@Override
+			public void onActivityResumed(Activity activity) {}
+
+			@Override
+			public void onActivityPaused(Activity activity) {}
+
+			@Override
+			public void onActivityStopped(Activity activity) {}
+
+			@Override
+			public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+		});
+	}
+
+	/**
+	 * Cancel all the requests of the group which haven't completed. Their delegates aren't called anymore.
+	 * The group can be used for new requests afterwards.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void cancel() {
+		List<AMRequest> requests;
+		synchronized (this) {
+			requests = new ArrayList<AMRequest>(members.keySet());
+			for (Member member : members.values()) {
+				if (member != null) {
+					member.release();
+				}
+			}
+			members.clear();
+		}
+		// Queued API requests are tagged with the group.
+		AMRequestQueueManager.buildAMRequestQueue().getRequestQueue().cancelAll(this);
+		for (AMRequest request : requests) {
+			request.cancelRequest();
+		}
+	}
+
+	/**
+	 * Get the number of requests of the group which haven't completed.
+	 *
+	 * @return The number of requests.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public synchronized int size() {
+		return members.size();
+	}
+
+	/**
+	 * Add a request to the group, and get the delegate to hand to the request in place of the given one.
+	 */
+	AMRequestDelegate join(AMRequest request, AMRequestDelegate requestDelegate) {
+		if (requestDelegate instanceof AMTypedRequestDelegate) {
+			return add(request, new TypedMemberDelegate<Object>(this, request, (AMTypedRequestDelegate<?>) requestDelegate));
+		}
+		if (requestDelegate != null) {
+			return add(request, new MemberDelegate(this, request, requestDelegate));
+		}
+		add(request, null);
+		return null;
+	}
+
+	/**
+	 * Add a document download to the group, and get the delegate to hand to the download in place of the given one.
+	 */
+	AMDocDownloadRequest.AMDownloadDelegate join(AMRequest request, AMDocDownloadRequest.AMDownloadDelegate downloadDelegate) {
+		if (downloadDelegate != null) {
+			return add(request, new MemberDownloadDelegate(this, request, downloadDelegate));
+		}
+		add(request, null);
+		return null;
+	}
+
+	private synchronized <T extends Member> T add(AMRequest request, T member) {
+		members.put(request, member);
+		return member;
+	}
+
+	private synchronized void leave(AMRequest request) {
+		members.remove(request);
+	}
+
+	/**
+	 * A delegate standing for the delegate of a request of the group.
+	 */
+	private interface Member {
+		/**
+		 * Let go of the delegate of the request, its callbacks are dropped from now on.
+		 */
+		void release();
+	}
+
+	/**
+	 * Forwards to the delegate of a request of the group until the request completes or the group is cancelled,
+	 * and takes the request out of the group once it completes.
+	 */
+	private static class MemberDelegate extends AMRequestDelegate implements Member {
+		private final WeakReference<AMRequestGroup> groupReference;
+		private final AMRequest request;
+		private volatile AMRequestDelegate requestDelegate;
+
+		MemberDelegate(AMRequestGroup requestGroup, AMRequest request, AMRequestDelegate requestDelegate) {
+			this.groupReference = new WeakReference<AMRequestGroup>(requestGroup);
+			this.request = request;
+			this.requestDelegate = requestDelegate;
+		}
+
+		@Override
+		public void release() {
+			requestDelegate = null;
+		}
+
+		private void complete() {
+			requestDelegate = null;
+			AMRequestGroup requestGroup = groupReference.get();
+			if (requestGroup != null) {
+				requestGroup.leave(request);
+			}
+		}
+
+		@Override
+		public void onStart() {
+			AMRequestDelegate requestDelegate = this.requestDelegate;
+			if (requestDelegate != null) {
+				requestDelegate.onStart();
+			}
+		}
+
+		@Override
+		public void onSuccess(JSONObject content) {
+			AMRequestDelegate requestDelegate = this.requestDelegate;
+			if (requestDelegate != null) {
+				requestDelegate.onSuccess(content);
+			}
+			complete();
+		}
+
+		@Override
+		public void onSuccess(JSONObject content, boolean isStale) {
+			AMRequestDelegate requestDelegate = this.requestDelegate;
+			if (requestDelegate != null) {
+				requestDelegate.onSuccess(content, isStale);
+			}
+			if (!isStale) {
+				complete();
+			}
+		}
+
+		@Override
+		public void onResultItem(JSONObject item, int index) {
+			AMRequestDelegate requestDelegate = this.requestDelegate;
+			if (requestDelegate != null) {
+				requestDelegate.onResultItem(item, index);
+			}
+		}
+
+		@Override
+		public void onSuccess(Bitmap bitmap) {
+			AMRequestDelegate requestDelegate = this.requestDelegate;
+			if (requestDelegate != null) {
+				requestDelegate.onSuccess(bitmap);
+			}
+			// An image which isn't in memory is first delivered empty, then once it is loaded.
+			if (bitmap != null) {
+				complete();
+			}
+		}
+
+		@Override
+		public void onFailure(AMError error) {
+			AMRequestDelegate requestDelegate = this.requestDelegate;
+			if (requestDelegate != null) {
+				requestDelegate.onFailure(error);
+			}
+			complete();
+		}
+	}
+
+	/**
+	 * {@link MemberDelegate} of a typed request.
+	 */
+	private static class TypedMemberDelegate<T> extends AMTypedRequestDelegate<T> implements Member {
+		private final WeakReference<AMRequestGroup> groupReference;
+		private final AMRequest request;
+		private volatile AMTypedRequestDelegate<T> requestDelegate;
+
+		@SuppressWarnings("unchecked")
+		TypedMemberDelegate(AMRequestGroup requestGroup, AMRequest request, AMTypedRequestDelegate<?> requestDelegate) {
+			this.groupReference = new WeakReference<AMRequestGroup>(requestGroup);
+			this.request = request;
+			this.requestDelegate = (AMTypedRequestDelegate<T>) requestDelegate;
+		}
+
+		@Override
+		public void release() {
+			requestDelegate = null;
+		}
+
+		private void complete() {
+			requestDelegate = null;
+			AMRequestGroup requestGroup = groupReference.get();
+			if (requestGroup != null) {
+				requestGroup.leave(request);
+			}
+		}
+
+		@Override
+		public void onStart() {
+			AMTypedRequestDelegate<T> requestDelegate = this.requestDelegate;
+			if (requestDelegate != null) {
+				requestDelegate.onStart();
+			}
+		}
+
+		@Override
+		public void onSuccess(List<T> result) {
+			AMTypedRequestDelegate<T> requestDelegate = this.requestDelegate;
+			if (requestDelegate != null) {
+				requestDelegate.onSuccess(result);
+			}
+			complete();
+		}
+
+		@Override
+		public void onSuccess(List<T> result, JSONObject response) {
+			AMTypedRequestDelegate<T> requestDelegate = this.requestDelegate;
+			if (requestDelegate != null) {
+				requestDelegate.onSuccess(result, response);
+			}
+			complete();
+		}
+
+		@Override
+		public void onFailure(AMError error) {
+			AMTypedRequestDelegate<T> requestDelegate = this.requestDelegate;
+			if (requestDelegate != null) {
+				requestDelegate.onFailure(error);
+			}
+			complete();
+		}
+	}
+
+	/**
+	 * {@link MemberDelegate} of a document download.
+	 */
+	private static class MemberDownloadDelegate implements AMDocDownloadRequest.AMDownloadProgressDelegate, Member {
+		private final WeakReference<AMRequestGroup> groupReference;
+		private final AMRequest request;
+		private volatile AMDocDownloadRequest.AMDownloadDelegate downloadDelegate;
+
+		MemberDownloadDelegate(AMRequestGroup requestGroup, AMRequest request, AMDocDownloadRequest.AMDownloadDelegate downloadDelegate) {
+			this.groupReference = new WeakReference<AMRequestGroup>(requestGroup);
+			this.request = request;
+			this.downloadDelegate = downloadDelegate;
+		}
+
+		@Override
+		public void release() {
+			downloadDelegate = null;
+		}
+
+		private void complete() {
+			downloadDelegate = null;
+			AMRequestGroup requestGroup = groupReference.get();
+			if (requestGroup != null) {
+				requestGroup.leave(request);
+			}
+		}
+
+		@Override
+		public void onStart() {
+			AMDocDownloadRequest.AMDownloadDelegate downloadDelegate = this.downloadDelegate;
+			if (downloadDelegate != null) {
+				downloadDelegate.onStart();
+			}
+		}
+
+		@Override
+		public void onProgress(long bytesWritten, long totalBytes) {
+			AMDocDownloadRequest.AMDownloadDelegate downloadDelegate = this.downloadDelegate;
+			if (downloadDelegate instanceof AMDocDownloadRequest.AMDownloadProgressDelegate) {
+				((AMDocDownloadRequest.AMDownloadProgressDelegate) downloadDelegate).onProgress(bytesWritten, totalBytes);
+			}
+		}
+
+		@Override
+		public void onSuccess(File file) {
+			AMDocDownloadRequest.AMDownloadDelegate downloadDelegate = this.downloadDelegate;
+			if (downloadDelegate != null) {
+				downloadDelegate.onSuccess(file);
+			}
+			complete();
+		}
+
+		@Override
+		public void onFailure(AMError error) {
+			AMDocDownloadRequest.AMDownloadDelegate downloadDelegate = this.downloadDelegate;
+			if (downloadDelegate != null) {
+				downloadDelegate.onFailure(error);
+			}
+			complete();
+		}
+	}
+}
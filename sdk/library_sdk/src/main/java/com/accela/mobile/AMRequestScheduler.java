@@ -0,0 +1,581 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.accela.mobile.http.AMDocDownloadRequest;
+import com.accela.mobile.http.AMRequestQueueManager;
+import com.accela.mobile.http.RequestParams;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Scheduler of deferred requests, which only run when the conditions they were given hold, such as an unmetered
+ *  network or a charging device, see {@link AMRequestSender#sendDeferredRequest(String, RequestParams, java.util.Map, AMRequest.HTTPMethod, RequestParams, int, AMRequestDelegate)}.
+ *  Deferred requests also wait while requests sent for the user are in flight, up to {@link #MAX_FOREGROUND_DEFERRAL_MS},
+ *  and only a few of them run at once.
+ *
+ *  A running request whose conditions stop holding, for instance when the device moves from Wi-Fi to cellular, is
+ *  paused and started again once they hold. Its delegate isn't told about the pause. A download stops at the next chunk
+ *  and resumes from its partial file once the stopped transfer is over, idempotent API requests start over. Uploads and
+ *  other requests which aren't idempotent are left to complete, sending them again could apply them twice.
+ *  Cancelling a deferred request removes it from the scheduler.
+ *
+ * @since 4.1
+ */
+public class AMRequestScheduler {
+	/**
+	 * Run only on a network which isn't metered, such as Wi-Fi.
+	 *
+	 * @since 4.1
+	 */
+	public static final int CONDITION_UNMETERED_NETWORK = 1;
+
+	/**
+	 * Run only while the device is charging.
+	 *
+	 * @since 4.1
+	 */
+	public static final int CONDITION_CHARGING = 2;
+
+	/**
+	 * Run only while an activity of the app is visible. Before Android 4.0 the app is always considered in the foreground.
+	 *
+	 * @since 4.1
+	 */
+	public static final int CONDITION_FOREGROUND = 4;
+
+	/**
+	 * The default maximum number of deferred requests running at the same time.
+	 *
+	 * @since 4.1
+	 */
+	public static final int DEFAULT_MAX_RUNNING = 2;
+
+	/**
+	 * The longest a deferred request whose conditions hold waits for the requests sent for the user to be done.
+	 *
+	 * @since 4.1
+	 */
+	public static final long MAX_FOREGROUND_DEFERRAL_MS = 60 * 1000;
+
+	private static AMRequestScheduler instance;
+
+	private final Context context;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	/** Requests waiting for their conditions, in the order they were scheduled. Only used on the main thread. */
+	private final List<Deferred> waiting = new ArrayList<Deferred>();
+	/** Requests running. Only used on the main thread. */
+	private final List<Deferred> running = new ArrayList<Deferred>();
+	private int maxRunning = DEFAULT_MAX_RUNNING;
+	private int sequence = 0;
+	private boolean charging = false;
+	private int startedActivities = 0;
+	private boolean foreground = true;
+
+	private final Runnable evaluateRunnable = new Runnable() {
+		@Override
+		public void run() {
+			evaluate();
+		}
+	};
+
+	private AMRequestScheduler(Context context) {
+		this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+		BroadcastReceiver conditionReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				if (Intent.ACTION_POWER_CONNECTED.equals(intent.getAction())) {
+					charging = true;
+				} else if (Intent.ACTION_POWER_DISCONNECTED.equals(intent.getAction())) {
+					charging = false;
+				}
+				evaluate();
+			}
+		};
+		IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+		filter.addAction(Intent.ACTION_POWER_CONNECTED);
+		filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+		this.context.registerReceiver(conditionReceiver, filter);
+		// The battery state is sticky, reading it doesn't register anything.
+		Intent batteryStatus = this.context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		charging = batteryStatus != null && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+		// The scheduler is created for a request sent from the UI, so the app is taken to be in the foreground until an
+		// activity stops with none started.
+		if (this.context instanceof Application && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+			watchActivities((Application) this.context);
+		}
+		AMRequestQueueManager.buildAMRequestQueue().setForegroundIdleListener(new Runnable() {
+			@Override
+			public void run() {
+				handler.post(evaluateRunnable);
+			}
+		});
+	}
+
+	/**
+	 * Get the scheduler of the app. AccelaMobile must have been initialized.
+	 *
+	 * @return The scheduler, or null if AccelaMobile isn't initialized.
+	 *
+	 * @since 4.1
+	 */
+	public static synchronized AMRequestScheduler getInstance() {
+		if (instance == null) {
+			Context context = AccelaMobile.getInstance().ownerContext;
+			if (context == null) {
+				return null;
+			}
+			instance = new AMRequestScheduler(context);
+		}
+		return instance;
+	}
+
+	/**
+	 * Set the maximum number of deferred requests running at the same time.
+	 *
+	 * @param maxRunning The maximum number of requests, at least 1.
+	 *
+	 * @since 4.1
+	 */
+	public void setMaxRunning(final int maxRunning) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				AMRequestScheduler.this.maxRunning = Math.max(1, maxRunning);
+				evaluate();
+			}
+		});
+	}
+
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	private void watchActivities(Application application) {
+		application.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+			@Override
+			public void onActivityStarted(Activity activity) {
+				startedActivities++;
+				foreground = true;
+				evaluate();
+			}
+
+			@Override
+			public void onActivityStopped(Activity activity) {
+				startedActivities = Math.max(0, startedActivities - 1);
+				foreground = startedActivities > 0;
+				evaluate();
+			}
+
+			@Override
+			public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+			@Override
+			public void onActivityResumed(Activity activity) {}
+
+			@Override
+			public void onActivityPaused(Activity activity) {}
+
+			@Override
+			public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+			@Override
+			public void onActivityDestroyed(Activity activity) {}
+		});
+	}
+
+	/**
+	 * Hold an API request or an upload until its conditions are met, then send it with {@link AMRequest#sendRequest(AMRequestDelegate)}.
+	 */
+	void schedule(AMRequest request, int conditions, AMRequestDelegate requestDelegate) {
+		enqueue(new Deferred(request, conditions, requestDelegate, null, null, null));
+	}
+
+	/**
+	 * Hold a document download until its conditions are met, then start it with
+	 * {@link AMRequest#downloadDocument(RequestParams, String, AMDocDownloadRequest.AMDownloadDelegate)}.
+	 */
+	void schedule(AMRequest request, int conditions, RequestParams paramData, String localFilePath, AMDocDownloadRequest.AMDownloadDelegate downloadDelegate) {
+		enqueue(new Deferred(request, conditions, null, paramData, localFilePath, downloadDelegate));
+	}
+
+	private void enqueue(final Deferred deferred) {
+		deferred.request.setScheduler(this);
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				deferred.sequence = sequence++;
+				deferred.scheduledAt = SystemClock.elapsedRealtime();
+				waiting.add(deferred);
+				evaluate();
+			}
+		});
+	}
+
+	/**
+	 * Forget a request which was cancelled.
+	 */
+	void remove(final AMRequest request) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				Deferred deferred = find(waiting, request);
+				if (deferred == null) {
+					deferred = find(running, request);
+				}
+				if (deferred != null) {
+					waiting.remove(deferred);
+					running.remove(deferred);
+					deferred.generation++;
+					evaluate();
+				}
+			}
+		});
+	}
+
+	private void complete(final Deferred deferred, final int generation) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (deferred.generation == generation && running.remove(deferred)) {
+					deferred.request.setScheduler(null);
+					evaluate();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Handle the end of a transfer which was stopped by a pause. A download which completed anyway is done, otherwise the
+	 * request can be started again.
+	 */
+	private void stopped(final Deferred deferred, final int attempt, final File file) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (deferred.stoppingAttempt != attempt) {
+					return;
+				}
+				deferred.stoppingAttempt = 0;
+				if (file != null && waiting.remove(deferred)) {
+					deferred.request.setScheduler(null);
+					if (deferred.downloadDelegate != null) {
+						deferred.downloadDelegate.onSuccess(file);
+					}
+				}
+				evaluate();
+			}
+		});
+	}
+
+	/**
+	 * Pause the running requests whose conditions no longer hold, and start the waiting ones whose conditions hold.
+	 */
+	private void evaluate() {
+		for (int index = running.size() - 1; index >= 0; index--) {
+			Deferred deferred = running.get(index);
+			if (!conditionsHold(deferred.conditions) && deferred.canPause()) {
+				running.remove(index);
+				if (deferred.localFilePath != null) {
+					// Not started again until the stopped download is over, both would write the partial file.
+					deferred.stoppingAttempt = deferred.generation;
+				}
+				// Callbacks of the stopped transfer are ignored from now on.
+				deferred.generation++;
+				deferred.request.stopTransfer();
+				int position = 0;
+				while (position < waiting.size() && waiting.get(position).sequence < deferred.sequence) {
+					position++;
+				}
+				waiting.add(position, deferred);
+				AMLogger.logInfo("Paused deferred request %s", deferred.request.getServiceURL());
+			}
+		}
+		// While requests sent for the user are in flight, only requests which have waited too long start. The others are
+		// evaluated again once those requests are done, or when they have waited too long.
+		boolean userBusy = AMRequestQueueManager.buildAMRequestQueue().getForegroundRequestCount() > 0;
+		long now = SystemClock.elapsedRealtime();
+		long nextAging = Long.MAX_VALUE;
+		for (int index = 0; index < waiting.size() && running.size() < maxRunning; ) {
+			Deferred deferred = waiting.get(index);
+			long waited = now - deferred.scheduledAt;
+			if (userBusy && waited < MAX_FOREGROUND_DEFERRAL_MS) {
+				nextAging = Math.min(nextAging, MAX_FOREGROUND_DEFERRAL_MS - waited);
+				index++;
+			} else if (deferred.stoppingAttempt == 0 && conditionsHold(deferred.conditions)) {
+				waiting.remove(index);
+				running.add(deferred);
+				deferred.start();
+			} else {
+				index++;
+			}
+		}
+		if (nextAging != Long.MAX_VALUE) {
+			handler.removeCallbacks(evaluateRunnable);
+			handler.postDelayed(evaluateRunnable, nextAging);
+		}
+	}
+
+	private boolean conditionsHold(int conditions) {
+		NetworkInfo networkInfo;
+		ConnectivityManager connectivityManager;
+		try {
+			connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+			networkInfo = (connectivityManager != null) ? connectivityManager.getActiveNetworkInfo() : null;
+		} catch (SecurityException e) {
+			connectivityManager = null;
+			networkInfo = null;
+		}
+		if (connectivityManager != null && (networkInfo == null || !networkInfo.isConnected())) {
+			return false;
+		}
+		if ((conditions & CONDITION_UNMETERED_NETWORK) != 0 && (networkInfo == null || isMetered(connectivityManager, networkInfo))) {
+			return false;
+		}
+		if ((conditions & CONDITION_CHARGING) != 0 && !charging) {
+			return false;
+		}
+		if ((conditions & CONDITION_FOREGROUND) != 0 && !foreground) {
+			return false;
+		}
+		return true;
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static boolean isMetered(ConnectivityManager connectivityManager, NetworkInfo networkInfo) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			return connectivityManager.isActiveNetworkMetered();
+		}
+		int type = networkInfo.getType();
+		return type != ConnectivityManager.TYPE_WIFI && type != ConnectivityManager.TYPE_ETHERNET;
+	}
+
+	private static Deferred find(List<Deferred> deferreds, AMRequest request) {
+		for (Deferred deferred : deferreds) {
+			if (deferred.request == request) {
+				return deferred;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A request held by the scheduler, with what it takes to start it.
+	 */
+	private class Deferred {
+		final AMRequest request;
+		final int conditions;
+		final AMRequestDelegate requestDelegate;
+		final RequestParams paramData;
+		final String localFilePath;
+		final AMDocDownloadRequest.AMDownloadDelegate downloadDelegate;
+		int sequence;
+		/** When the request was scheduled, in {@link SystemClock#elapsedRealtime()} ms. */
+		long scheduledAt;
+		/** Incremented each time the request is started or stopped, so callbacks of a stopped attempt are told apart. */
+		volatile int generation = 0;
+		/** The attempt of a paused download which hasn't stopped yet, 0 for none. Only used on the main thread. */
+		int stoppingAttempt = 0;
+		/** Whether onStart() was already forwarded, it is only forwarded once. */
+		volatile boolean started = false;
+
+		Deferred(AMRequest request, int conditions, AMRequestDelegate requestDelegate, RequestParams paramData, String localFilePath,
+				AMDocDownloadRequest.AMDownloadDelegate downloadDelegate) {
+			this.request = request;
+			this.conditions = conditions;
+			this.requestDelegate = requestDelegate;
+			this.paramData = paramData;
+			this.localFilePath = localFilePath;
+			this.downloadDelegate = downloadDelegate;
+		}
+
+		void start() {
+			int attempt = ++generation;
+			if (request.getPriority() == null) {
+				request.setPriority(AMRequest.RequestPriority.LOW);
+			}
+			if (localFilePath != null) {
+				request.downloadDocument(paramData, localFilePath, new DeferredDownloadDelegate(this, attempt));
+				return;
+			}
+			DeferredDelegate delegate = new DeferredDelegate(this, attempt);
+			try {
+				request.sendRequest(delegate);
+			} catch (JSONException e) {
+				delegate.onFailure(new AMError(AMError.ERROR_CODE_EXCEPTION, AMError.ERROR_CODE_OTHER_ERROR, null, e.toString(), null));
+			}
+		}
+
+		boolean isCurrent(int attempt) {
+			return generation == attempt;
+		}
+
+		/**
+		 * Whether the request can be stopped and started again: a download resumes, an idempotent request can be sent again.
+		 */
+		boolean canPause() {
+			if (localFilePath != null) {
+				return true;
+			}
+			if (AMRequest.RequestType.MULTIPART.equals(request.getRequestType())) {
+				return false;
+			}
+			Boolean idempotent = request.getIdempotent();
+			return (idempotent != null) ? idempotent : request.getHttpMethod() != AMRequest.HTTPMethod.POST;
+		}
+
+		boolean firstStart() {
+			if (started) {
+				return false;
+			}
+			started = true;
+			return true;
+		}
+	}
+
+	/**
+	 * Forwards the callbacks of the current attempt of a deferred request to its delegate.
+	 */
+	private class DeferredDelegate extends AMRequestDelegate {
+		private final Deferred deferred;
+		private final int attempt;
+
+		DeferredDelegate(Deferred deferred, int attempt) {
+			this.deferred = deferred;
+			this.attempt = attempt;
+		}
+
+		@Override
+		public void onStart() {
+			if (deferred.isCurrent(attempt) && deferred.firstStart() && deferred.requestDelegate != null) {
+				deferred.requestDelegate.onStart();
+			}
+		}
+
+		@Override
+		public void onSuccess(JSONObject content) {
+			if (!deferred.isCurrent(attempt)) {
+				return;
+			}
+			if (deferred.requestDelegate != null) {
+				deferred.requestDelegate.onSuccess(content);
+			}
+			complete(deferred, attempt);
+		}
+
+		@Override
+		public void onSuccess(JSONObject content, boolean isStale) {
+			if (!deferred.isCurrent(attempt)) {
+				return;
+			}
+			if (deferred.requestDelegate != null) {
+				deferred.requestDelegate.onSuccess(content, isStale);
+			}
+			if (!isStale) {
+				complete(deferred, attempt);
+			}
+		}
+
+		@Override
+		public void onResultItem(JSONObject item, int index) {
+			if (deferred.isCurrent(attempt) && deferred.requestDelegate != null) {
+				deferred.requestDelegate.onResultItem(item, index);
+			}
+		}
+
+		@Override
+		public void onFailure(AMError error) {
+			if (!deferred.isCurrent(attempt)) {
+				return;
+			}
+			if (deferred.requestDelegate != null) {
+				deferred.requestDelegate.onFailure(error);
+			}
+			complete(deferred, attempt);
+		}
+	}
+
+	/**
+	 * {@link DeferredDelegate} of a document download.
+	 */
+	private class DeferredDownloadDelegate implements AMDocDownloadRequest.AMDownloadProgressDelegate {
+		private final Deferred deferred;
+		private final int attempt;
+
+		DeferredDownloadDelegate(Deferred deferred, int attempt) {
+			this.deferred = deferred;
+			this.attempt = attempt;
+		}
+
+		@Override
+		public void onStart() {
+			if (deferred.isCurrent(attempt) && deferred.firstStart() && deferred.downloadDelegate != null) {
+				deferred.downloadDelegate.onStart();
+			}
+		}
+
+		@Override
+		public void onProgress(long bytesWritten, long totalBytes) {
+			if (deferred.isCurrent(attempt) && deferred.downloadDelegate instanceof AMDocDownloadRequest.AMDownloadProgressDelegate) {
+				((AMDocDownloadRequest.AMDownloadProgressDelegate) deferred.downloadDelegate).onProgress(bytesWritten, totalBytes);
+			}
+		}
+
+		@Override
+		public void onSuccess(File file) {
+			if (!deferred.isCurrent(attempt)) {
+				stopped(deferred, attempt, file);
+				return;
+			}
+			if (deferred.downloadDelegate != null) {
+				deferred.downloadDelegate.onSuccess(file);
+			}
+			complete(deferred, attempt);
+		}
+
+		@Override
+		public void onFailure(AMError error) {
+			if (!deferred.isCurrent(attempt)) {
+				stopped(deferred, attempt, null);
+				return;
+			}
+			if (deferred.downloadDelegate != null) {
+				deferred.downloadDelegate.onFailure(error);
+			}
+			complete(deferred, attempt);
+		}
+	}
+}
@@ -21,13 +21,21 @@ package com.accela.mobile;
 import android.widget.ImageView;
 
 import com.accela.mobile.http.AMDocDownloadRequest;
+import com.accela.mobile.http.AMJsonBinder;
+import com.accela.mobile.http.AMOutboxJournal;
+import com.accela.mobile.http.AMUploadJournal;
 import com.accela.mobile.http.RequestParams;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * Created by eyang on 8/31/15.
@@ -40,6 +48,84 @@ import java.util.Map;
  */
 
 public class AMRequestSender {
+    /** The group the requests of this sender join, or null. */
+    private final AMRequestGroup requestGroup;
+
+    /** The batcher collecting the GET requests while auto-batching is on, or null. */
+    private static volatile AMAutoBatcher autoBatcher;
+
+    public AMRequestSender() {
+        this(null);
+    }
+
+    private AMRequestSender(AMRequestGroup requestGroup) {
+        this.requestGroup = requestGroup;
+    }
+
+    /**
+     * Get a sender whose requests join the given group, so they can be cancelled together when the screen which sent them goes away.
+     * Their delegates are released as soon as the group is cancelled, see {@link AMRequestGroup}.
+     *
+     * @param requestGroup The group of the requests, for instance from {@link AMRequestGroup#forActivity(android.app.Activity)}.
+     *
+     * @return The sender for the group.
+     *
+     * @since 4.1
+     */
+    public AMRequestSender forGroup(AMRequestGroup requestGroup) {
+        return new AMRequestSender(requestGroup);
+    }
+
+    /**
+     * Cancel the requests of a group which haven't completed: queued and running API requests, document transfers and image loads.
+     *
+     * @param requestGroup The group to cancel.
+     *
+     * @since 4.1
+     */
+    public static void cancelGroup(AMRequestGroup requestGroup) {
+        if (requestGroup != null) {
+            requestGroup.cancel();
+        }
+    }
+
+    /**
+     * Turn automatic batching on or off. While it is on, the GET requests sent with {@link #sendRequest(String, RequestParams, Map, AMRequestDelegate)},
+     * {@link #sendRequest(String, RequestParams, Map, AMRequest.HTTPMethod, RequestParams, AMRequestDelegate)} and the template variant
+     * within the window after the first one are sent together as one request to the batch endpoint, and each delegate receives the result of its own request.
+     * Requests with custom HTTP headers, a priority or caching are always sent on their own, so is a request alone in its window.
+     * A batch is sent as soon as it holds the maximum number of requests.
+     *
+     * @param windowMs How long to wait for more requests after the first one, in milliseconds, or 0 to turn auto-batching off.
+     * @param maxBatchSize The maximum number of requests in one batch.
+     *
+     * @since 4.1
+     */
+    public static synchronized void setAutoBatching(long windowMs, int maxBatchSize) {
+        AMAutoBatcher previous = autoBatcher;
+        autoBatcher = (windowMs > 0) ? new AMAutoBatcher(windowMs, maxBatchSize) : null;
+        if (previous != null) {
+            // Don't leave the requests collected so far waiting.
+            previous.flush();
+        }
+    }
+
+    private AMRequest newRequest(String serviceURL, RequestParams urlParams, RequestParams postParams, AMRequest.HTTPMethod httpMethod) {
+        AMRequest amRequest = new AMRequest(serviceURL, urlParams, postParams, httpMethod);
+        amRequest.setRequestGroup(requestGroup);
+        return amRequest;
+    }
+
+    /**
+     * Send a started request, through the auto-batcher if it is on and the request can go in a batch.
+     */
+    private static AMRequest send(AMRequest amRequest, Map<String, String> customHttpHeader, AMRequestDelegate requestDelegate) throws JSONException {
+        AMAutoBatcher batcher = autoBatcher;
+        if (batcher != null && AMAutoBatcher.accepts(amRequest, customHttpHeader)) {
+            return amRequest.sendBatched(batcher, requestDelegate);
+        }
+        return amRequest.sendRequest(requestDelegate);
+    }
     /**
      * Makes a request to the Accela Construct API endpoint with the given parameters using the given HTTP method as an asynchronous operation. This request transfer method is default for Get.
      *
@@ -53,8 +139,33 @@ public class AMRequestSender {
      * @since 4.1
      */
     public AMRequest sendRequest(String path, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequestDelegate requestDelegate) {
-        AMRequest amRequest = new AMRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, null, AMRequest.HTTPMethod.GET);
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, null, AMRequest.HTTPMethod.GET);
+        amRequest.setHttpHeader(customHttpHeader);
+        try {
+            return send(amRequest, customHttpHeader, requestDelegate);
+        } catch (JSONException e) {
+            AMLogger.logError(e.toString());
+        }
+        return amRequest;
+    }
+
+    /**
+     * Makes a GET request to the Accela Construct API endpoint as an asynchronous operation, optionally served from the response cache.
+     *
+     * @param path The path to the Accela Construct API endpoint.
+     * @param urlParams The collection of parameters associated with the specific URL.
+     * @param customHttpHeader The HTTP header fields in key value pairs.
+     * @param shouldCache true to serve the response from the cache when it is fresh and to store the new response in the cache.
+     * @param requestDelegate The request's delegate or null if it doesn't have a delegate.  See {@link AMRequestDelegate} for more information.
+     *
+     * @return The AMRequest object corresponding to this Accela Construct API endpoint call.
+     *
+     * @since 4.1
+     */
+    public AMRequest sendRequest(String path, RequestParams urlParams, Map<String, String> customHttpHeader, boolean shouldCache, AMRequestDelegate requestDelegate) {
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, null, AMRequest.HTTPMethod.GET);
         amRequest.setHttpHeader(customHttpHeader);
+        amRequest.setShouldCache(shouldCache);
         try {
             return amRequest.sendRequest(requestDelegate);
         } catch (JSONException e) {
@@ -78,8 +189,147 @@ public class AMRequestSender {
          * @since 4.1
          */
     public AMRequest sendRequest(String path, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequest.HTTPMethod httpMethod, RequestParams postData, AMRequestDelegate requestDelegate) {
-        AMRequest amRequest = new AMRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, postData, httpMethod);
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, postData, httpMethod);
+        amRequest.setHttpHeader(customHttpHeader);
+        try {
+            return send(amRequest, customHttpHeader, requestDelegate);
+        } catch (JSONException e) {
+            AMLogger.logError(e.toString());
+        }
+        return amRequest;
+    }
+
+    /**
+     * Makes a request to the Accela Construct API endpoint with the given priority as an asynchronous operation.
+     * Use HIGH or IMMEDIATE for requests the user is waiting on, and LOW for background refreshes.
+     *
+     * @param path The path to the Accela Construct API endpoint.
+     * @param urlParams The collection of parameters associated with the specific URL.
+     * @param customHttpHeader The HTTP header fields in key value pairs.
+     * @param httpMethod The HTTP data transfer method (such as GET, POST, PUT or DELETE).
+     * @param postData The content sent with the corresponding request(only used in POST or PUT method).
+     * @param priority The priority of the request, or null for the default priority.
+     * @param requestDelegate The request's delegate or null if it doesn't have a delegate.  See {@link AMRequestDelegate} for more information.
+     *
+     * @return The AMRequest object corresponding to this Accela Construct API endpoint call.
+     *
+     * @since 4.1
+     */
+    public AMRequest sendRequest(String path, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequest.HTTPMethod httpMethod, RequestParams postData, AMRequest.RequestPriority priority, AMRequestDelegate requestDelegate) {
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, postData, httpMethod);
+        amRequest.setHttpHeader(customHttpHeader);
+        amRequest.setPriority(priority);
+        try {
+            return amRequest.sendRequest(requestDelegate);
+        } catch (JSONException e) {
+            AMLogger.logError(e.toString());
+        }
+        return amRequest;
+    }
+
+    /**
+     * Makes a request to the Accela Construct API endpoint of a path template as an asynchronous operation.
+     * The path is expanded from the compiled template without parsing it again, and requests sent with the same template share
+     * one endpoint key, so the circuit breaker treats them as one endpoint whatever the values of the variables.
+     *
+     * @param template The path template of the Accela Construct API endpoint, see {@link AMUriTemplate#compile(String)}.
+     * @param pathVariables The values of the variables of the template by name, they are percent-encoded as path segments.
+     * @param urlParams The collection of parameters associated with the specific URL.
+     * @param customHttpHeader The HTTP header fields in key value pairs.
+     * @param httpMethod The HTTP data transfer method (such as GET, POST, PUT or DELETE).
+     * @param postData The content sent with the corresponding request(only used in POST or PUT method).
+     * @param requestDelegate The request's delegate or null if it doesn't have a delegate.  See {@link AMRequestDelegate} for more information.
+     *
+     * @return The AMRequest object corresponding to this Accela Construct API endpoint call.
+     *
+     * @throws IllegalArgumentException if a variable of the template has no value.
+     *
+     * @since 4.1
+     */
+    public AMRequest sendRequest(AMUriTemplate template, Map<String, String> pathVariables, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequest.HTTPMethod httpMethod, RequestParams postData, AMRequestDelegate requestDelegate) {
+        String host = AccelaMobile.getInstance().amApisHost;
+        StringBuilder serviceURL = new StringBuilder(host.length() + template.getTemplate().length() + 32);
+        serviceURL.append(host);
+        template.appendExpanded(serviceURL, pathVariables);
+        AMRequest amRequest = newRequest(serviceURL.toString(), urlParams, postData, httpMethod);
+        amRequest.setEndpointKey(template.getEndpointKey(host));
+        amRequest.setHttpHeader(customHttpHeader);
+        try {
+            return send(amRequest, customHttpHeader, requestDelegate);
+        } catch (JSONException e) {
+            AMLogger.logError(e.toString());
+        }
+        return amRequest;
+    }
+
+    /**
+     * Create a paginator for an endpoint which takes offset and limit URL parameters, such as the search endpoints. The pages are
+     * fetched with the given parameters plus the offset and limit, the next ones ahead of the consumer, see {@link AMPaginator}.
+     * Nothing is sent until the first page is asked for with {@link AMPaginator#loadNextPage()}.
+     * With a sender of a request group, cancelling the group cancels the page being fetched, cancel the paginator as well.
+     *
+     * @param path The path to the Accela Construct API endpoint.
+     * @param urlParams The collection of parameters associated with the specific URL, without the offset and limit.
+     * @param customHttpHeader The HTTP header fields in key value pairs.
+     * @param httpMethod The HTTP data transfer method (such as GET or POST).
+     * @param postData The content sent with each page request(only used in POST or PUT method).
+     * @param pageDelegate The delegate receiving the pages. See {@link AMPaginator.PageDelegate} for more information.
+     *
+     * @return The paginator, cancel it when the consumer goes away.
+     *
+     * @since 4.1
+     */
+    public AMPaginator paginate(String path, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequest.HTTPMethod httpMethod, RequestParams postData, AMPaginator.PageDelegate pageDelegate) {
+        return new AMPaginator(this, path, urlParams, customHttpHeader, httpMethod, postData, pageDelegate);
+    }
+
+    /**
+     * Makes a typed request to the Accela Construct API endpoint as an asynchronous operation. The objects of the result array are bound to
+     * model objects by the binder while the response is read, and handed to {@link AMTypedRequestDelegate#onSuccess(List)}.
+     *
+     * @param path The path to the Accela Construct API endpoint.
+     * @param urlParams The collection of parameters associated with the specific URL.
+     * @param customHttpHeader The HTTP header fields in key value pairs.
+     * @param httpMethod The HTTP data transfer method, GET or POST.
+     * @param postData The content sent with the corresponding request(only used in POST method).
+     * @param binder The binder of the objects of the result array. See {@link AMJsonBinder} for more information.
+     * @param requestDelegate The request's delegate.  See {@link AMTypedRequestDelegate} for more information.
+     *
+     * @return The AMRequest object corresponding to this Accela Construct API endpoint call.
+     *
+     * @since 4.1
+     */
+    public <T> AMRequest sendRequest(String path, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequest.HTTPMethod httpMethod, RequestParams postData, AMJsonBinder<T> binder, AMTypedRequestDelegate<T> requestDelegate) {
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, postData, httpMethod);
+        amRequest.setHttpHeader(customHttpHeader);
+        amRequest.setResultBinder(binder);
+        try {
+            return amRequest.sendRequest(requestDelegate);
+        } catch (JSONException e) {
+            AMLogger.logError(e.toString());
+        }
+        return amRequest;
+    }
+
+    /**
+     * Makes a request to the Accela Construct API endpoint as an asynchronous operation, and delivers the objects of the result array one by one
+     * to {@link AMRequestDelegate#onResultItem(JSONObject, int)} while the response is read. Meant for large searches.
+     *
+     * @param path The path to the Accela Construct API endpoint.
+     * @param urlParams The collection of parameters associated with the specific URL.
+     * @param customHttpHeader The HTTP header fields in key value pairs.
+     * @param httpMethod The HTTP data transfer method, GET or POST.
+     * @param postData The content sent with the corresponding request(only used in POST method).
+     * @param requestDelegate The request's delegate or null if it doesn't have a delegate.  See {@link AMRequestDelegate} for more information.
+     *
+     * @return The AMRequest object corresponding to this Accela Construct API endpoint call.
+     *
+     * @since 4.1
+     */
+    public AMRequest sendStreamingRequest(String path, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequest.HTTPMethod httpMethod, RequestParams postData, AMRequestDelegate requestDelegate) {
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, postData, httpMethod);
         amRequest.setHttpHeader(customHttpHeader);
+        amRequest.setStreamingResponse(true);
         try {
             return amRequest.sendRequest(requestDelegate);
         } catch (JSONException e) {
@@ -144,9 +394,31 @@ public class AMRequestSender {
      * @since 4.1
      */
     public AMRequest loadImage(String path, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequestDelegate requestDelegate, int maxWidth, int maxHeight, ImageView.ScaleType scaleType) {
-        AMRequest amRequest = new AMRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, null, AMRequest.HTTPMethod.GET);
+        return loadImage(path, urlParams, customHttpHeader, requestDelegate, maxWidth, maxHeight, scaleType, null);
+    }
+
+    /**
+     * Download a resized image to a cache with the given priority. Images are LOW priority by default, use a higher one
+     * for an image the user has asked to see.
+     *
+     * @param path The path to the Accela Construct API end point.
+     * @param urlParams The collection of parameters associated with the specific URL.
+     * @param customHttpHeader The HTTP header fields in key value pairs.
+     * @param requestDelegate The request's delegate or null if it doesn't have a delegate.  See {@link AMRequestDelegate} for more information.
+     * @param maxWidth The maximum width of the returned image
+     * @param maxHeight The maximum height of the returned image
+     * @param scaleType The ScaleType of the image returned for display in a imageView.
+     * @param priority The priority of the request, or null for the default priority.
+     *
+     * @return The AMRequest object corresponding to this Accela Construct API end point call.
+     *
+     * @since 4.1
+     */
+    public AMRequest loadImage(String path, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequestDelegate requestDelegate, int maxWidth, int maxHeight, ImageView.ScaleType scaleType, AMRequest.RequestPriority priority) {
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, null, AMRequest.HTTPMethod.GET);
         amRequest.setHttpHeader(customHttpHeader);
         amRequest.setRequestType(AMRequest.RequestType.IMAGE);
+        amRequest.setPriority(priority);
         amRequest.loadImage(requestDelegate, maxWidth, maxHeight, scaleType);
         return amRequest;
     }
@@ -166,7 +438,7 @@ public class AMRequestSender {
      * @since 4.1
      */
     public AMRequest loadImage(String path, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequestDelegate requestDelegate, int maxWidth, int maxHeight) {
-        AMRequest amRequest = new AMRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, null, AMRequest.HTTPMethod.GET);
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, null, AMRequest.HTTPMethod.GET);
         amRequest.setHttpHeader(customHttpHeader);
         amRequest.setRequestType(AMRequest.RequestType.IMAGE);
         amRequest.loadImage(requestDelegate, maxWidth, maxHeight);
@@ -186,7 +458,7 @@ public class AMRequestSender {
      * @since 4.1
      */
     public AMRequest loadImage(String path, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequestDelegate requestDelegate) {
-        AMRequest amRequest = new AMRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, null, AMRequest.HTTPMethod.GET);
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, null, AMRequest.HTTPMethod.GET);
         amRequest.setHttpHeader(customHttpHeader);
         amRequest.setRequestType(AMRequest.RequestType.IMAGE);
         amRequest.loadImage(requestDelegate);
@@ -209,14 +481,147 @@ public class AMRequestSender {
      * @since 1.0
      */
     public AMRequest uploadAttachments(String path, RequestParams urlParams, RequestParams postParams, Map<String, String> fileInformation,  Map<String, String> customHttpHeader, AMRequestDelegate requestDelegate) {
-        AMRequest amRequest = new AMRequest(AccelaMobile.getInstance().amApisHost + path,  urlParams, null, AMRequest.HTTPMethod.POST);
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path,  urlParams, null, AMRequest.HTTPMethod.POST);
+        amRequest.setHttpHeader(customHttpHeader);
+        return amRequest.uploadAttachments(postParams, fileInformation, requestDelegate);
+    }
+
+    /**
+     *
+     * Uploads a set of binary files as an asynchronous operation, optionally recording the upload until it completes.
+     *
+     * @param path The path to the Accela Construct API endpoint.
+     * @param fileInformation The file collection of key-value pairs.
+     * 									 Note the key name is "fileName", and the value is file's full path.
+     * @param customHttpHeader The HTTP header fields in key value pairs.
+     * @param resumable true to record the upload, see {@link #resumePendingUploads(AMRequestDelegate)}.
+     * @param requestDelegate The request's delegate or null if it doesn't have a delegate.  See {@link AMRequestDelegate} for more information.
+     *
+     * @return The AMRequest object corresponding to this Accela Construct API endpoint call.
+     *
+     * @since 4.1
+     */
+    public AMRequest uploadAttachments(String path, RequestParams urlParams, RequestParams postParams, Map<String, String> fileInformation,  Map<String, String> customHttpHeader, boolean resumable, AMRequestDelegate requestDelegate) {
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path,  urlParams, null, AMRequest.HTTPMethod.POST);
         amRequest.setHttpHeader(customHttpHeader);
+        amRequest.setResumableUpload(resumable);
         return amRequest.uploadAttachments(postParams, fileInformation, requestDelegate);
     }
 
+    /**
+     *
+     * Send again the resumable uploads which didn't complete, typically because the app was killed while they were in progress.
+     * Call it once the user is signed in again.
+     *
+     * @param requestDelegate The delegate of the resent uploads, it is called once for each of them.
+     *
+     * @return The AMRequest objects of the resent uploads.
+     *
+     * @since 4.1
+     */
+    public List<AMRequest> resumePendingUploads(AMRequestDelegate requestDelegate) {
+        List<AMRequest> amRequests = new ArrayList<AMRequest>();
+        if (AccelaMobile.getInstance().ownerContext == null) {
+            return amRequests;
+        }
+        AMUploadJournal uploadJournal = new AMUploadJournal(AccelaMobile.getInstance().ownerContext);
+        for (AMUploadJournal.PendingUpload pendingUpload : uploadJournal.getPendingUploads()) {
+            AMRequest amRequest = newRequest(pendingUpload.url, null, pendingUpload.postParams, AMRequest.HTTPMethod.POST);
+            amRequest.setHttpHeader(pendingUpload.httpHeader);
+            amRequest.setRequestType(AMRequest.RequestType.MULTIPART);
+            amRequest.setResumableUpload(true);
+            amRequest.setUploadId(pendingUpload.uploadId);
+            try {
+                amRequest.sendRequest(requestDelegate);
+                amRequests.add(amRequest);
+            } catch (JSONException e) {
+                AMLogger.logWarn(e.toString());
+            }
+        }
+        return amRequests;
+    }
+
+
+    /**
+     *
+     * Queue a write request in the outbox, see {@link AMOutbox}. It is saved to disk and sent when the network allows,
+     * possibly after the app was restarted, so its result is reported to the {@link AMOutbox.ResultListener} instead of a delegate.
+     *
+     * @param path The path to the Accela Construct API endpoint.
+     * @param urlParams The collection of parameters associated with the specific URL.
+     * @param customHttpHeader The HTTP header fields in key value pairs.
+     * @param httpMethod The HTTP data transfer method (such as POST, PUT or DELETE).
+     * @param postData The JSON content sent with the request, or null.
+     * @param orderingKey Requests with the same key, typically the ID of the record they change, are sent one at a time in order. Null for no ordering.
+     * @param callbackId The ID the result is reported with, or null to generate one.
+     *
+     * @return The callback ID of the request, or null if it couldn't be queued.
+     *
+     * @since 4.1
+     */
+    public String queueRequest(String path, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequest.HTTPMethod httpMethod, RequestParams postData, String orderingKey, String callbackId) {
+        AMOutboxJournal.Entry entry = newOutboxEntry(path, urlParams, customHttpHeader, orderingKey, callbackId);
+        entry.method = httpMethod.name();
+        entry.body = (postData != null) ? postData.getStringBody() : null;
+        return enqueue(entry);
+    }
+
+    /**
+     *
+     * Queue an attachment upload in the outbox, see {@link AMOutbox}. The files must stay in place until the upload is reported,
+     * its result is reported to the {@link AMOutbox.ResultListener} instead of a delegate.
+     *
+     * @param path The path to the Accela Construct API endpoint.
+     * @param urlParams The collection of parameters associated with the specific URL.
+     * @param postParams The parameters sent with the files.
+     * @param fileInformation The file collection of key-value pairs.
+     * 									 Note the key name is "fileName", and the value is file's full path.
+     * @param customHttpHeader The HTTP header fields in key value pairs.
+     * @param orderingKey Requests with the same key, typically the ID of the record they change, are sent one at a time in order. Null for no ordering.
+     * @param callbackId The ID the result is reported with, or null to generate one.
+     *
+     * @return The callback ID of the upload, or null if it couldn't be queued.
+     *
+     * @since 4.1
+     */
+    public String queueUploadAttachments(String path, RequestParams urlParams, RequestParams postParams, Map<String, String> fileInformation, Map<String, String> customHttpHeader, String orderingKey, String callbackId) {
+        AMOutboxJournal.Entry entry = newOutboxEntry(path, urlParams, customHttpHeader, orderingKey, callbackId);
+        entry.method = AMRequest.HTTPMethod.POST.name();
+        entry.postParams = (postParams != null) ? postParams : new RequestParams();
+        if (fileInformation != null) {
+            for (Map.Entry<String, String> file : fileInformation.entrySet()) {
+                try {
+                    entry.postParams.put(file.getKey(), new File(file.getValue()));
+                } catch (FileNotFoundException e) {
+                    AMLogger.logWarn(e.toString());
+                }
+            }
+        }
+        return enqueue(entry);
+    }
+
+    private static AMOutboxJournal.Entry newOutboxEntry(String path, RequestParams urlParams, Map<String, String> customHttpHeader, String orderingKey, String callbackId) {
+        AMOutboxJournal.Entry entry = new AMOutboxJournal.Entry();
+        entry.callbackId = (callbackId != null) ? callbackId : UUID.randomUUID().toString();
+        entry.path = path;
+        entry.urlParams = (urlParams != null && urlParams.getUrlParams() != null) ? new HashMap<String, String>(urlParams.getUrlParams()) : null;
+        entry.httpHeader = customHttpHeader;
+        entry.orderingKey = orderingKey;
+        return entry;
+    }
+
+    private static String enqueue(AMOutboxJournal.Entry entry) {
+        AMOutbox outbox = AMOutbox.getInstance();
+        if (outbox == null || !outbox.enqueue(entry)) {
+            return null;
+        }
+        return entry.callbackId;
+    }
 
     /**
      * Download a set of binary files to local disk
+     * An interrupted download keeps its partial file next to localFile and is resumed by the next download to the same path,
+     * pass an {@link AMDocDownloadRequest.AMDownloadProgressDelegate} to be told about the progress.
      * @param path The path to the Accela Construct API endpoint.
      * @param urlParams The collection of parameters associated with the specific URL.
      * @param localFile The path for file.
@@ -224,11 +629,104 @@ public class AMRequestSender {
      * @since 4.1
      */
     public AMRequest downloadAttachment(String path, RequestParams urlParams, Map<String, String> customHttpHeader, String localFile, AMDocDownloadRequest.AMDownloadDelegate downloadDelegate) {
-        AMRequest amRequest = new AMRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, null, AMRequest.HTTPMethod.GET);
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, null, AMRequest.HTTPMethod.GET);
         amRequest.setHttpHeader(customHttpHeader);
         return amRequest.downloadDocument(urlParams, localFile, downloadDelegate);
     }
 
+    /**
+     * Makes a request to the Accela Construct API endpoint once the given conditions hold, see {@link AMRequestScheduler}.
+     * Use it for work the user isn't waiting for, such as prefetching, so it doesn't compete with interactive requests
+     * or use cellular data. The request runs at LOW priority unless another one is set.
+     *
+     * @param path The path to the Accela Construct API endpoint.
+     * @param urlParams The collection of parameters associated with the specific URL.
+     * @param customHttpHeader The HTTP header fields in key value pairs.
+     * @param httpMethod The HTTP data transfer method (such as GET, POST, PUT or DELETE).
+     * @param postData The content sent with the corresponding request(only used in POST or PUT method).
+     * @param conditions The conditions the request waits for, a combination of the AMRequestScheduler CONDITION_ flags, 0 to only wait for a network.
+     * @param requestDelegate The request's delegate or null if it doesn't have a delegate.  See {@link AMRequestDelegate} for more information.
+     *
+     * @return The AMRequest object corresponding to this Accela Construct API endpoint call, cancel it to drop the request.
+     *
+     * @since 4.1
+     */
+    public AMRequest sendDeferredRequest(String path, RequestParams urlParams, Map<String, String> customHttpHeader, AMRequest.HTTPMethod httpMethod, RequestParams postData, int conditions, AMRequestDelegate requestDelegate) {
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, postData, httpMethod);
+        amRequest.setHttpHeader(customHttpHeader);
+        return scheduleRequest(amRequest, conditions, requestDelegate);
+    }
+
+    /**
+     * Uploads a set of binary files once the given conditions hold, see {@link AMRequestScheduler}.
+     *
+     * @param path The path to the Accela Construct API endpoint.
+     * @param postParams The parameters sent with the files.
+     * @param fileInformation The file collection of key-value pairs.
+     * 									 Note the key name is "fileName", and the value is file's full path.
+     * @param customHttpHeader The HTTP header fields in key value pairs.
+     * @param conditions The conditions the upload waits for, a combination of the AMRequestScheduler CONDITION_ flags, 0 to only wait for a network.
+     * @param requestDelegate The request's delegate or null if it doesn't have a delegate.  See {@link AMRequestDelegate} for more information.
+     *
+     * @return The AMRequest object corresponding to this Accela Construct API endpoint call, cancel it to drop the upload.
+     *
+     * @since 4.1
+     */
+    public AMRequest uploadAttachmentsDeferred(String path, RequestParams urlParams, RequestParams postParams, Map<String, String> fileInformation, Map<String, String> customHttpHeader, int conditions, AMRequestDelegate requestDelegate) {
+        RequestParams uploadParams = (postParams != null) ? postParams : new RequestParams();
+        if (fileInformation != null) {
+            for (Map.Entry<String, String> file : fileInformation.entrySet()) {
+                try {
+                    uploadParams.put(file.getKey(), new File(file.getValue()));
+                } catch (FileNotFoundException e) {
+                    AMLogger.logWarn(e.toString());
+                }
+            }
+        }
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, uploadParams, AMRequest.HTTPMethod.POST);
+        amRequest.setHttpHeader(customHttpHeader);
+        amRequest.setRequestType(AMRequest.RequestType.MULTIPART);
+        return scheduleRequest(amRequest, conditions, requestDelegate);
+    }
+
+    /**
+     * Download a binary file to local disk once the given conditions hold, see {@link AMRequestScheduler}.
+     * A download paused because the conditions stopped holding resumes from its partial file.
+     *
+     * @param path The path to the Accela Construct API endpoint.
+     * @param urlParams The collection of parameters associated with the specific URL.
+     * @param localFile The path for file.
+     * @param conditions The conditions the download waits for, a combination of the AMRequestScheduler CONDITION_ flags, 0 to only wait for a network.
+     *
+     * @return The AMRequest object corresponding to this Accela Construct API endpoint call, cancel it to drop the download.
+     *
+     * @since 4.1
+     */
+    public AMRequest downloadAttachmentDeferred(String path, RequestParams urlParams, Map<String, String> customHttpHeader, String localFile, int conditions, AMDocDownloadRequest.AMDownloadDelegate downloadDelegate) {
+        AMRequest amRequest = newRequest(AccelaMobile.getInstance().amApisHost + path, urlParams, null, AMRequest.HTTPMethod.GET);
+        amRequest.setHttpHeader(customHttpHeader);
+        AMRequestScheduler scheduler = AMRequestScheduler.getInstance();
+        if (scheduler == null) {
+            return amRequest.downloadDocument(urlParams, localFile, downloadDelegate);
+        }
+        scheduler.schedule(amRequest, conditions, urlParams, localFile, downloadDelegate);
+        return amRequest;
+    }
+
+    private AMRequest scheduleRequest(AMRequest amRequest, int conditions, AMRequestDelegate requestDelegate) {
+        AMRequestScheduler scheduler = AMRequestScheduler.getInstance();
+        if (scheduler == null) {
+            try {
+                return amRequest.sendRequest(requestDelegate);
+            } catch (JSONException e) {
+                AMLogger.logWarn(e.toString());
+                return amRequest;
+            }
+        }
+        scheduler.schedule(amRequest, conditions, requestDelegate);
+        return amRequest;
+    }
+
 
     /**
      *
@@ -254,6 +752,21 @@ public class AMRequestSender {
      * @since 4.0
      */
     public static void batchCommit(AMBatchSession session, Map<String, String> customParams, AMBatchResponse.AMBatchRequestDelegate batchRequestDelegate){
+        batchCommit(session, customParams, null, batchRequestDelegate);
+    }
+
+    /**
+     *
+     * Commit the currently started batch request with the given priority.
+     *
+     * @param session The batch session instance.
+     * @param priority The priority of the batch request, or null for the default priority.
+     * @param batchRequestDelegate The delegate of batch session.
+     *
+     *
+     * @since 4.1
+     */
+    public static void batchCommit(AMBatchSession session, Map<String, String> customParams, AMRequest.RequestPriority priority, AMBatchResponse.AMBatchRequestDelegate batchRequestDelegate){
         final AMBatchSession batchSession = session;
         final AMBatchResponse.AMBatchRequestDelegate batchRequestDelegate1 = batchRequestDelegate;
         AMRequestDelegate requestDelegate = new AMRequestDelegate() {
@@ -291,6 +804,6 @@ public class AMRequestSender {
             }
         };
 
-        session.executeAsync(customParams, requestDelegate);
+        session.executeAsync(customParams, priority, requestDelegate);
     }
 }
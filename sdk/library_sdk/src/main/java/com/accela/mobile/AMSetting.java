@@ -89,6 +89,16 @@ public final class AMSetting {
      * @since 1.0
      */    
 	public static Boolean DebugMode = false;  		
+
+	/**
+	 * Flag for compressing request bodies.
+	 * When it is set to true, JSON bodies of POST and PUT requests larger than GZIP_REQUEST_BODY_THRESHOLD bytes are sent gzip encoded.
+	 * Only set it to true if the server accepts gzip encoded request bodies.
+	 *
+	 * @since 4.1
+	 */
+	public static Boolean GzipRequestBody = false;
+	public static final int GZIP_REQUEST_BODY_THRESHOLD = 4 * 1024;
 	
 	
 	/**
@@ -98,6 +108,12 @@ public final class AMSetting {
 	 * @since 2.3
 	 */
 	public static ResourceBundle getStringResourceBundle() {
+		// Every request and delegate asks for it, only look it up again when the language changes.
+		LocalizedBundle cached = localizedBundle;
+		Locale locale = Locale.getDefault();
+		if (cached != null && cached.locale.equals(locale)) {
+			return cached.bundle;
+		}
 		String bundleName = "com.accela.mobile.resources.localizable";
 		ResourceBundle stringResourceBundle = null;
 		try {
@@ -107,7 +123,24 @@ public final class AMSetting {
 		} catch (ArithmeticException e) {
 			AMLogger.logError(e.toString());
 		}
-		
+		if (stringResourceBundle != null) {
+			localizedBundle = new LocalizedBundle(locale, stringResourceBundle);
+		}
 		return stringResourceBundle;
 	}
+
+	private static volatile LocalizedBundle localizedBundle;
+
+	/**
+	 * The string resource bundle loaded for a language.
+	 */
+	private static final class LocalizedBundle {
+		final Locale locale;
+		final ResourceBundle bundle;
+
+		LocalizedBundle(Locale locale, ResourceBundle bundle) {
+			this.locale = locale;
+			this.bundle = bundle;
+		}
+	}
 }
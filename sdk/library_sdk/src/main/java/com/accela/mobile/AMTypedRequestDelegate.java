@@ -0,0 +1,56 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile;
+
+import com.accela.mobile.http.AMJsonBinder;
+
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ *  Delegate of a typed request, see {@link AMRequestSender#sendRequest(String, com.accela.mobile.http.RequestParams, java.util.Map, AMRequest.HTTPMethod, com.accela.mobile.http.RequestParams, AMJsonBinder, AMTypedRequestDelegate)}.
+ *  It receives the elements of the result array as model objects instead of a JSONObject.
+ *
+ * @since 4.1
+ */
+public abstract class AMTypedRequestDelegate<T> extends AMRequestDelegate {
+
+	/**
+	 * Fired when the response has been read, override to handle in your own code.
+	 *
+	 * @param result The model objects bound from the result array, in the order of the response.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public abstract void onSuccess(List<T> result);
+
+	/**
+	 * Fired when the response has been read. The default implementation forwards to {@link #onSuccess(List)}.
+	 *
+	 * @param result The model objects bound from the result array, in the order of the response.
+	 * @param response The rest of the response, such as its page information, without the result array.
+	 *
+	 *
+	 * @since 4.1
+	 */
+	public void onSuccess(List<T> result, JSONObject response) {
+		onSuccess(result);
+	}
+}
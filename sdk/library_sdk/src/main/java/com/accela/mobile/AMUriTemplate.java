@@ -0,0 +1,287 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile;
+
+import com.accela.mobile.http.AMUrlEncoder;
+import com.accela.mobile.http.RequestParams;
+import com.accela.mobile.http.volley.CircuitBreaker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  A compiled path template such as "/v4/documents/{documentId}/download", see
+ *  {@link AMRequestSender#sendRequest(AMUriTemplate, Map, RequestParams, Map, AMRequest.HTTPMethod, RequestParams, AMRequestDelegate)}.
+ *
+ *  The template is parsed once, expanding it only copies the literal parts and the encoded values into one builder.
+ *  Requests sent with the same template share its endpoint key, which the circuit breaker uses to tell endpoints apart.
+ *  Templates are immutable and can be kept in static fields and used from any thread.
+ *
+ * @since 4.1
+ */
+public final class AMUriTemplate {
+	/** Templates compiled from the same string are shared, up to this many. */
+	private static final int MAX_CACHED_TEMPLATES = 256;
+
+	private static final ConcurrentHashMap<String, AMUriTemplate> templates = new ConcurrentHashMap<String, AMUriTemplate>();
+
+	/** The placeholder of the ID segments in circuit keys, see {@link CircuitBreaker#keyOf(String)}. */
+	private static final String ID_PLACEHOLDER = "{}";
+
+	private final String template;
+	/** The literal parts, one more than the variables: literals[i] comes before variableNames[i]. */
+	private final String[] literals;
+	private final String[] variableNames;
+	private final int literalLength;
+
+	/** The endpoint key for the last host the template was used with. */
+	private volatile EndpointKey endpointKey;
+
+	private AMUriTemplate(String template) {
+		this.template = template;
+		List<String> literalList = new ArrayList<String>();
+		List<String> nameList = new ArrayList<String>();
+		int literalStart = 0;
+		int length = 0;
+		while (true) {
+			int open = template.indexOf('{', literalStart);
+			if (open < 0) {
+				break;
+			}
+			int close = template.indexOf('}', open);
+			int nested = template.indexOf('{', open + 1);
+			if (close < 0 || close == open + 1 || (nested >= 0 && nested < close)) {
+				throw new IllegalArgumentException("Malformed URI template: " + template);
+			}
+			literalList.add(template.substring(literalStart, open));
+			length += open - literalStart;
+			nameList.add(template.substring(open + 1, close));
+			literalStart = close + 1;
+		}
+		if (template.indexOf('}', literalStart) >= 0) {
+			throw new IllegalArgumentException("Malformed URI template: " + template);
+		}
+		literalList.add(template.substring(literalStart));
+		length += template.length() - literalStart;
+		this.literals = literalList.toArray(new String[literalList.size()]);
+		this.variableNames = nameList.toArray(new String[nameList.size()]);
+		this.literalLength = length;
+	}
+
+	/**
+	 * Compile a path template, whose variables are written in braces such as "{recordId}".
+	 * Compiling the same template again returns the same object.
+	 *
+	 * @param template The path template.
+	 *
+	 * @return The compiled template.
+	 *
+	 * @throws IllegalArgumentException if the braces of the template don't match.
+	 *
+	 * @since 4.1
+	 */
+	public static AMUriTemplate compile(String template) {
+		if (template == null) {
+			throw new IllegalArgumentException("URI template is null");
+		}
+		AMUriTemplate compiled = templates.get(template);
+		if (compiled == null) {
+			compiled = new AMUriTemplate(template);
+			if (templates.size() < MAX_CACHED_TEMPLATES) {
+				AMUriTemplate previous = templates.putIfAbsent(template, compiled);
+				if (previous != null) {
+					compiled = previous;
+				}
+			}
+		}
+		return compiled;
+	}
+
+	/**
+	 * Get the template the object was compiled from.
+	 *
+	 * @return The template string.
+	 *
+	 * @since 4.1
+	 */
+	public String getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Get the names of the variables of the template, in the order they appear.
+	 *
+	 * @return The variable names.
+	 *
+	 * @since 4.1
+	 */
+	public List<String> getVariableNames() {
+		return Collections.unmodifiableList(Arrays.asList(variableNames));
+	}
+
+	/**
+	 * Expand the template with the given values. Each value is percent-encoded as one path segment, commas are kept so
+	 * lists of IDs can be passed as one value.
+	 *
+	 * @param variables The values of the variables by name.
+	 *
+	 * @return The expanded path.
+	 *
+	 * @throws IllegalArgumentException if a variable has no value.
+	 *
+	 * @since 4.1
+	 */
+	public String expand(Map<String, String> variables) {
+		StringBuilder builder = new StringBuilder(literalLength + 16 * variableNames.length);
+		appendExpanded(builder, variables);
+		return builder.toString();
+	}
+
+	/**
+	 * Expand the template with values given in the order of the variables, see {@link #expand(Map)}.
+	 *
+	 * @param values The values of the variables.
+	 *
+	 * @return The expanded path.
+	 *
+	 * @throws IllegalArgumentException if the number of values doesn't match the number of variables.
+	 *
+	 * @since 4.1
+	 */
+	public String expand(String... values) {
+		if (values.length != variableNames.length) {
+			throw new IllegalArgumentException("URI template " + template + " takes " + variableNames.length + " values");
+		}
+		StringBuilder builder = new StringBuilder(literalLength + 16 * variableNames.length);
+		for (int i = 0; i < variableNames.length; i++) {
+			builder.append(literals[i]);
+			appendPathEncoded(builder, values[i]);
+		}
+		builder.append(literals[variableNames.length]);
+		return builder.toString();
+	}
+
+	/**
+	 * Append the template expanded with the given values to the builder.
+	 */
+	void appendExpanded(StringBuilder builder, Map<String, String> variables) {
+		for (int i = 0; i < variableNames.length; i++) {
+			String value = (variables != null) ? variables.get(variableNames[i]) : null;
+			if (value == null) {
+				throw new IllegalArgumentException("No value for " + variableNames[i] + " of URI template " + template);
+			}
+			builder.append(literals[i]);
+			appendPathEncoded(builder, value);
+		}
+		builder.append(literals[variableNames.length]);
+	}
+
+	/**
+	 * Get the key of the endpoint on the given host, in the form written by {@link CircuitBreaker#keyOf(String)}: the
+	 * segments holding a variable are replaced by its placeholder, as IDs are in the URLs of requests sent without a template.
+	 */
+	String getEndpointKey(String host) {
+		EndpointKey cached = endpointKey;
+		if (cached != null && cached.host.equals(host)) {
+			return cached.key;
+		}
+		StringBuilder url = new StringBuilder(host.length() + literalLength + 2 * variableNames.length);
+		url.append(host);
+		if (host.endsWith("/") && template.startsWith("/")) {
+			url.setLength(url.length() - 1);
+		}
+		for (int i = 0; i < variableNames.length; i++) {
+			url.append(literals[i]).append(ID_PLACEHOLDER);
+		}
+		url.append(literals[variableNames.length]);
+		String key = CircuitBreaker.keyOf(url.toString());
+		if (variableNames.length > 0) {
+			// A segment such as "{from}-{to}" holds IDs as a whole.
+			StringBuilder normalized = new StringBuilder(key.length());
+			int segmentStart = 0;
+			while (segmentStart <= key.length()) {
+				int segmentEnd = key.indexOf('/', segmentStart);
+				if (segmentEnd < 0) {
+					segmentEnd = key.length();
+				}
+				if (segmentStart > 0) {
+					normalized.append('/');
+				}
+				String segment = key.substring(segmentStart, segmentEnd);
+				normalized.append(segment.contains(ID_PLACEHOLDER) ? ID_PLACEHOLDER : segment);
+				segmentStart = segmentEnd + 1;
+			}
+			key = normalized.toString();
+		}
+		endpointKey = new EndpointKey(host, key);
+		return key;
+	}
+
+	@Override
+	public String toString() {
+		return template;
+	}
+
+	/**
+	 * Percent-encode a value as a path segment, keeping the unreserved characters and the sub-delimiters.
+	 */
+	private static void appendPathEncoded(StringBuilder builder, String value) {
+		int length = value.length();
+		int i = 0;
+		while (i < length) {
+			char c = value.charAt(i);
+			if (isPathSafe(c)) {
+				builder.append(c);
+				i++;
+			} else {
+				i = AMUrlEncoder.appendUtf8Escaped(builder, value, i);
+			}
+		}
+	}
+
+	private static boolean isPathSafe(char c) {
+		if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+			return true;
+		}
+		switch (c) {
+			case '-': case '.': case '_': case '~':
+			case '!': case '$': case '&': case '\'': case '(': case ')': case '*': case '+': case ',': case ';': case '=':
+			case ':': case '@':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * The endpoint key computed for a host.
+	 */
+	private static final class EndpointKey {
+		final String host;
+		final String key;
+
+		EndpointKey(String host, String key) {
+			this.host = host;
+			this.key = key;
+		}
+	}
+}
@@ -97,6 +97,14 @@ public class AccelaMobile {
 	 */
 	protected  ResourceBundle stringLoader = AMSetting.getStringResourceBundle();
 
+	/**
+	 * The version name and the platform description sent with each request, looked up once.
+	 *
+	 * @since 4.1
+	 */
+	private volatile String appVersion;
+	private volatile String appPlatform;
+
 	/**
 	 * The ID string of the application registered on developer portal.
 	 *
@@ -219,6 +227,23 @@ public class AccelaMobile {
         this.requestSender = new AMRequestSender();
 	}
 
+	/**
+	 *
+	 * Constructor with the given context, application Id, session delegate, server URLs and request queue settings.
+	 *
+	 * @param ownerContext The Android context which creates the current AccelaMobile instance.
+	 * @param appId The Id string of the current application.
+	 * @param appSecret The secret string of the current application.
+	 * @param environment The Environment enum type
+	 * @param sessionDelegate The receiever's delegate or null if it doesn't have a delegate.  See {@link AMSessionDelegate} for more information.
+	 * @param authHost The URL of cloud server for user authorization.
+	 * @param apisHost The URL of cloud server for service API calling.
+	 * @param netWorkThreadPoolSize Number of network dispatcher threads.
+	 * @param diskCacheSize Maximum size in bytes of the persistent response cache, or 0 to disable the cache.
+	 *
+	 *
+	 * @since 4.1
+	 */
 	public void initialize(Context ownerContext, String appId, String appSecret, Environment environment, AMSessionDelegate sessionDelegate, String authHost, String apisHost,
 						   int netWorkThreadPoolSize, int diskCacheSize) {
 		this.amAuthHost = (authHost !=null) ? authHost : AMSetting.AM_OAUTH_HOST;
@@ -228,7 +253,7 @@ public class AccelaMobile {
 		this.appId = appId;
 		this.appSecret = appSecret;
 		this.environment = environment;
-		AMRequestQueueManager.buildAMRequestQueue(netWorkThreadPoolSize, diskCacheSize);
+		AMRequestQueueManager.buildAMRequestQueue(ownerContext, netWorkThreadPoolSize, diskCacheSize);
 		this.authorizationManager = new AuthorizationManager();
 		this.authorizationManager.setSessionDelegate(sessionDelegate==null ? defaultSessionDelegate : sessionDelegate);
 
@@ -269,6 +294,9 @@ public class AccelaMobile {
 	 * public method, used to get version name from AndroidManifest.xml.
 	 */
 	public String getAppVersion(){
+		if (this.appVersion != null) {
+			return this.appVersion;
+		}
 		PackageInfo pkg = null;
         String appVersion = "1.0";
         try {
@@ -278,6 +306,7 @@ public class AccelaMobile {
 			if (stringLoader!=null)
         		AMLogger.logError("In AMRequest.getAppVersion(): NameNotFoundException " + stringLoader.getString("Log_Exception_Occured"), e.getMessage());
         }
+        this.appVersion = appVersion;
         return appVersion;
      }
 
@@ -285,13 +314,17 @@ public class AccelaMobile {
 	 * public method, used to get platform information from device.
 	 */
 	public String getAppPlatform(){
+		if (this.appPlatform != null) {
+			return this.appPlatform;
+		}
 		boolean isTablet = (ownerContext.getResources().getConfiguration().screenLayout
 	            & Configuration.SCREENLAYOUT_SIZE_MASK)
 	            >= Configuration.SCREENLAYOUT_SIZE_LARGE;
 	    String osType = (isTablet) ? "Android Tablet" : "Android Phone";
 		String osVersion = android.os.Build.VERSION.RELEASE; // e.g. osVersion = "1.6"
 		String deviceName = android.os.Build.MODEL;
-        return osType + "|" + osVersion + "|" + deviceName;
+        this.appPlatform = osType + "|" + osVersion + "|" + deviceName;
+        return this.appPlatform;
      }
 
 	/**
@@ -28,7 +28,9 @@ import android.net.Uri;
 
 import com.accela.mobile.AMRequest.HTTPMethod;
 import com.accela.mobile.AMRequest.RequestType;
+import com.accela.mobile.http.AMRequestQueueManager;
 import com.accela.mobile.http.RequestParams;
+import com.accela.mobile.http.volley.TokenRefresher;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -82,6 +84,20 @@ public class AuthorizationManager {
 	 */
 	private static final String REFRESH_TOKEN_KEY_IN_PREF_FILE = "refresh_token";
 
+	/**
+	 * The key of the access token expiry time stored in local SharedPreferences file.
+	 * 
+	 * @since 4.1
+	 */
+	private static final String TOKEN_EXPIRES_AT_KEY_IN_PREF_FILE = "access_token_expires_at";
+
+	/**
+	 * The access token is refreshed when it expires within this time, so requests don't go out with a token which lapses on the way.
+	 * 
+	 * @since 4.1
+	 */
+	private static final long TOKEN_REFRESH_MARGIN_MS = 60 * 1000;
+
     /**
      * The flag which indicates whether user profile should be saved to local storage after successful login.
      *
@@ -115,14 +131,21 @@ public class AuthorizationManager {
 	 * 
 	 * @since 3.0
 	 */
-	private String accessToken;
+	private volatile String accessToken;
 	
 	/**
 	 * The refresh token got from server.
 	 * 
 	 * @since 3.0
 	 */
-	private String refreshToken;
+	private volatile String refreshToken;
+
+	/**
+	 * The time the access token expires, in System.currentTimeMillis() milliseconds, or 0 if unknown.
+	 * 
+	 * @since 4.1
+	 */
+	private volatile long accessTokenExpiresAt = 0;
 
 	/**
 	 * The URL of authorization server.
@@ -254,10 +277,13 @@ public class AuthorizationManager {
 		// Load access token stored locally.
 		this.accessToken = sessionStorePrefs.getString(TOKEN_KEY_IN_PREF_FILE,null);
 		this.refreshToken = sessionStorePrefs.getString(REFRESH_TOKEN_KEY_IN_PREF_FILE,null);
+		this.accessTokenExpiresAt = sessionStorePrefs.getLong(TOKEN_EXPIRES_AT_KEY_IN_PREF_FILE, 0);
 		accelaMobile.agency = sessionStorePrefs.getString(AGENCY_KEY_IN_PREF_FILE, null);
 		this.user = sessionStorePrefs.getString(USER_KEY_IN_PREF_FILE, null);
 		if (accelaMobile.environment==null && sessionStorePrefs.getString(ENVIRONMENT_KEY_IN_PREF_FILE, null)!=null)
 			accelaMobile.environment = AccelaMobile.Environment.valueOf(sessionStorePrefs.getString(ENVIRONMENT_KEY_IN_PREF_FILE, null));
+		// API requests wait for one shared refresh when the token expires, instead of failing one by one.
+		AMRequestQueueManager.setTokenRefresher(new RequestTokenRefresher());
 	}
 
 	/**
@@ -299,6 +325,10 @@ public class AuthorizationManager {
         // Clear token.
 		accelaMobile.reset();
         clearAuthorizationAndToken(true);
+        // Cached responses belong to the user who logs out.
+        if (AMRequestQueueManager.isCacheEnabled()) {
+            AMRequestQueueManager.buildAMRequestQueue().clearCache();
+        }
 
         // Call session delegate.
         if (this.sessionDelegate != null) {
@@ -336,11 +366,13 @@ public class AuthorizationManager {
 		this.authorizationCode = null;
 		this.accessToken = null;
 		this.refreshToken = null;
+		this.accessTokenExpiresAt = 0;
 		// Clear the values in local session store.
 		if (clearSessionStore) {
 			SharedPreferences.Editor prefsWriter = sessionStorePrefs.edit();
 			prefsWriter.remove(TOKEN_KEY_IN_PREF_FILE);
 			prefsWriter.remove(REFRESH_TOKEN_KEY_IN_PREF_FILE);
+			prefsWriter.remove(TOKEN_EXPIRES_AT_KEY_IN_PREF_FILE);
 			prefsWriter.commit();
 		}
 	}
@@ -447,6 +479,36 @@ public class AuthorizationManager {
 		return this.refreshToken;
 	}
 
+	/**
+	 * 
+	 * Get the time the access token expires, from the expires_in field of the token response.
+	 * 
+	 * @return The expiry time in System.currentTimeMillis() milliseconds, or 0 if unknown.
+	 * 
+	 * @since 4.1
+	 */
+	public long getAccessTokenExpiresAt() {
+		return this.accessTokenExpiresAt;
+	}
+
+	/**
+	 * 
+	 * Handle a request rejected with HTTP 401. The session is only cleared if the rejected token is still the current one and
+	 * can't be refreshed, a token which was refreshed meanwhile or can still be refreshed keeps the session.
+	 * 
+	 * @param rejectedToken The access token the request was sent with, or null if unknown.
+	 * 
+	 * @since 4.1
+	 */
+	void handleUnauthorized(String rejectedToken) {
+		if (rejectedToken != null && !rejectedToken.equals(this.accessToken)) {
+			return;
+		}
+		if (this.refreshToken == null) {
+			clearAuthorizationAndToken(true);
+		}
+	}
+
 
     /**
      *
@@ -706,6 +768,11 @@ public class AuthorizationManager {
 		if (this.refreshToken != null) {
 			prefsWriter.putString(REFRESH_TOKEN_KEY_IN_PREF_FILE, this.refreshToken);
 		}
+		if (this.accessTokenExpiresAt > 0) {
+			prefsWriter.putLong(TOKEN_EXPIRES_AT_KEY_IN_PREF_FILE, this.accessTokenExpiresAt);
+		} else {
+			prefsWriter.remove(TOKEN_EXPIRES_AT_KEY_IN_PREF_FILE);
+		}
 		prefsWriter.commit();
 	}
 	
@@ -752,6 +819,107 @@ public class AuthorizationManager {
         return amRequest;
     }
 
+	/**
+	 * 
+	 * Get a new access token by refresh token without touching the session until the new token arrives, so requests
+	 * can keep using the current one meanwhile. Used by the request queue, which runs one refresh at a time.
+	 * 
+	 * @param listener Receives the new access token, or null if it couldn't be refreshed.
+	 * 
+	 * @since 4.1
+	 */
+	private void refreshTokenInBackground(final TokenRefresher.Listener listener) {
+		if (this.refreshToken == null || this.apisServer == null) {
+			listener.onTokenRefreshed(null);
+			return;
+		}
+		String hostUrl = this.apisServer + AMSetting.ACCESS_TOKEN_URI;
+		RequestParams postParams = new RequestParams();
+		Map<String, String> authBody = new HashMap<String, String>();
+		authBody.put("client_id", this.accelaMobile.appId);
+		authBody.put("client_secret", this.accelaMobile.appSecret);
+		authBody.put("refresh_token", this.refreshToken);
+		authBody.put("grant_type", "refresh_token");
+		postParams.setAuthBody(authBody);
+		AMRequest amRequest = new AMRequest(hostUrl, null, postParams, HTTPMethod.POST);
+		amRequest.setRequestType(RequestType.AUTHENTICATION);
+		amRequest.setPriority(AMRequest.RequestPriority.IMMEDIATE);
+		try {
+			amRequest.sendRequest(new AMRequestDelegate() {
+				@Override
+				public void onStart() {
+				}
+
+				@Override
+				public void onSuccess(JSONObject response) {
+					String newAccessToken = response.optString("access_token", null);
+					if (newAccessToken == null) {
+						onFailure(new AMError(AMError.ERROR_CODE_Unauthorized, AMError.ERROR_CODE_TOKEN_EXPIRED, null, "No access token in the token response", null));
+						return;
+					}
+					accessToken = newAccessToken;
+					refreshToken = response.optString("refresh_token", refreshToken);
+					accessTokenExpiresAt = expiresAtOf(response);
+					if (isRememberToken) {
+						saveUserProfile2LocalStore();
+					}
+					listener.onTokenRefreshed(accessToken);
+				}
+
+				@Override
+				public void onFailure(AMError error) {
+					int status = (error != null) ? error.getStatus() : 0;
+					if (status == AMError.ERROR_CODE_Bad_Request || status == AMError.ERROR_CODE_Unauthorized) {
+						// The refresh token was rejected, the user has to sign in again.
+						clearAuthorizationAndToken(true);
+						if (sessionDelegate != null) {
+							sessionDelegate.amDidSessionInvalid(error);
+						}
+					}
+					listener.onTokenRefreshed(null);
+				}
+			});
+		} catch (JSONException e) {
+			AMLogger.logError(e.toString());
+			listener.onTokenRefreshed(null);
+		}
+	}
+
+	/**
+	 * Private method, used to get the expiry time of the token from the expires_in field of the token response, 0 if absent.
+	 */
+	private static long expiresAtOf(JSONObject response) {
+		long expiresIn = response.optLong("expires_in", 0);
+		return (expiresIn > 0) ? System.currentTimeMillis() + expiresIn * 1000 : 0;
+	}
+
+	/**
+	 * Private class, used by the request queue to check the expiry of the access token and to refresh it.
+	 */
+	private class RequestTokenRefresher implements TokenRefresher {
+		@Override
+		public String getToken() {
+			return accessToken;
+		}
+
+		@Override
+		public boolean isExpiring(String token) {
+			long expiresAt = accessTokenExpiresAt;
+			return token.equals(accessToken) && refreshToken != null && expiresAt > 0
+					&& System.currentTimeMillis() + TOKEN_REFRESH_MARGIN_MS >= expiresAt;
+		}
+
+		@Override
+		public void refresh(String staleToken, Listener listener) {
+			if (accessToken != null && !accessToken.equals(staleToken)) {
+				// Refreshed or signed in again meanwhile.
+				listener.onTokenRefreshed(accessToken);
+				return;
+			}
+			refreshTokenInBackground(listener);
+		}
+	}
+
 	/**
 	 * public method, used to get access token for native authorization or web
 	 * authorization.
@@ -857,6 +1025,7 @@ public class AuthorizationManager {
 				try {
 					accessToken = response.getString("access_token");
 					refreshToken = response.getString("refresh_token");
+					accessTokenExpiresAt = expiresAtOf(response);
 					if (AMSetting.DebugMode) {
 						AMLogger.logVerbose(
 								"In AuthorizationManager.tokenRequestDelegate: accessToken = %s.",
@@ -133,10 +133,10 @@ public abstract class HttpResponseLogHandler {
         }
         // Handle session for error code 401 and 403 specially
         if (responseStatusCode == AMError.ERROR_CODE_Unauthorized) {// HTTP error 401
-            // Clear token
+            // Clear token, unless it was refreshed meanwhile or can still be refreshed
             AuthorizationManager authorizationManager = request.getAccelaMobile().authorizationManager;
             if (authorizationManager != null) {
-                authorizationManager.clearAuthorizationAndToken(true);
+                authorizationManager.handleUnauthorized(request.mRequest.getAuthToken());
             }
             // Populate error
             if (stringLoader!=null) {
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http;
+
+import android.util.JsonReader;
+
+import com.accela.mobile.http.volley.Response;
+import com.accela.mobile.http.volley.VolleyError;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON request which binds the elements of the "result" array to model objects with an {@link AMJsonBinder}
+ * while the response is read. The objects are delivered together with the rest of the response once it has been read.
+ *
+ * @since 4.1
+ */
+class AMBoundJsonRequest<T> extends AMStreamingJsonRequest {
+
+    private final AMJsonBinder<T> mBinder;
+
+    private final ResultListener<T> mResultListener;
+
+    /** Written by the network thread, read by the delivery once the response has been parsed. */
+    private volatile List<T> mItems = new ArrayList<T>();
+
+    /**
+     * Callback for the bound objects and the rest of the response, called on the main thread.
+     */
+    interface ResultListener<T> {
+        void onResult(List<T> items, JSONObject response);
+    }
+
+    public AMBoundJsonRequest(int method, String url, HashMap<String, String> customHttpHeader, String stringRequestBody, AMJsonBinder<T> binder,
+                              ResultListener<T> resultListener, Response.ErrorListener errorListener) {
+        super(method, url, customHttpHeader, stringRequestBody, null, null, errorListener);
+        mBinder = binder;
+        mResultListener = resultListener;
+        // Nothing is delivered before the whole response is read, so a failed attempt can be retried.
+        setRetryPolicy(new AMRetryPolicy());
+    }
+
+    @Override
+    public byte[] parseNetworkResponseStream(InputStream in, Map<String, String> headers) throws IOException, VolleyError {
+        // A retried attempt starts over.
+        mItems = new ArrayList<T>();
+        return super.parseNetworkResponseStream(in, headers);
+    }
+
+    @Override
+    protected Object readResultItem(JsonReader reader) throws IOException, JSONException {
+        return mBinder.bind(reader);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected boolean handleResultItem(Object item, int index) {
+        mItems.add((T) item);
+        return true;
+    }
+
+    @Override
+    protected void deliverResponse(JSONObject response) {
+        if (mResultListener != null) {
+            mResultListener.onResult(mItems, response);
+        }
+    }
+}
@@ -18,6 +18,8 @@
 package com.accela.mobile.http;
 
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -38,15 +40,19 @@ import com.accela.mobile.http.volley.ServerError;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.TreeMap;
 
 import javax.net.ssl.HostnameVerifier;
@@ -58,6 +64,8 @@ import javax.net.ssl.SSLSession;
  */
 public class AMDocDownloadRequest implements DocumentRequest {
     private final int CONNECTION_TIME_OUT = 30*1000;
+    /** Longest wait for the next bytes of the document. */
+    private final int READ_TIME_OUT = 60*1000;
     private final URL mUrl;
     private final HashMap<String, String> mHttpHeader;
     private final AMDownloadDelegate mDownloadDelegate;
@@ -65,6 +73,22 @@ public class AMDocDownloadRequest implements DocumentRequest {
     private final static int MAX_BUFFER_SIZE = 1024*4;
     private final String mLocalFilePath;
     private AsyncTask mAsyncTask;
+    /** Set by {@link #cancel()}, which may come before the task has started. */
+    private volatile boolean mCancelled = false;
+    /** Time by which the download must complete, in {@link SystemClock#elapsedRealtime()} ms, 0 for none. */
+    private volatile long mDeadlineMs = 0;
+
+    /** Suffix of the partial file kept until the download completes. */
+    private final static String PARTIAL_FILE_SUFFIX = ".part";
+    /** Suffix of the sidecar file which records the validator and offset of the partial file. */
+    private final static String PARTIAL_INFO_SUFFIX = ".part.info";
+    private final static String INFO_URL = "url";
+    private final static String INFO_VALIDATOR = "validator";
+    private final static String INFO_OFFSET = "offset";
+    /** The sidecar file is rewritten every time this many bytes are saved, so a killed process can resume close to where it stopped. */
+    private final static long CHECKPOINT_INTERVAL = 512*1024;
+    private final static long PROGRESS_INTERVAL_MS = 200;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     public  AMDocDownloadRequest(String url, HashMap<String, String> customHttpHeader, String stringBody, String localFilePath, final AMDownloadDelegate downloadDelegate) throws MalformedURLException {
         mUrl = new URL(url);
@@ -77,12 +101,77 @@ public class AMDocDownloadRequest implements DocumentRequest {
     @Override
     public NetworkResponse request(AsyncTask asyncTask) throws IOException, ServerError {
         mAsyncTask = asyncTask;
+        if (mCancelled) {
+            return AMDocRequestManager.cancelledResponse();
+        }
+        if (isPastDeadline()) {
+            return deadlineExceededResponse();
+        }
+        try {
+            return request(true);
+        } catch (IOException e) {
+            if (mCancelled) {
+                return AMDocRequestManager.cancelledResponse();
+            }
+            // The timeouts were cut to the time left, the partial file is kept for the next try.
+            if (isPastDeadline()) {
+                return deadlineExceededResponse();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Set the time by which the download must complete, including the time spent waiting for a transfer slot.
+     * The connect and read timeouts are cut to the time left, and once it has passed the download fails with
+     * {@link AMDocRequestManager#DEADLINE_EXCEEDED_ERROR}.
+     *
+     * @param deadlineMs The deadline in {@link SystemClock#elapsedRealtime()} ms, or 0 for none.
+     *
+     * @since 4.1
+     */
+    public void setDeadline(long deadlineMs) {
+        mDeadlineMs = deadlineMs;
+    }
+
+    private boolean isPastDeadline() {
+        return mDeadlineMs != 0 && SystemClock.elapsedRealtime() >= mDeadlineMs;
+    }
+
+    private int timeoutWithinDeadline(int timeoutMs) {
+        if (mDeadlineMs == 0) {
+            return timeoutMs;
+        }
+        return (int) Math.max(1, Math.min(timeoutMs, mDeadlineMs - SystemClock.elapsedRealtime()));
+    }
+
+    private static NetworkResponse deadlineExceededResponse() {
+        Map<String, String> headers = Collections.emptyMap();
+        return new NetworkResponse(AMDocRequestManager.DEADLINE_EXCEEDED_ERROR, null, headers, false, 0);
+    }
+
+    private NetworkResponse request(boolean allowResume) throws IOException, ServerError {
         long requestStart = SystemClock.elapsedRealtime();
         NetworkResponse networkResponse = null;
+        File partialFile = new File(mLocalFilePath + PARTIAL_FILE_SUFFIX);
+        File infoFile = new File(mLocalFilePath + PARTIAL_INFO_SUFFIX);
+        // Only a plain GET of the same URL, with a validator to send in If-Range, can be resumed.
+        Properties partialInfo = allowResume && !hasBody() ? readPartialInfo(infoFile) : null;
+        long resumeOffset = 0;
+        if (partialInfo != null && mUrl.toString().equals(partialInfo.getProperty(INFO_URL))
+                && partialInfo.getProperty(INFO_VALIDATOR) != null && partialFile.exists()) {
+            resumeOffset = Math.min(parseLong(partialInfo.getProperty(INFO_OFFSET)), partialFile.length());
+        }
         HttpsURLConnection httpsConn = openConnection();
         for (String headerName : mHttpHeader.keySet()) {
             httpsConn.addRequestProperty(headerName, mHttpHeader.get(headerName));
         }
+        // Byte ranges only line up across attempts on the identity encoding.
+        httpsConn.setRequestProperty("Accept-Encoding", "identity");
+        if (resumeOffset > 0) {
+            httpsConn.setRequestProperty("Range", "bytes=" + resumeOffset + "-");
+            httpsConn.setRequestProperty("If-Range", partialInfo.getProperty(INFO_VALIDATOR));
+        }
         HostnameVerifier hostnameVerifier = new HostnameVerifier() {
             @Override
             public boolean verify(String hostname, SSLSession session) {
@@ -123,15 +212,41 @@ public class AMDocDownloadRequest implements DocumentRequest {
                     response.addHeader(h);
                 }
             }
-            networkResponse = new NetworkResponse(responseCode, null, convertHeaders(response.getAllHeaders()), false,
+            Map<String, String> responseHeaders = convertHeaders(response.getAllHeaders());
+            networkResponse = new NetworkResponse(responseCode, null, responseHeaders, false,
                     SystemClock.elapsedRealtime() - requestStart);
+            if (responseCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && resumeOffset > 0) {
+                // The partial file doesn't match the document any more, start over.
+                deletePartialFiles(partialFile, infoFile);
+                httpsConn.disconnect();
+                return request(false);
+            }
             if (responseCode >= 400) {
                 String encoding = httpsConn.getContentEncoding();
                 isr = httpsConn.getErrorStream();
                 return networkResponse;
             }
+            // A 200 means the server ignored the range or the document changed, so the partial file is replaced.
+            long offset = (responseCode == HttpStatus.SC_PARTIAL_CONTENT
+                    && resumeOffset == parseContentRangeStart(responseHeaders.get("Content-Range"))) ? resumeOffset : 0;
+            if (responseCode == HttpStatus.SC_PARTIAL_CONTENT && offset == 0) {
+                if (resumeOffset > 0) {
+                    // The range sent back doesn't continue the partial file, fetch the whole document instead.
+                    deletePartialFiles(partialFile, infoFile);
+                    httpsConn.disconnect();
+                    return request(false);
+                }
+                throw new IOException("Unexpected Content-Range " + responseHeaders.get("Content-Range"));
+            }
+            long contentLength = httpsConn.getContentLength();
+            long totalLength = contentLength >= 0 ? offset + contentLength : -1;
+            String validator = responseHeaders.get("ETag");
+            if (validator == null) {
+                validator = responseHeaders.get("Last-Modified");
+            }
             isr = httpsConn.getInputStream();
-            saveFile2Storage(mLocalFilePath, isr);
+            saveFile2Storage(partialFile, infoFile, validator, isr, offset, totalLength);
+            completePartialFile(partialFile, infoFile);
         } catch (IOException e) {
             throw e;
         } finally {
@@ -157,12 +272,21 @@ public class AMDocDownloadRequest implements DocumentRequest {
         if (statusCode == AMDocRequestManager.IOEXCEPTION_ERROR){
             mDownloadDelegate.onFailure(new AMError(AMDocRequestManager.IOEXCEPTION_ERROR, null, traceId, errorMessage!=null ? errorMessage : networkResponse.headers.toString(), "IO EXCEPTION ERROR!"));
             return;
+        }else if(statusCode == AMDocRequestManager.QUEUE_FULL_ERROR){
+            mDownloadDelegate.onFailure(new AMError(AMDocRequestManager.QUEUE_FULL_ERROR, null, traceId, errorMessage, "TRANSFER QUEUE FULL!"));
+            return;
+        }else if(statusCode == AMDocRequestManager.DEADLINE_EXCEEDED_ERROR){
+            mDownloadDelegate.onFailure(new AMError(AMDocRequestManager.DEADLINE_EXCEEDED_ERROR, AMError.ERROR_CODE_DEADLINE_EXCEEDED, traceId, errorMessage, "DEADLINE EXCEEDED!"));
+            return;
+        }else if(statusCode == AMDocRequestManager.CANCELLED_ERROR){
+            mDownloadDelegate.onFailure(new AMError(AMDocRequestManager.CANCELLED_ERROR, null, traceId, errorMessage, "CANCELLED!"));
+            return;
         }else if(statusCode == AMDocRequestManager.SERVEREXCEPTION_ERROR){
             mDownloadDelegate.onFailure(new AMError(AMDocRequestManager.SERVEREXCEPTION_ERROR, null, traceId, errorMessage!=null ? errorMessage : networkResponse.headers.toString(), "SERVER EXCEPTION ERROR!"));
             return;
 
         }
-        if (statusCode == HttpStatus.SC_OK)
+        if (statusCode == HttpStatus.SC_OK || statusCode == HttpStatus.SC_PARTIAL_CONTENT)
             this.mDownloadDelegate.onSuccess(new File(mLocalFilePath));
         else
             mDownloadDelegate.onFailure(new AMError(statusCode, "", traceId, errorMessage!=null ? errorMessage : networkResponse.headers.toString(), null));
@@ -170,7 +294,16 @@ public class AMDocDownloadRequest implements DocumentRequest {
 
     @Override
     public void cancel() {
-        mAsyncTask.cancel(true);
+        mCancelled = true;
+        AsyncTask asyncTask = mAsyncTask;
+        if (asyncTask != null) {
+            asyncTask.cancel(true);
+        }
+    }
+
+    @Override
+    public URL getUrl() {
+        return mUrl;
     }
 
     private Map<String, String> convertHeaders(Header[] headers) {
@@ -184,8 +317,8 @@ public class AMDocDownloadRequest implements DocumentRequest {
      private HttpsURLConnection openConnection() throws IOException {
         HttpsURLConnection connection = (HttpsURLConnection)mUrl.openConnection();
 
-        connection.setConnectTimeout(CONNECTION_TIME_OUT);
-//        connection.setReadTimeout(READ_TIME_OUT); //no read timeout
+        connection.setConnectTimeout(timeoutWithinDeadline(CONNECTION_TIME_OUT));
+        connection.setReadTimeout(timeoutWithinDeadline(READ_TIME_OUT));
         connection.setUseCaches(false);
         connection.setDoInput(true);
          if (mStringBody!=null && mStringBody.length()>0){
@@ -195,30 +328,148 @@ public class AMDocDownloadRequest implements DocumentRequest {
         return connection;
     }
 
-    private synchronized void saveFile2Storage(final String localFile,
-                                                      InputStream isr) throws IOException {
+    private synchronized void saveFile2Storage(final File partialFile, File infoFile, String validator,
+                                                      InputStream isr, long offset, long totalLength) throws IOException {
         FileOutputStream fos = null;
+        long savedLength = offset;
         try {
-            crateFile(localFile);
+            if (offset == 0) {
+                crateFile(partialFile.getPath());
+            }
+            writePartialInfo(infoFile, validator, offset);
 
-            fos = new FileOutputStream(localFile);
+            fos = new FileOutputStream(partialFile, offset > 0);
             int bytesRead = -1;
             byte[] buffer = new byte[MAX_BUFFER_SIZE];
+            long lastCheckpoint = offset;
+            long lastProgress = 0;
+            postProgress(savedLength, totalLength);
             while ((bytesRead = isr.read(buffer)) != -1) {
+                if (mCancelled) {
+                    throw new InterruptedIOException("Download cancelled");
+                }
+                if (isPastDeadline()) {
+                    throw new InterruptedIOException("Download deadline exceeded");
+                }
                 fos.write(buffer, 0, bytesRead);
+                savedLength += bytesRead;
+                if (savedLength - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+                    writePartialInfo(infoFile, validator, savedLength);
+                    lastCheckpoint = savedLength;
+                }
+                long now = SystemClock.elapsedRealtime();
+                if (now - lastProgress >= PROGRESS_INTERVAL_MS) {
+                    postProgress(savedLength, totalLength);
+                    lastProgress = now;
+                }
             }
             fos.flush();
+            postProgress(savedLength, totalLength);
         } catch (IOException e) {
             throw e;
         } finally {
             closeStreams(fos);
-            File file = new File(localFile);
+            // Record how far we got, the next attempt resumes from there.
+            writePartialInfo(infoFile, validator, savedLength);
             if (BuildConfig.DEBUG) {
-                AMLogger.logWarn(localFile + " size=" + file.length());
+                AMLogger.logWarn(partialFile.getPath() + " size=" + partialFile.length());
             }
         }
     }
 
+    private void completePartialFile(File partialFile, File infoFile) throws IOException {
+        File file = new File(mLocalFilePath);
+        if (file.exists()) {
+            file.delete();
+        }
+        if (!partialFile.renameTo(file)) {
+            throw new IOException("Could not rename " + partialFile.getPath() + " to " + mLocalFilePath);
+        }
+        infoFile.delete();
+    }
+
+    private void deletePartialFiles(File partialFile, File infoFile) {
+        partialFile.delete();
+        infoFile.delete();
+    }
+
+    private Properties readPartialInfo(File infoFile) {
+        if (!infoFile.exists()) {
+            return null;
+        }
+        Properties info = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(infoFile);
+            info.load(is);
+            return info;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                closeStreams(is);
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void writePartialInfo(File infoFile, String validator, long offset) {
+        if (validator == null || hasBody()) {
+            // Without a validator the partial file can't be safely resumed.
+            infoFile.delete();
+            return;
+        }
+        Properties info = new Properties();
+        info.setProperty(INFO_URL, mUrl.toString());
+        info.setProperty(INFO_VALIDATOR, validator);
+        info.setProperty(INFO_OFFSET, String.valueOf(offset));
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(infoFile);
+            info.store(os, null);
+        } catch (IOException e) {
+            AMLogger.logWarn("Could not save download state: " + e.toString());
+        } finally {
+            try {
+                closeStreams(os);
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void postProgress(final long bytesWritten, final long totalBytes) {
+        if (!(mDownloadDelegate instanceof AMDownloadProgressDelegate)) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ((AMDownloadProgressDelegate) mDownloadDelegate).onProgress(bytesWritten, totalBytes);
+            }
+        });
+    }
+
+    private boolean hasBody() {
+        return mStringBody != null && mStringBody.length() > 0;
+    }
+
+    private static long parseContentRangeStart(String contentRange) {
+        // Content-Range: bytes 1000-4999/5000
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        return dash > 6 ? parseLong(contentRange.substring(6, dash).trim()) : -1;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     private void crateFile(String localFile) throws IOException {
         File file = new File(localFile);
         createFolder(file.getParentFile());
@@ -261,4 +512,18 @@ public class AMDocDownloadRequest implements DocumentRequest {
         public void onFailure(AMError error);
     }
 
+    /**
+     * Download delegate which is also told about the progress, on the main thread.
+     *
+     * @since 4.1
+     */
+    public static interface AMDownloadProgressDelegate extends AMDownloadDelegate {
+
+        /**
+         * @param bytesWritten Bytes saved so far, including the ones kept from an interrupted download which is resumed.
+         * @param totalBytes Full size of the document, or -1 if the server didn't send it.
+         */
+        public void onProgress(long bytesWritten, long totalBytes);
+    }
+
 }
@@ -17,6 +17,7 @@
  */
 package com.accela.mobile.http;
 
+import com.accela.mobile.AMRequest;
 import com.accela.mobile.http.volley.AuthFailureError;
 import com.accela.mobile.http.volley.Cache;
 import com.accela.mobile.http.volley.NetworkResponse;
@@ -41,6 +42,8 @@ public class AMHttpRequest extends Request<JSONObject> {
     /** Default charset for JSON request. */
     protected static final String PROTOCOL_CHARSET = "utf-8";
 
+    static final String AUTHORIZATION_HEADER = "Authorization";
+
     private final Response.Listener<JSONObject> mListener;
 
     private final String mRequestBody;
@@ -51,6 +54,14 @@ public class AMHttpRequest extends Request<JSONObject> {
 
     private Map<String, String> responseHeader;
 
+    /** Client side freshness used when the server response carries no caching headers. */
+    private long mCacheTtl = 0;
+
+    /** How long an entry may still be served from cache after it went stale, while it is refreshed. */
+    private long mStaleTtl = 0;
+
+    private Response.Listener<JSONObject> mStaleListener;
+
 
     public AMHttpRequest(int method, String url, HashMap<String, String> customHttpHeader, String stringRequestBody, Response.Listener<JSONObject> listener, Response.ErrorListener errorListener) {
         super(method, url, errorListener);
@@ -58,21 +69,111 @@ public class AMHttpRequest extends Request<JSONObject> {
         mRequestBody = stringRequestBody;
         mListener = listener;
         this.setRetryPolicy(new AMRetryPolicy());
+        if (customHttpHeader != null) {
+            setAuthToken(customHttpHeader.get(AUTHORIZATION_HEADER));
+        }
     }
 
+    /**
+     * The Authorization header follows the token of the request, which is replaced when the token is refreshed.
+     * The refreshed token goes in a copy of the headers, the caller's map is read on other threads.
+     */
     @Override
     public Map<String, String> getHeaders() throws AuthFailureError {
+        String authToken = getAuthToken();
+        if (authToken != null && customHttpHeader != null && !authToken.equals(customHttpHeader.get(AUTHORIZATION_HEADER))) {
+            HashMap<String, String> headers = new HashMap<String, String>(customHttpHeader);
+            headers.put(AUTHORIZATION_HEADER, authToken);
+            return headers;
+        }
         return customHttpHeader;
     }
 
+    /**
+     * The cache key is scoped by agency and environment, the same URL returns different data for each of them.
+     */
+    @Override
+    public String getCacheKey() {
+        if (customHttpHeader == null) {
+            return getUrl();
+        }
+        return customHttpHeader.get(AMRequest.HEADER_X_ACCELA_ENVIRONMENT) + ":"
+                + customHttpHeader.get(AMRequest.HEADER_X_ACCELA_AGENCY) + ":" + getUrl();
+    }
+
+    /**
+     * Identical GET requests of the same user, agency and environment share one round trip and one parsed response.
+     */
+    @Override
+    public String getCoalescingKey() {
+        if (getMethod() != Method.GET || isStreamingResponse()) {
+            return null;
+        }
+        String authorization = (customHttpHeader != null) ? customHttpHeader.get(AUTHORIZATION_HEADER) : null;
+        return getClass().getName() + ":" + authorization + ":" + getCacheKey();
+    }
+
+    /**
+     * Each request which waited for an identical one gets its own copy of the response, listeners may modify it.
+     */
+    @Override
+    protected JSONObject copyCoalescedResponse(JSONObject response) {
+        if (response == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(response.toString());
+        } catch (JSONException e) {
+            return response;
+        }
+    }
+
+    /**
+     * Set how long a cached response stays fresh when the server doesn't send Cache-Control or Expires headers.
+     *
+     * @param cacheTtl Time to live in milliseconds, 0 to always revalidate with the server.
+     */
+    public void setCacheTtl(long cacheTtl) {
+        mCacheTtl = cacheTtl;
+    }
+
+    /**
+     * Set the stale-while-revalidate window. Within it a stale cached response is delivered right away
+     * to the stale listener, then the request is refreshed from the network.
+     *
+     * @param staleTtl Window in milliseconds after the response stops being fresh, 0 to disable.
+     */
+    public void setStaleTtl(long staleTtl) {
+        mStaleTtl = staleTtl;
+    }
+
+    /**
+     * Set the listener which receives stale cached responses, see {@link #setStaleTtl(long)}.
+     * Without it, stale responses are delivered to the regular listener.
+     */
+    public void setStaleResponseListener(Response.Listener<JSONObject> staleListener) {
+        mStaleListener = staleListener;
+    }
+
+
+    /**
+     * Responses which aren't cached are decoded straight from the pooled buffer they were read into.
+     */
+    @Override
+    public boolean acceptsPooledResponse() {
+        return true;
+    }
 
     @Override
     protected Response<JSONObject> parseNetworkResponse(NetworkResponse response) {
         try {
             responseHeader = response.headers;
-            Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+            Cache.Entry entry = parseCacheEntry(response);
             this.responseStatus = response.statusCode;
-            String jsonString = new String(response.data, HttpHeaderParser.parseCharset(response.headers, PROTOCOL_CHARSET));
+            String charset = HttpHeaderParser.parseCharset(response.headers, PROTOCOL_CHARSET);
+            String jsonString = (response.body != null)
+                    ? new String(response.body.getBuffer(), 0, response.body.getLength(), charset)
+                    : new String(response.data, charset);
             return Response.success(new JSONObject(jsonString), entry);
         } catch (UnsupportedEncodingException e) {
             return Response.error(new ParseError(e));
@@ -81,6 +182,30 @@ public class AMHttpRequest extends Request<JSONObject> {
         }
     }
 
+    /**
+     * A 304 keeps the body we already delivered, only the freshness of the stored entry is updated.
+     */
+    @Override
+    public Cache.Entry parseNotModifiedCacheEntry(NetworkResponse response) {
+        responseHeader = response.headers;
+        this.responseStatus = response.statusCode;
+        return parseCacheEntry(response);
+    }
+
+    private Cache.Entry parseCacheEntry(NetworkResponse response) {
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+        if (entry == null) {
+            return null;
+        }
+        if (!hasFreshnessHeaders(response.headers) && (mCacheTtl > 0 || mStaleTtl > 0)) {
+            entry.softTtl = entry.ttl = System.currentTimeMillis() + mCacheTtl;
+        }
+        if (mStaleTtl > 0 && entry.ttl == entry.softTtl && !mustRevalidate(response.headers)) {
+            entry.ttl = entry.softTtl + mStaleTtl;
+        }
+        return entry;
+    }
+
     public int getResponseStatus(){
         return responseStatus;
     }
@@ -94,6 +219,25 @@ public class AMHttpRequest extends Request<JSONObject> {
         mListener.onResponse(response);
     }
 
+    @Override
+    protected void deliverIntermediateResponse(JSONObject response) {
+        if (mStaleListener != null) {
+            mStaleListener.onResponse(response);
+        } else {
+            mListener.onResponse(response);
+        }
+    }
+
+    private static boolean hasFreshnessHeaders(Map<String, String> headers) {
+        return headers != null && (headers.get("Cache-Control") != null || headers.get("Expires") != null);
+    }
+
+    private static boolean mustRevalidate(Map<String, String> headers) {
+        String cacheControl = headers != null ? headers.get("Cache-Control") : null;
+        return cacheControl != null && (cacheControl.contains("no-cache") || cacheControl.contains("must-revalidate")
+                || cacheControl.contains("proxy-revalidate"));
+    }
+
 
     @Override
     public byte[] getBody() {
@@ -37,6 +37,8 @@ import java.util.Map;
 public class AMImageLoader extends ImageLoader {
     private static AMImageLoader mImageLoader;
     private Map<String, String> customHttpHeader;
+    /** Priority of the image request being made, or null for the default LOW priority. */
+    private Request.Priority priority;
     /**
      * Constructs a new ImageLoader.
      *
@@ -56,7 +58,18 @@ public class AMImageLoader extends ImageLoader {
     }
 
 
-    public void loadImage(String requestUrl, Map<String, String> customHttpHeader, final AMRequestDelegate amRequestDelegate){
+    public ImageContainer loadImage(String requestUrl, Map<String, String> customHttpHeader, final AMRequestDelegate amRequestDelegate){
+        return loadImage(requestUrl, customHttpHeader, amRequestDelegate, (Request.Priority) null);
+    }
+
+    /**
+     * Load an image with the given priority, or the default LOW priority if null.
+     *
+     * @return The container of the load, which cancels it.
+     *
+     * @since 4.1
+     */
+    public ImageContainer loadImage(String requestUrl, Map<String, String> customHttpHeader, final AMRequestDelegate amRequestDelegate, Request.Priority priority){
         ImageListener imageListener = new ImageListener() {
             @Override
             public void onResponse(ImageContainer response, boolean isImmediate) {
@@ -70,26 +83,30 @@ public class AMImageLoader extends ImageLoader {
             }
         };
         this.customHttpHeader = customHttpHeader;
-        super.get(requestUrl, imageListener);
+        this.priority = priority;
+        try {
+            return super.get(requestUrl, imageListener);
+        } finally {
+            this.priority = null;
+        }
     }
 
-    public void loadImage(String requestUrl, Map<String, String> customHttpHeader, final AMRequestDelegate amRequestDelegate, int maxWidth, int maxHeight){
-        ImageListener imageListener = new ImageListener() {
-            @Override
-            public void onResponse(ImageContainer response, boolean isImmediate) {
-                amRequestDelegate.onSuccess(response.getBitmap());
-            }
+    public ImageContainer loadImage(String requestUrl, Map<String, String> customHttpHeader, final AMRequestDelegate amRequestDelegate, int maxWidth, int maxHeight){
+        return loadImage(requestUrl, customHttpHeader, amRequestDelegate, maxWidth, maxHeight, ImageView.ScaleType.CENTER_INSIDE, null);
+    }
 
-            @Override
-            public void onErrorResponse(VolleyError error) {
-                amRequestDelegate.onFailure(new AMError(0, null, null, error.getMessage(), error.toString()));
-            }
-        };
-        this.customHttpHeader = customHttpHeader;
-        super.get(requestUrl, imageListener, maxWidth, maxHeight);
+    public ImageContainer loadImage(String requestUrl, Map<String, String> customHttpHeader, final AMRequestDelegate amRequestDelegate, int maxWidth, int maxHeight, ImageView.ScaleType scaleType){
+        return loadImage(requestUrl, customHttpHeader, amRequestDelegate, maxWidth, maxHeight, scaleType, null);
     }
 
-    public void loadImage(String requestUrl, Map<String, String> customHttpHeader, final AMRequestDelegate amRequestDelegate, int maxWidth, int maxHeight, ImageView.ScaleType scaleType){
+    /**
+     * Load a resized image with the given priority, or the default LOW priority if null.
+     *
+     * @return The container of the load, which cancels it.
+     *
+     * @since 4.1
+     */
+    public ImageContainer loadImage(String requestUrl, Map<String, String> customHttpHeader, final AMRequestDelegate amRequestDelegate, int maxWidth, int maxHeight, ImageView.ScaleType scaleType, Request.Priority priority){
         ImageListener imageListener = new ImageListener() {
             @Override
             public void onResponse(ImageContainer response, boolean isImmediate) {
@@ -102,13 +119,18 @@ public class AMImageLoader extends ImageLoader {
             }
         };
         this.customHttpHeader = customHttpHeader;
-        super.get(requestUrl, imageListener, maxWidth, maxHeight, scaleType);
+        this.priority = priority;
+        try {
+            return super.get(requestUrl, imageListener, maxWidth, maxHeight, scaleType);
+        } finally {
+            this.priority = null;
+        }
     }
 
     @Override
     protected Request<Bitmap> makeImageRequest(String requestUrl, int maxWidth, int maxHeight,
                                                ImageView.ScaleType scaleType, final String cacheKey) {
-        return AMRequestFactory.createImageRequest(requestUrl, this.customHttpHeader, new Response.Listener<Bitmap>() {
+        Request<Bitmap> imageRequest = AMRequestFactory.createImageRequest(requestUrl, this.customHttpHeader, new Response.Listener<Bitmap>() {
             @Override
             public void onResponse(Bitmap response) {
                 onGetImageSuccess(cacheKey, response);
@@ -119,5 +141,9 @@ public class AMImageLoader extends ImageLoader {
                 onGetImageError(cacheKey, error);
             }
         });
+        if (this.priority != null) {
+            imageRequest.setPriority(this.priority);
+        }
+        return imageRequest;
     }
 }
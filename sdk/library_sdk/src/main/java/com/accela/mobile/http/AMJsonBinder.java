@@ -0,0 +1,63 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http;
+
+import android.util.JsonReader;
+
+import java.io.IOException;
+
+/**
+ * Reads one model object from a JSON response as it is parsed, without building JSONObjects first.
+ * A binder is written once per model, for example for records:
+ *
+ * <pre>
+ * public Record bind(JsonReader reader) throws IOException {
+ *     Record record = new Record();
+ *     reader.beginObject();
+ *     while (reader.hasNext()) {
+ *         String name = reader.nextName();
+ *         if ("id".equals(name)) {
+ *             record.id = reader.nextString();
+ *         } else {
+ *             reader.skipValue();
+ *         }
+ *     }
+ *     reader.endObject();
+ *     return record;
+ * }
+ * </pre>
+ *
+ * Binders are called on a network thread and must not keep state between calls.
+ *
+ * @since 4.1
+ */
+public interface AMJsonBinder<T> {
+
+    /**
+     * Read the next value of the reader, an element of the result array, into a model object.
+     *
+     * @param reader The reader positioned at the element, the whole element must be consumed.
+     *
+     * @return The model object.
+     *
+     * @throws IOException If the response can't be read.
+     *
+     * @since 4.1
+     */
+    T bind(JsonReader reader) throws IOException;
+}
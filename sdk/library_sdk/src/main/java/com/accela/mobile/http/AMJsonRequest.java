@@ -17,11 +17,18 @@
  */
 package com.accela.mobile.http;
 
+import com.accela.mobile.AMSetting;
+import com.accela.mobile.http.volley.AuthFailureError;
 import com.accela.mobile.http.volley.Response;
+import com.accela.mobile.http.volley.VolleyLog;
 
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by eyang on 8/20/15.
@@ -33,6 +40,11 @@ class AMJsonRequest extends AMHttpRequest {
     /** Content type for request. */
     private static final String PROTOCOL_CONTENT_TYPE = "application/json";
 
+    /** The gzip encoded body, computed once since the body is read again on retries. */
+    private byte[] mGzipBody;
+
+    private boolean mGzipBodyChecked = false;
+
 
     public AMJsonRequest(int method, String url, HashMap<String, String> customHttpHeader, String stringRequestBody, Response.Listener<JSONObject> listener, Response.ErrorListener errorListener) {
         super(method, url, customHttpHeader, stringRequestBody, listener, errorListener);
@@ -42,6 +54,53 @@ class AMJsonRequest extends AMHttpRequest {
     public String getBodyContentType() {
         return PROTOCOL_CONTENT_TYPE;
     }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = super.getHeaders();
+        if (getGzipBody() == null) {
+            return headers;
+        }
+        Map<String, String> gzipHeaders = new HashMap<String, String>();
+        if (headers != null) {
+            gzipHeaders.putAll(headers);
+        }
+        gzipHeaders.put("Content-Encoding", "gzip");
+        return gzipHeaders;
+    }
+
+    @Override
+    public byte[] getBody() {
+        byte[] gzipBody = getGzipBody();
+        return gzipBody != null ? gzipBody : super.getBody();
+    }
+
+    /**
+     * Get the body compressed with gzip, or null if it is sent as is, see {@link AMSetting#GzipRequestBody}.
+     */
+    private synchronized byte[] getGzipBody() {
+        if (mGzipBodyChecked) {
+            return mGzipBody;
+        }
+        mGzipBodyChecked = true;
+        if (!AMSetting.GzipRequestBody || (getMethod() != Method.POST && getMethod() != Method.PUT)) {
+            return null;
+        }
+        byte[] body = super.getBody();
+        if (body == null || body.length < AMSetting.GZIP_REQUEST_BODY_THRESHOLD) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4);
+            GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+            gzip.write(body);
+            gzip.close();
+            mGzipBody = bytes.toByteArray();
+        } catch (IOException e) {
+            VolleyLog.e(e, "Could not compress the request body, sending it as is");
+        }
+        return mGzipBody;
+    }
 }
 
 
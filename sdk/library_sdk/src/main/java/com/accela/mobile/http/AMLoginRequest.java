@@ -35,6 +35,8 @@ class AMLoginRequest extends AMHttpRequest {
 
     public AMLoginRequest(int method, String url, HashMap<String, String> customHttpHeader, String stringRequestBody, Response.Listener<JSONObject> listener, Response.ErrorListener errorListener) {
         super(method, url, customHttpHeader, stringRequestBody, listener, errorListener);
+        // The token request never waits for a token refresh, it is what refreshes it.
+        setAuthToken(null);
     }
 
 
@@ -43,4 +45,12 @@ class AMLoginRequest extends AMHttpRequest {
         return PROTOCOL_CONTENT_TYPE;
     }
 
+    /**
+     * Authentication requests are always sent on their own.
+     */
+    @Override
+    public String getCoalescingKey() {
+        return null;
+    }
+
 }
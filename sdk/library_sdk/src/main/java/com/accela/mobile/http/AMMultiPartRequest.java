@@ -45,23 +45,30 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Created by eyang on 8/26/15.
  */
 public class AMMultiPartRequest implements DocumentRequest{
 
-    private final int READ_TIME_OUT = 10*1000;
+    /** Longest wait for the response once the upload is sent. */
+    private final int READ_TIME_OUT = 60*1000;
     private final int CONNECTION_TIME_OUT = 3*1000;
 
     protected static final String PROTOCOL_CHARSET = "utf-8";
@@ -79,21 +86,185 @@ public class AMMultiPartRequest implements DocumentRequest{
     private DataOutputStream outputStream;
     private HttpURLConnection connection;
     private AsyncTask mAsyncTask;
+    /** Set by {@link #cancel()}, which may come before the task has started. */
+    private volatile boolean mCancelled = false;
+    /** Whether the upload can be sent again once the server may have received it. */
+    private volatile boolean mIdempotent = false;
+    /** Whether the connection of the current attempt was established, so the server may have received part of the upload. */
+    private volatile boolean mRequestSent;
+    private AMUploadJournal mUploadJournal;
+    private String mUploadId;
+    /** Time by which the upload must complete, in {@link SystemClock#elapsedRealtime()} ms, 0 for none. */
+    private volatile long mDeadlineMs = 0;
+    /** The response body parsed in the background, or null. */
+    private JSONObject mResponseJson;
+    /** Why the response body couldn't be read or parsed, or null. */
+    private String mParseFailure;
+
+    /** Number of times a failed upload is sent again before the failure is reported. */
+    private final static int MAX_RETRIES = 3;
+    private final static long RETRY_BACKOFF_MS = 2*1000;
+    private final static Random RETRY_JITTER = new Random();
 
     public AMMultiPartRequest(String url, HashMap<String, String> customHttpHeader, HttpEntity httpEntity, final AMRequestDelegate requestDelegate) throws MalformedURLException {
         mUrl = new URL(url);
         mHttpHeader = customHttpHeader;
         mHttpEntity = httpEntity;
         mRequestDelegate = requestDelegate;
-        mPool = new ByteArrayPool(DEFAULT_POOL_SIZE);
+        mPool = AMRequestQueueManager.getBufferPool();
     }
 
     @Override
     public NetworkResponse request(AsyncTask asyncTask) throws IOException, ServerError {
         mAsyncTask = asyncTask;
+        // The server takes the multipart body as a whole, so the request is the checkpoint a failed upload restarts from.
+        // Once it may have reached the server, only an idempotent upload is sent again, anything else could add the document twice.
+        int attempt = 0;
+        while (true) {
+            if (mCancelled) {
+                return AMDocRequestManager.cancelledResponse();
+            }
+            if (isPastDeadline()) {
+                return deadlineExceededResponse();
+            }
+            NetworkResponse networkResponse;
+            try {
+                networkResponse = performUpload();
+            } catch (IOException e) {
+                if (mCancelled) {
+                    return AMDocRequestManager.cancelledResponse();
+                }
+                if (isPastDeadline()) {
+                    return deadlineExceededResponse();
+                }
+                if (!canRetry(attempt) || (mRequestSent && !mIdempotent)) {
+                    throw e;
+                }
+                VolleyLog.d("Upload to %s failed, retrying: %s", mUrl, e.toString());
+                waitBeforeRetry(attempt++);
+                continue;
+            }
+            if (isTransientFailure(networkResponse.statusCode) && mIdempotent && canRetry(attempt)) {
+                VolleyLog.d("Upload to %s failed with %d, retrying", mUrl, networkResponse.statusCode);
+                waitBeforeRetry(attempt++);
+                continue;
+            }
+            parseResponse(networkResponse);
+            return networkResponse;
+        }
+    }
+
+    /**
+     * Parse the response body while still in the background, so the delegate is called with a ready JSON object
+     * instead of parsing it on the main thread.
+     */
+    private void parseResponse(NetworkResponse networkResponse) {
+        mResponseJson = null;
+        mParseFailure = null;
+        try {
+            outputStream.flush();
+            outputStream.close();
+            outputStream = null;
+            if (connection != null) {
+                connection.disconnect();
+            }
+            String jsonString = new String(networkResponse.data, HttpHeaderParser.parseCharset(networkResponse.headers, PROTOCOL_CHARSET));
+            if (networkResponse.statusCode == HttpStatus.SC_OK) {
+                mResponseJson = new JSONObject(jsonString);
+            }
+        } catch (UnsupportedEncodingException e) {
+            mParseFailure = e.toString();
+        } catch (JSONException e) {
+            mParseFailure = e.toString();
+        } catch (IOException e) {
+            mParseFailure = e.toString();
+        }
+    }
+
+    /**
+     * Keep a record of this upload in the journal until it completes, so it can be sent again after the process was killed.
+     * The record is dropped once the server may have received the upload, unless it is idempotent, see {@link #setIdempotent(boolean)}.
+     *
+     * @param uploadJournal The journal holding the record.
+     * @param uploadId The ID of the record of this upload.
+     *
+     * @since 4.1
+     */
+    public void setUploadJournal(AMUploadJournal uploadJournal, String uploadId) {
+        mUploadJournal = uploadJournal;
+        mUploadId = uploadId;
+        AMUploadJournal.setRunning(uploadId, true);
+    }
+
+    /**
+     * Set whether the upload can safely be sent again after the server may have received it, for instance because it
+     * carries an idempotency key. Otherwise an upload is only retried when it failed before connecting to the server,
+     * and other failures are reported to the delegate.
+     *
+     * @param idempotent true if the upload can be sent again.
+     *
+     * @since 4.1
+     */
+    public void setIdempotent(boolean idempotent) {
+        mIdempotent = idempotent;
+    }
+
+    /**
+     * Set the time by which the upload must complete, including the time spent waiting for a transfer slot and the retries.
+     * The connect and read timeouts are cut to the time left, and once it has passed the upload fails with
+     * {@link AMDocRequestManager#DEADLINE_EXCEEDED_ERROR}.
+     *
+     * @param deadlineMs The deadline in {@link SystemClock#elapsedRealtime()} ms, or 0 for none.
+     *
+     * @since 4.1
+     */
+    public void setDeadline(long deadlineMs) {
+        mDeadlineMs = deadlineMs;
+    }
+
+    private boolean isPastDeadline() {
+        return mDeadlineMs != 0 && SystemClock.elapsedRealtime() >= mDeadlineMs;
+    }
+
+    private int timeoutWithinDeadline(int timeoutMs) {
+        if (mDeadlineMs == 0) {
+            return timeoutMs;
+        }
+        return (int) Math.max(1, Math.min(timeoutMs, mDeadlineMs - SystemClock.elapsedRealtime()));
+    }
+
+    private static NetworkResponse deadlineExceededResponse() {
+        Map<String, String> headers = Collections.emptyMap();
+        return new NetworkResponse(AMDocRequestManager.DEADLINE_EXCEEDED_ERROR, null, headers, false, 0);
+    }
+
+    private boolean canRetry(int attempt) {
+        return attempt < MAX_RETRIES && mHttpEntity.isRepeatable() && !mCancelled;
+    }
+
+    private void waitBeforeRetry(int attempt) throws IOException {
+        try {
+            // Waking up after the deadline only to give up would hold the transfer slot for nothing.
+            // Half of the backoff is random, so uploads interrupted together don't come back together.
+            long backoff = RETRY_BACKOFF_MS << attempt;
+            long delay = backoff / 2 + (long) (RETRY_JITTER.nextDouble() * (backoff / 2));
+            Thread.sleep(timeoutWithinDeadline((int) delay));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Upload cancelled");
+        }
+    }
+
+    private static boolean isTransientFailure(int statusCode) {
+        return statusCode == HttpStatus.SC_REQUEST_TIMEOUT || statusCode == HttpStatus.SC_BAD_GATEWAY
+                || statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE || statusCode == HttpStatus.SC_GATEWAY_TIMEOUT;
+    }
+
+    private NetworkResponse performUpload() throws IOException, ServerError {
         long requestStart = SystemClock.elapsedRealtime();
         NetworkResponse networkResponse = null;
-
+        mRequestSent = false;
+        connection = null;
+        try {
             connection = openConnection();
             for (String headerName : mHttpHeader.keySet()) {
                 connection.addRequestProperty(headerName, mHttpHeader.get(headerName));
@@ -101,10 +272,14 @@ public class AMMultiPartRequest implements DocumentRequest{
             connection.setRequestMethod("POST");
             connection.setRequestProperty("Connection", "Keep-Alive");
             connection.setRequestProperty("Accept", "application/json");
+            connection.setRequestProperty("Accept-Encoding", "gzip");
             connection.setRequestProperty("User-Agent", "Accela-Mobile-SDK");
             connection.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + MULTIPART_SEPARATOR_LINE);
 
-            outputStream = new DataOutputStream(connection.getOutputStream());
+            OutputStream connectionStream = connection.getOutputStream();
+            // Connected: from here on the server may receive the upload.
+            mRequestSent = true;
+            outputStream = new DataOutputStream(new CancellableOutputStream(connectionStream));
 //            FileInputStream fileInputStream = new FileInputStream(mFileWrapper.mfile);
             mHttpEntity.writeTo(outputStream);
 //            copy(mHttpEntity.getContent(), outputStream);
@@ -134,10 +309,13 @@ public class AMMultiPartRequest implements DocumentRequest{
 //            fileInputStream.close();
             networkResponse = new NetworkResponse(responseCode, entityToBytes(response.getEntity()), convertHeaders(response.getAllHeaders()), false,
                     SystemClock.elapsedRealtime() - requestStart);
-        if (connection != null) {
-            connection.disconnect();
-        }
             return networkResponse;
+        } finally {
+            // Each attempt gets its own connection, a failed one is released too.
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
     }
 
     @Override
@@ -150,39 +328,53 @@ public class AMMultiPartRequest implements DocumentRequest{
         String traceId = networkResponse.headers.get(AMRequest.HEADER_X_ACCELA_TRACEID);
         String errorMessage = networkResponse.headers.get(AMRequest.HEADER_X_ACCELA_RESP_MESSAGE);
 
+        // Uploads which didn't reach the server, or failed there for a transient reason, stay in the journal to be sent again.
+        // One the server may already have stored is only kept if it can safely be sent again.
+        if (mUploadJournal != null) {
+            if ((statusCode >= HttpStatus.SC_OK && !isTransientFailure(statusCode)) || statusCode == AMDocRequestManager.CANCELLED_ERROR
+                    || (mRequestSent && !mIdempotent)) {
+                mUploadJournal.remove(mUploadId);
+            }
+            AMUploadJournal.setRunning(mUploadId, false);
+        }
+
         if (statusCode == AMDocRequestManager.IOEXCEPTION_ERROR){
             mRequestDelegate.onFailure(new AMError(AMDocRequestManager.IOEXCEPTION_ERROR, null, traceId, errorMessage!=null ? errorMessage : networkResponse.headers.toString(), "IO EXCEPTION ERROR!"));
             return;
+        }else if(statusCode == AMDocRequestManager.QUEUE_FULL_ERROR){
+            mRequestDelegate.onFailure(new AMError(AMDocRequestManager.QUEUE_FULL_ERROR, null, traceId, errorMessage, "TRANSFER QUEUE FULL!"));
+            return;
+        }else if(statusCode == AMDocRequestManager.DEADLINE_EXCEEDED_ERROR){
+            mRequestDelegate.onFailure(new AMError(AMDocRequestManager.DEADLINE_EXCEEDED_ERROR, AMError.ERROR_CODE_DEADLINE_EXCEEDED, traceId, errorMessage, "DEADLINE EXCEEDED!"));
+            return;
+        }else if(statusCode == AMDocRequestManager.CANCELLED_ERROR){
+            mRequestDelegate.onFailure(new AMError(AMDocRequestManager.CANCELLED_ERROR, null, traceId, errorMessage, "CANCELLED!"));
+            return;
         }else if(statusCode == AMDocRequestManager.SERVEREXCEPTION_ERROR){
             mRequestDelegate.onFailure(new AMError(AMDocRequestManager.SERVEREXCEPTION_ERROR, null, traceId, errorMessage!=null ? errorMessage : networkResponse.headers.toString(), "SERVER EXCEPTION ERROR!"));
             return;
         }
-        String jsonString = null;
-        try {
-            outputStream.flush();
-            outputStream.close();
-            outputStream = null;
-            if (connection != null) {
-                connection.disconnect();
-            }
-            jsonString = new String(networkResponse.data, HttpHeaderParser.parseCharset(networkResponse.headers, PROTOCOL_CHARSET));
+        // The body was parsed in the background by request().
+        if (mParseFailure != null)
+            mRequestDelegate.onFailure(new AMError(statusCode, null, traceId, errorMessage!=null ? errorMessage : networkResponse.headers.toString(), mParseFailure));
+        else if (statusCode == HttpStatus.SC_OK)
+            this.mRequestDelegate.onSuccess(mResponseJson);
+        else
+            mRequestDelegate.onFailure(new AMError(statusCode, null, traceId, errorMessage!=null ? errorMessage : networkResponse.headers.toString(), null));
+    }
 
-            if (statusCode == HttpStatus.SC_OK)
-                this.mRequestDelegate.onSuccess(new JSONObject(jsonString));
-            else
-                mRequestDelegate.onFailure(new AMError(statusCode, null, traceId, errorMessage!=null ? errorMessage : networkResponse.headers.toString(), null));
-        } catch (UnsupportedEncodingException e) {
-            mRequestDelegate.onFailure(new AMError(statusCode, null, traceId, errorMessage!=null ? errorMessage : networkResponse.headers.toString(), e.toString()));
-        } catch (JSONException e) {
-            mRequestDelegate.onFailure(new AMError(statusCode, null, traceId, errorMessage!=null ? errorMessage : networkResponse.headers.toString(), e.toString()));
-        } catch (IOException e) {
-            mRequestDelegate.onFailure(new AMError(statusCode, null, traceId, errorMessage!=null ? errorMessage : networkResponse.headers.toString(), e.toString()));
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        AsyncTask asyncTask = mAsyncTask;
+        if (asyncTask != null) {
+            asyncTask.cancel(true);
         }
     }
 
     @Override
-    public void cancel() {
-        mAsyncTask.cancel(true);
+    public URL getUrl() {
+        return mUrl;
     }
 
     public  int  copy(InputStream input, DataOutputStream output) throws IOException {
@@ -195,21 +387,25 @@ public class AMMultiPartRequest implements DocumentRequest{
 
     public  long copyLarge(InputStream input, DataOutputStream output)
                 throws IOException {
-                byte[] buffer = new byte[DEFAULT_POOL_SIZE];
+                byte[] buffer = mPool.getBuf(DEFAULT_POOL_SIZE);
                 long count = 0;
                 int n = 0;
-                while (-1 != (n = input.read(buffer))) {
-                        output.write(buffer, 0, n);
-                        count += n;
-                    }
+                try {
+                    while (-1 != (n = input.read(buffer))) {
+                            output.write(buffer, 0, n);
+                            count += n;
+                        }
+                } finally {
+                    mPool.returnBuf(buffer);
+                }
                 return count;
             }
 
 
     private HttpURLConnection openConnection() throws IOException {
         HttpURLConnection connection = (HttpURLConnection)mUrl.openConnection();
-        connection.setConnectTimeout(CONNECTION_TIME_OUT);
-//        connection.setReadTimeout(READ_TIME_OUT);
+        connection.setConnectTimeout(timeoutWithinDeadline(CONNECTION_TIME_OUT));
+        connection.setReadTimeout(timeoutWithinDeadline(READ_TIME_OUT));
         connection.setUseCaches(false);
         connection.setDoInput(true);
         connection.setDoOutput(true);
@@ -224,7 +420,7 @@ public class AMMultiPartRequest implements DocumentRequest{
                 && responseCode != HttpStatus.SC_NOT_MODIFIED;
     }
 
-    private HttpEntity entityFromConnection(HttpURLConnection connection) {
+    private HttpEntity entityFromConnection(HttpURLConnection connection) throws IOException {
         BasicHttpEntity entity = new BasicHttpEntity();
         InputStream inputStream;
         try {
@@ -232,9 +428,16 @@ public class AMMultiPartRequest implements DocumentRequest{
         } catch (IOException ioe) {
             inputStream = connection.getErrorStream();
         }
+        String contentEncoding = connection.getContentEncoding();
+        int contentLength = connection.getContentLength();
+        if (inputStream != null && contentLength != 0 && "gzip".equalsIgnoreCase(contentEncoding)) {
+            inputStream = new GZIPInputStream(inputStream);
+            contentEncoding = null;
+            contentLength = -1;
+        }
         entity.setContent(inputStream);
-        entity.setContentLength(connection.getContentLength());
-        entity.setContentEncoding(connection.getContentEncoding());
+        entity.setContentLength(contentLength);
+        entity.setContentEncoding(contentEncoding);
         entity.setContentType(connection.getContentType());
         return entity;
     }
@@ -247,6 +450,33 @@ public class AMMultiPartRequest implements DocumentRequest{
         return result;
     }
 
+    /**
+     * Stops writing the body as soon as the upload is cancelled, instead of sending the rest of the file.
+     */
+    private class CancellableOutputStream extends FilterOutputStream {
+        CancellableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkCancelled();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            out.write(b, off, len);
+        }
+
+        private void checkCancelled() throws IOException {
+            if (mCancelled) {
+                throw new InterruptedIOException("Upload cancelled");
+            }
+        }
+    }
+
     /** Reads the contents of HttpEntity into a byte[]. */
     private byte[] entityToBytes(HttpEntity entity) throws IOException, ServerError {
         PoolingByteArrayOutputStream bytes =
@@ -0,0 +1,328 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http;
+
+import android.content.Context;
+
+import com.accela.mobile.AMLogger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ *  Keeps the write requests of the outbox on disk until they are delivered, so they survive the process being killed.
+ *  Each entry is a file named after its sequence number, which gives the order they are replayed in. As with
+ *  {@link AMUploadJournal}, the access token isn't saved, it is added again when the entry is sent.
+ *
+ * @since 4.1
+ */
+public class AMOutboxJournal {
+    private final static String JOURNAL_DIR = "accela_outbox";
+    private final static String JOURNAL_SUFFIX = ".entry";
+    private final static String KEY_CALLBACK_ID = "callbackId";
+    private final static String KEY_METHOD = "method";
+    private final static String KEY_PATH = "path";
+    private final static String KEY_URL_PARAMS = "urlParams";
+    private final static String KEY_HEADERS = "headers";
+    private final static String KEY_BODY = "body";
+    private final static String KEY_ORDERING_KEY = "orderingKey";
+    private final static String KEY_ATTEMPTS = "attempts";
+    private final static String KEY_IDEMPOTENCY_KEY = "idempotencyKey";
+    private final static String KEY_BATCH_KEY = "batchKey";
+    private final static String KEY_STRINGS = "strings";
+    private final static String KEY_FILES = "files";
+
+    private final File mDirectory;
+    private long mLastSequence = -1;
+
+    public AMOutboxJournal(Context context) {
+        mDirectory = new File(context.getFilesDir(), JOURNAL_DIR);
+    }
+
+    /**
+     * Record a new entry at the end of the outbox.
+     *
+     * @param entry The entry, its sequence number and its idempotency key, unless it has one, are assigned here.
+     *
+     * @return true if the entry was saved.
+     *
+     * @since 4.1
+     */
+    public synchronized boolean append(Entry entry) {
+        if (mLastSequence < 0) {
+            getEntries();
+        }
+        entry.sequence = ++mLastSequence;
+        if (entry.idempotencyKey == null) {
+            entry.idempotencyKey = UUID.randomUUID().toString();
+        }
+        return write(entry);
+    }
+
+    /**
+     * Save the changes made to an entry, such as its number of attempts.
+     *
+     * @param entry An entry returned by {@link #getEntries()} or recorded by {@link #append(Entry)}.
+     *
+     * @return true if the entry was saved.
+     *
+     * @since 4.1
+     */
+    public synchronized boolean update(Entry entry) {
+        return write(entry);
+    }
+
+    /**
+     * Remove an entry which was delivered or failed for good.
+     *
+     * @param entry The entry to remove.
+     *
+     * @since 4.1
+     */
+    public synchronized void remove(Entry entry) {
+        new File(mDirectory, fileNameOf(entry.sequence)).delete();
+    }
+
+    /**
+     * Get the entries of the outbox. Entries which can't be read, or whose files no longer exist, are returned with
+     * {@link Entry#failure} set, so their failure can be reported before they are removed.
+     *
+     * @return The entries, oldest first.
+     *
+     * @since 4.1
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<Entry>();
+        File[] records = mDirectory.listFiles();
+        mLastSequence = Math.max(mLastSequence, 0);
+        if (records == null) {
+            return entries;
+        }
+        for (File record : records) {
+            String name = record.getName();
+            if (!name.endsWith(JOURNAL_SUFFIX)) {
+                continue;
+            }
+            long sequence;
+            try {
+                sequence = Long.parseLong(name.substring(0, name.length() - JOURNAL_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                // Not written by the journal.
+                continue;
+            }
+            Entry entry;
+            try {
+                entry = readRecord(record);
+            } catch (IOException e) {
+                entry = failedEntry(e.toString());
+            } catch (JSONException e) {
+                entry = failedEntry(e.toString());
+            }
+            entry.sequence = sequence;
+            if (entry.failure != null) {
+                AMLogger.logWarn("Outbox entry " + name + " can't be sent: " + entry.failure);
+            }
+            int index = entries.size();
+            while (index > 0 && entries.get(index - 1).sequence > entry.sequence) {
+                index--;
+            }
+            entries.add(index, entry);
+            mLastSequence = Math.max(mLastSequence, entry.sequence);
+        }
+        return entries;
+    }
+
+    private boolean write(Entry entry) {
+        OutputStream os = null;
+        try {
+            JSONObject record = new JSONObject();
+            record.put(KEY_CALLBACK_ID, entry.callbackId);
+            record.put(KEY_METHOD, entry.method);
+            record.put(KEY_PATH, entry.path);
+            record.put(KEY_URL_PARAMS, new JSONObject(entry.urlParams != null ? entry.urlParams : new HashMap<String, String>()));
+            record.put(KEY_HEADERS, new JSONObject(entry.httpHeader != null ? entry.httpHeader : new HashMap<String, String>()));
+            record.put(KEY_BODY, entry.body);
+            record.put(KEY_ORDERING_KEY, entry.orderingKey);
+            record.put(KEY_ATTEMPTS, entry.attempts);
+            record.put(KEY_IDEMPOTENCY_KEY, entry.idempotencyKey);
+            record.put(KEY_BATCH_KEY, entry.batchKey);
+            if (entry.postParams != null) {
+                Map<String, String> files = new HashMap<String, String>();
+                for (Map.Entry<String, RequestParams.FileWrapper> file : entry.postParams.getFileParams().entrySet()) {
+                    if (file.getValue().mfile != null) {
+                        files.put(file.getKey(), file.getValue().mfile.getAbsolutePath());
+                    }
+                }
+                record.put(KEY_STRINGS, new JSONObject(entry.postParams.stringBody));
+                record.put(KEY_FILES, new JSONObject(files));
+            }
+            if (!mDirectory.exists()) {
+                mDirectory.mkdirs();
+            }
+            // Write aside and rename, so a crash never leaves a truncated entry behind.
+            File file = new File(mDirectory, fileNameOf(entry.sequence));
+            File tmpFile = new File(mDirectory, fileNameOf(entry.sequence) + ".tmp");
+            os = new FileOutputStream(tmpFile);
+            os.write(record.toString().getBytes("UTF-8"));
+            os.flush();
+            closeStream(os);
+            os = null;
+            return tmpFile.renameTo(file);
+        } catch (JSONException e) {
+            AMLogger.logWarn("Could not save outbox entry: " + e.toString());
+        } catch (IOException e) {
+            AMLogger.logWarn("Could not save outbox entry: " + e.toString());
+        } finally {
+            closeStream(os);
+        }
+        return false;
+    }
+
+    private Entry readRecord(File record) throws IOException, JSONException {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(record);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            JSONObject json = new JSONObject(new String(bytes.toByteArray(), "UTF-8"));
+            Entry entry = new Entry();
+            entry.callbackId = json.getString(KEY_CALLBACK_ID);
+            entry.method = json.getString(KEY_METHOD);
+            entry.path = json.getString(KEY_PATH);
+            entry.urlParams = toMap(json.optJSONObject(KEY_URL_PARAMS));
+            entry.httpHeader = toMap(json.optJSONObject(KEY_HEADERS));
+            entry.body = json.isNull(KEY_BODY) ? null : json.optString(KEY_BODY, null);
+            entry.orderingKey = json.isNull(KEY_ORDERING_KEY) ? null : json.optString(KEY_ORDERING_KEY, null);
+            entry.attempts = json.optInt(KEY_ATTEMPTS, 0);
+            entry.idempotencyKey = json.isNull(KEY_IDEMPOTENCY_KEY) ? null : json.optString(KEY_IDEMPOTENCY_KEY, null);
+            entry.batchKey = json.isNull(KEY_BATCH_KEY) ? null : json.optString(KEY_BATCH_KEY, null);
+            if (json.has(KEY_FILES)) {
+                RequestParams postParams = new RequestParams();
+                for (Map.Entry<String, String> string : toMap(json.optJSONObject(KEY_STRINGS)).entrySet()) {
+                    postParams.put(string.getKey(), string.getValue());
+                }
+                for (Map.Entry<String, String> file : toMap(json.optJSONObject(KEY_FILES)).entrySet()) {
+                    File attachment = new File(file.getValue());
+                    if (!attachment.exists()) {
+                        entry.failure = "Attachment " + file.getValue() + " no longer exists";
+                        return entry;
+                    }
+                    postParams.put(file.getKey(), attachment);
+                }
+                entry.postParams = postParams;
+            }
+            return entry;
+        } finally {
+            closeStream(is);
+        }
+    }
+
+    /**
+     * An entry whose record couldn't be read, its callback ID is unknown.
+     */
+    private static Entry failedEntry(String failure) {
+        Entry entry = new Entry();
+        entry.failure = failure;
+        return entry;
+    }
+
+    private static Map<String, String> toMap(JSONObject json) throws JSONException {
+        Map<String, String> map = new HashMap<String, String>();
+        if (json != null) {
+            // Raw on older Android versions.
+            Iterator keys = json.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                map.put(key, json.getString(key));
+            }
+        }
+        return map;
+    }
+
+    private static String fileNameOf(long sequence) {
+        // Zero padded, so the names sort like the sequence numbers.
+        return String.format("%019d", sequence) + JOURNAL_SUFFIX;
+    }
+
+    private static void closeStream(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * A write request waiting in the outbox.
+     *
+     * @since 4.1
+     */
+    public static class Entry {
+        /** Position of the entry in the outbox, assigned when it is appended. */
+        public long sequence;
+        /** ID the result of the request is reported with, null for an entry whose record couldn't be read. */
+        public String callbackId;
+        /** HTTP method, such as "POST". */
+        public String method;
+        /** Path of the API endpoint, relative to the API host. */
+        public String path;
+        public Map<String, String> urlParams;
+        public Map<String, String> httpHeader;
+        /** JSON body of the request, or null. */
+        public String body;
+        /** Entries with the same key, typically the ID of a record, are sent one at a time in order. */
+        public String orderingKey;
+        /** Number of times the entry was sent without being delivered. */
+        public int attempts;
+        /** Sent with every attempt, so the server can recognize a request it already applied. */
+        public String idempotencyKey;
+        /**
+         * Idempotency key of the batch call the entry went out in without getting a response, null otherwise. The entries
+         * sharing it are sent again together in the same batch, under the same key.
+         */
+        public String batchKey;
+        /** Why the entry can't be sent, for an entry which couldn't be read or whose files are gone, null otherwise. */
+        public String failure;
+        /** Parameters and files of an attachment upload, null for other requests. */
+        public RequestParams postParams;
+
+        public boolean isUpload() {
+            return postParams != null;
+        }
+    }
+}
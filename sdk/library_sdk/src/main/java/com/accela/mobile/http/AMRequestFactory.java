@@ -24,6 +24,9 @@ import com.accela.mobile.AMError;
 import com.accela.mobile.AMLogger;
 import com.accela.mobile.AMRequest;
 import com.accela.mobile.AMRequestDelegate;
+import com.accela.mobile.AMTypedRequestDelegate;
+import com.accela.mobile.http.volley.CircuitOpenError;
+import com.accela.mobile.http.volley.DeadlineExceededError;
 import com.accela.mobile.http.volley.NetworkResponse;
 import com.accela.mobile.http.volley.Response;
 import com.accela.mobile.http.volley.VolleyError;
@@ -35,6 +38,7 @@ import org.json.JSONObject;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -45,62 +49,120 @@ public class AMRequestFactory {
     public static AMHttpRequest createJsonRequest(String url, int method, HashMap<String, String> customHttpHeader, String requestBody, boolean shouldCache,
                                               final AMRequestDelegate requestDelegate){
         AMHttpRequest jsonRequest = new AMJsonRequest
-                (method, url, customHttpHeader, requestBody, new Response.Listener<JSONObject>() {
-
-                    @Override
-                    public void onResponse(JSONObject response) {
-                        Object jsonResponse = response;
-                        if(jsonResponse instanceof JSONObject) {
-                            requestDelegate.onSuccess((JSONObject) jsonResponse);
-                        } else{
-                            requestDelegate.onFailure(new AMError(200, null, null, "JsonHttpResponseHandler: unknown json type!", null));
-                        }                    }
-                }, new Response.ErrorListener() {
-
-                    @Override
-                    public void onErrorResponse(VolleyError error) {
-                        NetworkResponse response = error.networkResponse;
-                            if (response==null){
-                            requestDelegate.onFailure(new AMError(0, null, null, error.toString(), null));
-                            return;
-                        }
-                        if (response.headers==null){
-                            requestDelegate.onFailure(new AMError(response.statusCode, null, null, error.toString(), null));
-                            return;
-                        }
-                        String traceId = "", errorMessage=null;
-                        if (response.headers!=null){
-                            traceId = response.headers.get(AMRequest.HEADER_X_ACCELA_TRACEID);
-                            errorMessage = response.headers.get(AMRequest.HEADER_X_ACCELA_RESP_MESSAGE);
-                        }
-                        //get error message
-                        String jsonString = null;
-                        try {
-                            jsonString = new String(response.data, AMHttpRequest.PROTOCOL_CHARSET);
-                        } catch (UnsupportedEncodingException e) {
+                (method, url, customHttpHeader, requestBody, createJsonListener(requestDelegate), createJsonErrorListener(requestDelegate));
+        jsonRequest.setShouldCache(shouldCache);
+        jsonRequest.setShouldCache(shouldCache);
+        jsonRequest.setStaleResponseListener(new Response.Listener<JSONObject>() {
 
-                        }
-                        if(jsonString!= null) {
-                            try {
-                                JSONObject responseJson = new JSONObject(jsonString);
-                                JSONArray results = responseJson.getJSONArray("result");
-                                if(results.length()>0) {
-                                    JSONObject result = results.getJSONObject(0);
-                                    errorMessage = result.optString("message", errorMessage);
-                                }
-                            } catch (JSONException e) {
+            @Override
+            public void onResponse(JSONObject response) {
+                requestDelegate.onSuccess(response, true);
+            }
+        });
 
-                            }
+        return jsonRequest;
+    }
+
+    /**
+     * Create a JSON request which hands the elements of the "result" array to {@link AMRequestDelegate#onResultItem(JSONObject, int)}
+     * while the response is read, then the rest of the response to {@link AMRequestDelegate#onSuccess(JSONObject)}.
+     * Streamed responses are never cached.
+     *
+     * @since 4.1
+     */
+    public static AMHttpRequest createStreamingJsonRequest(String url, int method, HashMap<String, String> customHttpHeader, String requestBody,
+                                              final AMRequestDelegate requestDelegate){
+        return new AMStreamingJsonRequest(method, url, customHttpHeader, requestBody, new AMStreamingJsonRequest.ItemListener() {
+
+            @Override
+            public void onItem(JSONObject item, int index) {
+                requestDelegate.onResultItem(item, index);
+            }
+        }, createJsonListener(requestDelegate), createJsonErrorListener(requestDelegate));
+    }
+
+    /**
+     * Create a JSON request which binds the elements of the "result" array with the binder while the response is read,
+     * then hands them to {@link AMTypedRequestDelegate#onSuccess(List, JSONObject)}. Bound responses are never cached.
+     *
+     * @since 4.1
+     */
+    public static <T> AMHttpRequest createBoundJsonRequest(String url, int method, HashMap<String, String> customHttpHeader, String requestBody,
+                                              AMJsonBinder<T> binder, final AMTypedRequestDelegate<T> requestDelegate){
+        return new AMBoundJsonRequest<T>(method, url, customHttpHeader, requestBody, binder, new AMBoundJsonRequest.ResultListener<T>() {
+
+            @Override
+            public void onResult(List<T> items, JSONObject response) {
+                requestDelegate.onSuccess(items, response);
+            }
+        }, createJsonErrorListener(requestDelegate));
+    }
+
+    private static Response.Listener<JSONObject> createJsonListener(final AMRequestDelegate requestDelegate) {
+        return new Response.Listener<JSONObject>() {
+
+            @Override
+            public void onResponse(JSONObject response) {
+                Object jsonResponse = response;
+                if(jsonResponse instanceof JSONObject) {
+                    requestDelegate.onSuccess((JSONObject) jsonResponse, false);
+                } else{
+                    requestDelegate.onFailure(new AMError(200, null, null, "JsonHttpResponseHandler: unknown json type!", null));
+                }                    }
+        };
+    }
+
+    private static Response.ErrorListener createJsonErrorListener(final AMRequestDelegate requestDelegate) {
+        return new Response.ErrorListener() {
+
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                if (error instanceof DeadlineExceededError) {
+                    requestDelegate.onFailure(new AMError(AMError.STATUS_CODE_OTHER, AMError.ERROR_CODE_DEADLINE_EXCEEDED, null, "Request deadline exceeded", error.toString()));
+                    return;
+                }
+                if (error instanceof CircuitOpenError) {
+                    requestDelegate.onFailure(new AMError(AMError.STATUS_CODE_OTHER, AMError.ERROR_CODE_CIRCUIT_OPEN, null, "Service temporarily unavailable", error.toString()));
+                    return;
+                }
+                NetworkResponse response = error.networkResponse;
+                    if (response==null){
+                    requestDelegate.onFailure(new AMError(0, null, null, error.toString(), null));
+                    return;
+                }
+                if (response.headers==null){
+                    requestDelegate.onFailure(new AMError(response.statusCode, null, null, error.toString(), null));
+                    return;
+                }
+                String traceId = "", errorMessage=null;
+                if (response.headers!=null){
+                    traceId = response.headers.get(AMRequest.HEADER_X_ACCELA_TRACEID);
+                    errorMessage = response.headers.get(AMRequest.HEADER_X_ACCELA_RESP_MESSAGE);
+                }
+                //get error message
+                String jsonString = null;
+                try {
+                    jsonString = new String(response.data, AMHttpRequest.PROTOCOL_CHARSET);
+                } catch (UnsupportedEncodingException e) {
+
+                }
+                if(jsonString!= null) {
+                    try {
+                        JSONObject responseJson = new JSONObject(jsonString);
+                        JSONArray results = responseJson.getJSONArray("result");
+                        if(results.length()>0) {
+                            JSONObject result = results.getJSONObject(0);
+                            errorMessage = result.optString("message", errorMessage);
                         }
+                    } catch (JSONException e) {
 
-                        AMLogger.logError("Request Failed" + response.headers.toString());
-                        requestDelegate.onFailure(new AMError(response.statusCode, null, traceId, errorMessage!=null ? errorMessage : error.toString(), response.headers.toString()));
                     }
-                });
-        jsonRequest.setShouldCache(shouldCache);
-        jsonRequest.setShouldCache(shouldCache);
+                }
 
-        return jsonRequest;
+                AMLogger.logError("Request Failed" + response.headers.toString());
+                requestDelegate.onFailure(new AMError(response.statusCode, null, traceId, errorMessage!=null ? errorMessage : error.toString(), response.headers.toString()));
+            }
+        };
     }
 
     public static AMHttpRequest createLoginRequest(String url, int method, HashMap<String, String> customHttpHeader, String requestBody, boolean shouldCache, final AMRequestDelegate requestDelegate) {
@@ -17,30 +17,71 @@
  */
 package com.accela.mobile.http;
 
+import android.content.Context;
+
 import com.accela.mobile.http.volley.Cache;
+import com.accela.mobile.http.volley.CircuitBreaker;
 import com.accela.mobile.http.volley.Network;
 import com.accela.mobile.http.volley.Request;
 import com.accela.mobile.http.volley.RequestQueue;
+import com.accela.mobile.http.volley.TokenRefresher;
 import com.accela.mobile.http.volley.toolbox.BasicNetwork;
+import com.accela.mobile.http.volley.toolbox.ByteArrayPool;
+import com.accela.mobile.http.volley.toolbox.ClearCacheRequest;
+import com.accela.mobile.http.volley.toolbox.DiskBasedCache;
 import com.accela.mobile.http.volley.toolbox.HurlStack;
 import com.accela.mobile.http.volley.toolbox.NoCache;
 
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Created by eyang on 8/20/15.
  */
 public class AMRequestQueueManager {
-    private static AMRequestQueueManager mInstance;
+    private static volatile AMRequestQueueManager mInstance;
     private RequestQueue mRequestQueue;
 
-    /** Number of network request dispatcher threads to start. */
+    /** Maximum number of network request workers running at the same time. */
     private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
+    /** Sub folder of the application cache directory holding cached HTTP responses. */
+    private static final String DEFAULT_CACHE_DIR = "accela_http_cache";
+    /** Maximum size in bytes of the buffers kept for reading response bodies. */
+    private static final int BUFFER_POOL_SIZE = 512 * 1024;
+    private static final ByteArrayPool mBufferPool = new ByteArrayPool(BUFFER_POOL_SIZE);
+    /** Number of threads parsing responses, apart from the network threads. */
+    private static final int PARSE_THREAD_POOL_SIZE = 2;
+    private static final long PARSE_THREAD_KEEP_ALIVE_SECONDS = 30;
     private static int mPoolSize = -1;
     private static int mDiskCacheSize = -1;
+    private static Executor mNetworkExecutor;
+    private static CircuitBreaker mCircuitBreaker = new CircuitBreaker();
+    private static TokenRefresher mTokenRefresher;
+    private static File mCacheDir;
+    /** Whether the request queue was built with a disk cache, the settings above may have changed since. */
+    private static volatile boolean mDiskCacheBuilt;
+
+    /** Requests sent for the user, as opposed to deferred ones, which haven't finished. */
+    private final Set<Request<?>> mForegroundRequests = new HashSet<Request<?>>();
+    private volatile Runnable mForegroundIdleListener;
 
     private AMRequestQueueManager() {
         // getApplicationContext() is key, it keeps you from leaking the
         // Activity or BroadcastReceiver if someone passes one in.
         mRequestQueue = getRequestQueue();
+        mRequestQueue.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                onRequestFinishedInQueue(request);
+            }
+        });
 
         mRequestQueue.start();
     }
@@ -48,29 +89,246 @@ public class AMRequestQueueManager {
     public static synchronized AMRequestQueueManager buildAMRequestQueue(int netWorkThreadPoolSize, int diskCacheSize) {
         mPoolSize = netWorkThreadPoolSize;
         mDiskCacheSize = diskCacheSize;
+        if (mInstance != null) {
+            mInstance.getRequestQueue().setMaxNetworkThreads(mPoolSize > 0 ? mPoolSize : DEFAULT_NETWORK_THREAD_POOL_SIZE);
+        }
         return buildAMRequestQueue();
     }
 
+    /**
+     * Set the executor which runs the network requests, so the SDK shares the threads of the host app instead of
+     * creating its own. Network workers are only started while requests are waiting, up to the network thread pool
+     * size, and return to the executor as soon as no request is left.
+     * Must be called before the request queue is built, later calls have no effect.
+     *
+     * @param executor The executor to run network requests on, or null for threads owned by the SDK.
+     *
+     * @since 4.1
+     */
+    public static synchronized void setNetworkExecutor(Executor executor) {
+        mNetworkExecutor = executor;
+    }
+
+    /**
+     * Set the maximum number of network requests running at the same time. The pool of network threads grows up to
+     * this size while requests are waiting, and shrinks back when they are done.
+     *
+     * @param netWorkThreadPoolSize Maximum number of network threads, or a value <= 0 for the default.
+     *
+     * @since 4.1
+     */
+    public static synchronized void setMaxNetworkThreads(int netWorkThreadPoolSize) {
+        mPoolSize = netWorkThreadPoolSize;
+        if (mInstance != null) {
+            mInstance.getRequestQueue().setMaxNetworkThreads(mPoolSize > 0 ? mPoolSize : DEFAULT_NETWORK_THREAD_POOL_SIZE);
+        }
+    }
 
-    public static synchronized AMRequestQueueManager buildAMRequestQueue() {
-        if (mInstance == null) {
-            mInstance = new AMRequestQueueManager();
+    /**
+     * Set the circuit breaker guarding the API endpoints. When the requests to an endpoint keep failing or getting
+     * slow, further requests to it fail immediately with {@link com.accela.mobile.AMError#ERROR_CODE_CIRCUIT_OPEN}
+     * for a while, so they don't hold the network threads needed by healthy endpoints. A default breaker is used
+     * unless another one is set.
+     *
+     * @param circuitBreaker The circuit breaker with the thresholds to apply, or null to always send requests.
+     *
+     * @since 4.1
+     */
+    public static synchronized void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        mCircuitBreaker = circuitBreaker;
+        if (mInstance != null) {
+            mInstance.getRequestQueue().setCircuitBreaker(circuitBreaker);
+        }
+    }
+
+    /**
+     * Get the circuit breaker guarding the API endpoints, for instance to observe its state through
+     * {@link CircuitBreaker#setListener(CircuitBreaker.Listener)}.
+     *
+     * @return The circuit breaker, or null if requests are always sent.
+     *
+     * @since 4.1
+     */
+    public static synchronized CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    /**
+     * Set the refresher of the access token sent with the API requests, see {@link TokenRefresher}. The
+     * {@link com.accela.mobile.AuthorizationManager} sets it when it is created.
+     *
+     * @param tokenRefresher The token refresher, or null to send requests with the token they were created with.
+     *
+     * @since 4.1
+     */
+    public static synchronized void setTokenRefresher(TokenRefresher tokenRefresher) {
+        mTokenRefresher = tokenRefresher;
+        if (mInstance != null) {
+            mInstance.getRequestQueue().setTokenRefresher(tokenRefresher);
+        }
+    }
+
+    /**
+     * Build the request queue with a persistent HTTP response cache.
+     *
+     * @param context The context used to locate the application cache directory.
+     * @param netWorkThreadPoolSize Maximum number of network threads, or a value <= 0 for the default.
+     * @param diskCacheSize Maximum size of the response cache in bytes, or a value <= 0 to disable caching.
+     *
+     * @return The AMRequestQueueManager instance.
+     *
+     * @since 4.1
+     */
+    public static synchronized AMRequestQueueManager buildAMRequestQueue(Context context, int netWorkThreadPoolSize, int diskCacheSize) {
+        if (context != null) {
+            mCacheDir = new File(context.getApplicationContext().getCacheDir(), DEFAULT_CACHE_DIR);
+        }
+        return buildAMRequestQueue(netWorkThreadPoolSize, diskCacheSize);
+    }
+
+
+    public static AMRequestQueueManager buildAMRequestQueue() {
+        // Called for every request, only take the lock until the queue exists.
+        AMRequestQueueManager instance = mInstance;
+        if (instance != null) {
+            return instance;
+        }
+        synchronized (AMRequestQueueManager.class) {
+            if (mInstance == null) {
+                mInstance = new AMRequestQueueManager();
+            }
+            return mInstance;
         }
-        return mInstance;
     }
 
     public RequestQueue getRequestQueue() {
         if (mRequestQueue == null) {
-            Cache cache = new NoCache();
-            Network network = new BasicNetwork(new HurlStack());
-            // Instantiate the RequestQueue with the cache and network.
-            mRequestQueue = new RequestQueue(cache, network, mPoolSize>0 ? mPoolSize : DEFAULT_NETWORK_THREAD_POOL_SIZE);
+            mDiskCacheBuilt = mCacheDir != null && mDiskCacheSize > 0;
+            Cache cache = mDiskCacheBuilt ? new DiskBasedCache(mCacheDir, mDiskCacheSize) : new NoCache();
+            Network network = new BasicNetwork(new HurlStack(), mBufferPool);
+            // Instantiate the RequestQueue with the cache and network, network threads are started on demand.
+            mRequestQueue = new RequestQueue(cache, network, mPoolSize>0 ? mPoolSize : DEFAULT_NETWORK_THREAD_POOL_SIZE,
+                    mNetworkExecutor);
+            // Network threads hand responses over to be parsed, and go back to network I/O.
+            mRequestQueue.setParseExecutor(createParseExecutor());
+            mRequestQueue.setCircuitBreaker(mCircuitBreaker);
+            mRequestQueue.setTokenRefresher(mTokenRefresher);
         }
         return mRequestQueue;
     }
 
+    private static Executor createParseExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(PARSE_THREAD_POOL_SIZE, PARSE_THREAD_POOL_SIZE,
+                PARSE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                // The thread priority is set for each request it parses, see NetworkRequestProcessor.
+                return new Thread(runnable, "AMParse-" + mCount.getAndIncrement());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * The buffer pool shared by the request queue and the document transfers.
+     *
+     * @return The buffer pool.
+     *
+     * @since 4.1
+     */
+    static ByteArrayPool getBufferPool() {
+        return mBufferPool;
+    }
+
     public <T> void addToRequestQueue(Request<T> req) {
+        addToRequestQueue(req, true);
+    }
+
+    /**
+     * Add a request to the queue.
+     *
+     * @param req The request.
+     * @param foreground false for a deferred request, which doesn't hold back other deferred requests.
+     *
+     * @since 4.1
+     */
+    public <T> void addToRequestQueue(Request<T> req, boolean foreground) {
+        if (foreground) {
+            synchronized (mForegroundRequests) {
+                mForegroundRequests.add(req);
+            }
+        }
         getRequestQueue().add(req);
     }
 
+    /**
+     * Raise the priority of a request already added, see {@link RequestQueue#raisePriority(Request, Request.Priority)}.
+     *
+     * @param req The request.
+     * @param priority The new priority.
+     *
+     * @since 4.1
+     */
+    public void raisePriority(Request<?> req, Request.Priority priority) {
+        getRequestQueue().raisePriority(req, priority);
+    }
+
+    /**
+     * Get the number of requests sent for the user which haven't finished, deferred requests wait until there is none.
+     *
+     * @return The number of requests.
+     *
+     * @since 4.1
+     */
+    public int getForegroundRequestCount() {
+        synchronized (mForegroundRequests) {
+            return mForegroundRequests.size();
+        }
+    }
+
+    /**
+     * Set the listener told when the last request sent for the user has finished, on the thread which finished it.
+     *
+     * @param listener The listener, or null.
+     *
+     * @since 4.1
+     */
+    public void setForegroundIdleListener(Runnable listener) {
+        mForegroundIdleListener = listener;
+    }
+
+    private void onRequestFinishedInQueue(Request<?> request) {
+        boolean idle;
+        synchronized (mForegroundRequests) {
+            idle = mForegroundRequests.remove(request) && mForegroundRequests.isEmpty();
+        }
+        Runnable listener = mForegroundIdleListener;
+        if (idle && listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Whether responses are persisted to the disk cache.
+     *
+     * @return true if the request queue has been built with a disk cache.
+     *
+     * @since 4.1
+     */
+    public static boolean isCacheEnabled() {
+        return mDiskCacheBuilt;
+    }
+
+    /**
+     * Remove all cached responses. The cache is cleared on the cache dispatcher thread.
+     *
+     * @since 4.1
+     */
+    public void clearCache() {
+        getRequestQueue().add(new ClearCacheRequest(getRequestQueue().getCache(), null));
+    }
+
 }
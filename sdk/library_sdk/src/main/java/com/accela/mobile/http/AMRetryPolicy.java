@@ -17,13 +17,15 @@
  */
 package com.accela.mobile.http;
 
-import com.accela.mobile.http.volley.RetryPolicy;
+import com.accela.mobile.http.volley.BackoffRetryPolicy;
 import com.accela.mobile.http.volley.VolleyError;
 
+import java.util.Random;
+
 /**
  * Created by eyang on 9/29/15.
  */
-public class AMRetryPolicy implements RetryPolicy {
+public class AMRetryPolicy implements BackoffRetryPolicy {
     /** The current timeout in milliseconds. */
     private int mCurrentTimeoutMs;
 
@@ -36,6 +38,9 @@ public class AMRetryPolicy implements RetryPolicy {
     /** The backoff multiplier for the policy. */
     private final float mBackoffMultiplier;
 
+    /** The delay before the next attempt in milliseconds. */
+    private long mRetryDelayMs;
+
     /** The default socket timeout in milliseconds */
     public static final int DEFAULT_TIMEOUT_MS = 1000*60;//2500*4; //prolong to 10s for QA environment, the networking is very slow
 
@@ -45,6 +50,14 @@ public class AMRetryPolicy implements RetryPolicy {
     /** The default backoff multiplier */
     public static final float DEFAULT_BACKOFF_MULT = 1f;
 
+    /** The delay before the first retry in milliseconds, doubled for each further retry */
+    public static final int BASE_RETRY_DELAY_MS = 1000;
+
+    /** The longest delay between two attempts in milliseconds */
+    public static final int MAX_RETRY_DELAY_MS = 30 * 1000;
+
+    private static final Random sJitter = new Random();
+
     /**
      * Constructs a new retry policy using the default timeouts.
      */
@@ -87,6 +100,14 @@ public class AMRetryPolicy implements RetryPolicy {
         return mBackoffMultiplier;
     }
 
+    /**
+     * Returns the delay before the next attempt.
+     */
+    @Override
+    public long getRetryDelayMs() {
+        return mRetryDelayMs;
+    }
+
     /**
      * Prepares for the next retry by applying a backoff to the timeout.
      * @param error The error code of the last attempt.
@@ -98,6 +119,21 @@ public class AMRetryPolicy implements RetryPolicy {
         if (!hasAttemptRemaining()) {
             throw error;
         }
+        mRetryDelayMs = computeRetryDelay(mCurrentRetryCount);
+    }
+
+    /**
+     * Exponential backoff with equal jitter: half of the delay is fixed, the other half random,
+     * so devices which failed at the same time don't retry at the same time.
+     */
+    static long computeRetryDelay(int retryCount) {
+        long delay = BASE_RETRY_DELAY_MS;
+        for (int i = 1; i < retryCount && delay < MAX_RETRY_DELAY_MS; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, MAX_RETRY_DELAY_MS);
+        long half = delay / 2;
+        return half + (long) (sJitter.nextDouble() * half);
     }
 
     /**
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.accela.mobile.http.volley.ParseError;
+import com.accela.mobile.http.volley.Response;
+import com.accela.mobile.http.volley.VolleyError;
+import com.accela.mobile.http.volley.toolbox.HttpHeaderParser;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * JSON request which parses the response as it is read from the connection. Each element of the
+ * "result" array is handed to the item listener on the main thread as soon as it is parsed, and the
+ * regular listener then receives the rest of the response, without the "result" array.
+ *
+ * @since 4.1
+ */
+class AMStreamingJsonRequest extends AMJsonRequest {
+
+    /** Name of the array whose elements are delivered one by one. */
+    static final String RESULT_KEY = "result";
+
+    private final ItemListener mItemListener;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Callback for the elements of the "result" array, called in the order of the response on the main thread, or on
+     * the delivery executor of the request.
+     */
+    interface ItemListener {
+        void onItem(JSONObject item, int index);
+    }
+
+    public AMStreamingJsonRequest(int method, String url, HashMap<String, String> customHttpHeader, String stringRequestBody, ItemListener itemListener,
+                                  Response.Listener<JSONObject> listener, Response.ErrorListener errorListener) {
+        super(method, url, customHttpHeader, stringRequestBody, listener, errorListener);
+        mItemListener = itemListener;
+        // Items already delivered can't be taken back, so a failure is never retried.
+        setRetryPolicy(new AMRetryPolicy(AMRetryPolicy.DEFAULT_TIMEOUT_MS, 0, AMRetryPolicy.DEFAULT_BACKOFF_MULT));
+        setShouldCache(false);
+    }
+
+    @Override
+    public boolean isStreamingResponse() {
+        return true;
+    }
+
+    @Override
+    public byte[] parseNetworkResponseStream(InputStream in, Map<String, String> headers) throws IOException, VolleyError {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, HttpHeaderParser.parseCharset(headers, PROTOCOL_CHARSET)));
+        JSONObject summary = new JSONObject();
+        try {
+            reader.beginObject();
+            while (reader.hasNext() && !isCanceled()) {
+                String name = reader.nextName();
+                if (RESULT_KEY.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    summary.put(RESULT_KEY, readResult(reader));
+                } else {
+                    summary.put(name, readValue(reader));
+                }
+            }
+            if (!isCanceled()) {
+                // A body cut short fails here instead of passing for a complete response.
+                reader.endObject();
+                if (reader.peek() != JsonToken.END_DOCUMENT) {
+                    throw new ParseError(new JSONException("Unexpected data after the response object"));
+                }
+            }
+        } catch (IllegalStateException e) {
+            throw new ParseError(e);
+        } catch (NumberFormatException e) {
+            throw new ParseError(e);
+        } catch (JSONException e) {
+            throw new ParseError(e);
+        }
+        // The summary is small, it goes through the regular parsing and delivery.
+        return summary.toString().getBytes(PROTOCOL_CHARSET);
+    }
+
+    /**
+     * Deliver the objects of the result array one by one, anything else is kept in the returned array.
+     */
+    private JSONArray readResult(JsonReader reader) throws IOException, JSONException {
+        JSONArray others = new JSONArray();
+        int index = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (isCanceled()) {
+                return others;
+            }
+            Object item = readResultItem(reader);
+            if (!handleResultItem(item, index)) {
+                others.put(item);
+            } else {
+                index++;
+            }
+        }
+        reader.endArray();
+        return others;
+    }
+
+    /**
+     * Read one element of the result array, called on the network thread.
+     */
+    protected Object readResultItem(JsonReader reader) throws IOException, JSONException {
+        return readValue(reader);
+    }
+
+    /**
+     * Hand over one element of the result array, called on the network thread.
+     *
+     * @return false to keep the element in the result array of the response instead.
+     */
+    protected boolean handleResultItem(Object item, final int index) {
+        if (!(item instanceof JSONObject) || mItemListener == null) {
+            return false;
+        }
+        final JSONObject jsonItem = (JSONObject) item;
+        Runnable itemDelivery = new Runnable() {
+            @Override
+            public void run() {
+                if (!isCanceled()) {
+                    mItemListener.onItem(jsonItem, index);
+                }
+            }
+        };
+        // Items go where the response goes.
+        Executor deliveryExecutor = getDeliveryExecutor();
+        if (deliveryExecutor != null) {
+            deliveryExecutor.execute(itemDelivery);
+        } else {
+            mMainHandler.post(itemDelivery);
+        }
+        return true;
+    }
+
+    /**
+     * Read the next value of the reader into the equivalent org.json value.
+     */
+    static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    object.put(reader.nextName(), readValue(reader));
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                String number = reader.nextString();
+                if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+                    try {
+                        return Long.parseLong(number);
+                    } catch (NumberFormatException e) {
+                        // Too large for a long, falls back to a double.
+                    }
+                }
+                return Double.parseDouble(number);
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http;
+
+import android.content.Context;
+
+import com.accela.mobile.AMLogger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ *  Keeps a record of the attachment uploads which haven't completed yet, so they can be sent again
+ *  after the process was killed. Only the URL, the custom HTTP headers and the parameters are saved,
+ *  the access token is added again when the upload is resent.
+ *
+ * @since 4.1
+ */
+public class AMUploadJournal {
+    private final static String JOURNAL_DIR = "accela_uploads";
+    private final static String JOURNAL_SUFFIX = ".upload";
+    private final static String KEY_URL = "url";
+    private final static String KEY_HEADERS = "headers";
+    private final static String KEY_STRINGS = "strings";
+    private final static String KEY_FILES = "files";
+
+    /** The uploads of this process which are being sent, they aren't pending. */
+    private final static Set<String> runningUploads = Collections.synchronizedSet(new HashSet<String>());
+
+    private final File mDirectory;
+
+    public AMUploadJournal(Context context) {
+        mDirectory = new File(context.getFilesDir(), JOURNAL_DIR);
+    }
+
+    /**
+     * Record a new upload before it is sent.
+     *
+     * @param url The URL the upload is posted to, including its query string.
+     * @param httpHeader The custom HTTP headers of the request, or null.
+     * @param postParams The parameters and files to upload.
+     *
+     * @return The ID of the record, or null if it couldn't be saved.
+     *
+     * @since 4.1
+     */
+    public String save(String url, Map<String, String> httpHeader, RequestParams postParams) {
+        return save(null, url, httpHeader, postParams);
+    }
+
+    /**
+     * Record an upload before it is sent. Recording an upload again with the ID of its record replaces the record.
+     *
+     * @param uploadId The ID of the record of the upload, or null for a new upload.
+     * @param url The URL the upload is posted to, including its query string.
+     * @param httpHeader The custom HTTP headers of the request, or null.
+     * @param postParams The parameters and files to upload.
+     *
+     * @return The ID of the record, or null if it couldn't be saved.
+     *
+     * @since 4.1
+     */
+    public synchronized String save(String uploadId, String url, Map<String, String> httpHeader, RequestParams postParams) {
+        Map<String, String> strings = new TreeMap<String, String>(postParams.stringBody);
+        Map<String, String> files = new TreeMap<String, String>();
+        for (Map.Entry<String, RequestParams.FileWrapper> entry : postParams.getFileParams().entrySet()) {
+            if (entry.getValue().mfile != null) {
+                files.put(entry.getKey(), entry.getValue().mfile.getAbsolutePath());
+            }
+        }
+        if (uploadId == null) {
+            uploadId = UUID.randomUUID().toString();
+        }
+        OutputStream os = null;
+        try {
+            JSONObject record = new JSONObject();
+            record.put(KEY_URL, url);
+            record.put(KEY_HEADERS, new JSONObject(httpHeader != null ? httpHeader : new HashMap<String, String>()));
+            record.put(KEY_STRINGS, new JSONObject(strings));
+            record.put(KEY_FILES, new JSONObject(files));
+            if (!mDirectory.exists()) {
+                mDirectory.mkdirs();
+            }
+            os = new FileOutputStream(new File(mDirectory, uploadId + JOURNAL_SUFFIX));
+            os.write(record.toString().getBytes("UTF-8"));
+            os.flush();
+            return uploadId;
+        } catch (JSONException e) {
+            AMLogger.logWarn("Could not save upload record: " + e.toString());
+        } catch (IOException e) {
+            AMLogger.logWarn("Could not save upload record: " + e.toString());
+        } finally {
+            closeStream(os);
+        }
+        return null;
+    }
+
+    /**
+     * Remove the record of an upload which has completed or failed for good.
+     *
+     * @param uploadId The ID returned by {@link #save(String, Map, RequestParams)}.
+     *
+     * @since 4.1
+     */
+    public synchronized void remove(String uploadId) {
+        if (uploadId != null) {
+            new File(mDirectory, uploadId + JOURNAL_SUFFIX).delete();
+        }
+    }
+
+    /**
+     * Mark an upload as being sent by this process, so it isn't returned by {@link #getPendingUploads()} meanwhile.
+     *
+     * @param uploadId The ID of the record of the upload.
+     * @param running true when the upload is sent, false once it has completed or failed.
+     *
+     * @since 4.1
+     */
+    public static void setRunning(String uploadId, boolean running) {
+        if (uploadId == null) {
+            return;
+        }
+        if (running) {
+            runningUploads.add(uploadId);
+        } else {
+            runningUploads.remove(uploadId);
+        }
+    }
+
+    /**
+     * Get the uploads which were recorded and haven't completed, leaving out those being sent by this process.
+     * Records whose files no longer exist are dropped.
+     *
+     * @return The pending uploads, oldest first.
+     *
+     * @since 4.1
+     */
+    public synchronized List<PendingUpload> getPendingUploads() {
+        List<PendingUpload> pendingUploads = new ArrayList<PendingUpload>();
+        File[] records = mDirectory.listFiles();
+        if (records == null) {
+            return pendingUploads;
+        }
+        List<File> sortedRecords = new ArrayList<File>();
+        for (File record : records) {
+            if (record.getName().endsWith(JOURNAL_SUFFIX)) {
+                int index = 0;
+                while (index < sortedRecords.size() && sortedRecords.get(index).lastModified() <= record.lastModified()) {
+                    index++;
+                }
+                sortedRecords.add(index, record);
+            }
+        }
+        for (File record : sortedRecords) {
+            String uploadId = record.getName().substring(0, record.getName().length() - JOURNAL_SUFFIX.length());
+            if (runningUploads.contains(uploadId)) {
+                continue;
+            }
+            PendingUpload pendingUpload = readRecord(uploadId, record);
+            if (pendingUpload != null) {
+                pendingUploads.add(pendingUpload);
+            } else {
+                record.delete();
+            }
+        }
+        return pendingUploads;
+    }
+
+    private PendingUpload readRecord(String uploadId, File record) {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(record);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            JSONObject json = new JSONObject(new String(bytes.toByteArray(), "UTF-8"));
+            Map<String, String> httpHeader = toMap(json.optJSONObject(KEY_HEADERS));
+            RequestParams postParams = new RequestParams();
+            for (Map.Entry<String, String> entry : toMap(json.optJSONObject(KEY_STRINGS)).entrySet()) {
+                postParams.put(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, String> entry : toMap(json.optJSONObject(KEY_FILES)).entrySet()) {
+                File file = new File(entry.getValue());
+                if (!file.exists()) {
+                    return null;
+                }
+                postParams.put(entry.getKey(), file);
+            }
+            return new PendingUpload(uploadId, json.getString(KEY_URL), httpHeader, postParams);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        } catch (JSONException e) {
+            return null;
+        } finally {
+            closeStream(is);
+        }
+    }
+
+    private static Map<String, String> toMap(JSONObject json) throws JSONException {
+        Map<String, String> map = new HashMap<String, String>();
+        if (json != null) {
+            // Raw on older Android versions.
+            Iterator keys = json.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                map.put(key, json.getString(key));
+            }
+        }
+        return map;
+    }
+
+    private static void closeStream(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * An upload which was recorded by {@link #save(String, Map, RequestParams)} and hasn't completed.
+     *
+     * @since 4.1
+     */
+    public static class PendingUpload {
+        public final String uploadId;
+        public final String url;
+        public final Map<String, String> httpHeader;
+        public final RequestParams postParams;
+
+        PendingUpload(String uploadId, String url, Map<String, String> httpHeader, RequestParams postParams) {
+            this.uploadId = uploadId;
+            this.url = url;
+            this.httpHeader = httpHeader;
+            this.postParams = postParams;
+        }
+    }
+}
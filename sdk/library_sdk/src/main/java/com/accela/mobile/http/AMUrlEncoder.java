@@ -0,0 +1,95 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http;
+
+import com.accela.mobile.http.volley.Legacy.URLEncodedUtils;
+
+/**
+ * Percent-encoding shared by the URL builders of the SDK. It is internal to the SDK and not meant to be used by apps.
+ *
+ * @since 4.1
+ */
+public final class AMUrlEncoder {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private AMUrlEncoder() {
+    }
+
+    /**
+     * Append a value encoded as "application/x-www-form-urlencoded" in UTF-8, the same way as {@link URLEncodedUtils}.
+     *
+     * @param builder The builder the encoded value is appended to.
+     * @param value The value to encode.
+     *
+     * @since 4.1
+     */
+    public static void appendFormEncoded(StringBuilder builder, String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '-' || c == '.' || c == '*') {
+                builder.append(c);
+            } else if (c == ' ') {
+                builder.append('+');
+            } else {
+                i = appendUtf8Escaped(builder, value, i) - 1;
+            }
+        }
+    }
+
+    /**
+     * Append the percent-encoded UTF-8 bytes of the character at the given index, together with the next one if
+     * they form a surrogate pair. A lone surrogate can't be encoded, it is replaced with '?' like the encoder of the JDK does.
+     *
+     * @param builder The builder the encoded character is appended to.
+     * @param value The value being encoded.
+     * @param index The index of the character to encode.
+     *
+     * @return The index of the next character to encode.
+     *
+     * @since 4.1
+     */
+    public static int appendUtf8Escaped(StringBuilder builder, String value, int index) {
+        char c = value.charAt(index);
+        if (c < 0x80) {
+            appendEscaped(builder, c);
+        } else if (c < 0x800) {
+            appendEscaped(builder, 0xC0 | (c >> 6));
+            appendEscaped(builder, 0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            appendEscaped(builder, 0xF0 | (codePoint >> 18));
+            appendEscaped(builder, 0x80 | ((codePoint >> 12) & 0x3F));
+            appendEscaped(builder, 0x80 | ((codePoint >> 6) & 0x3F));
+            appendEscaped(builder, 0x80 | (codePoint & 0x3F));
+            return index + 2;
+        } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            appendEscaped(builder, '?');
+        } else {
+            appendEscaped(builder, 0xE0 | (c >> 12));
+            appendEscaped(builder, 0x80 | ((c >> 6) & 0x3F));
+            appendEscaped(builder, 0x80 | (c & 0x3F));
+        }
+        return index + 1;
+    }
+
+    private static void appendEscaped(StringBuilder builder, int b) {
+        builder.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+    }
+}
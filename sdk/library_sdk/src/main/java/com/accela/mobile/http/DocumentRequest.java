@@ -23,6 +23,7 @@ import com.accela.mobile.http.volley.NetworkResponse;
 import com.accela.mobile.http.volley.ServerError;
 
 import java.io.IOException;
+import java.net.URL;
 
 /**
  * Created by eyang on 8/28/15.
@@ -34,4 +35,6 @@ public interface DocumentRequest {
     public void handleResponse(NetworkResponse networkResponse);
 
     public void cancel();
+
+    public URL getUrl();
 }
@@ -276,8 +276,32 @@ public class RequestParams {
      * @since 4.0
      */
     public String getParamString() {
-        return URLEncodedUtils.format(getParamsList(), ENCODING);
+        StringBuilder builder = new StringBuilder(urlParams.size() * 24);
+        appendParamString(builder);
+        return builder.toString();
+    }
 
+    /**
+     * Append the URL parameters to the builder in the format of {@link #getParamString()}, without creating
+     * intermediate objects.
+     *
+     * @param builder The builder the encoded parameters are appended to.
+     *
+     * @since 4.1
+     */
+    public void appendParamString(StringBuilder builder) {
+        boolean first = true;
+        for (Map.Entry<String, String> entry : urlParams.entrySet()) {
+            if (!first) {
+                builder.append('&');
+            }
+            first = false;
+            AMUrlEncoder.appendFormEncoded(builder, entry.getKey());
+            if (entry.getValue() != null) {
+                builder.append('=');
+                AMUrlEncoder.appendFormEncoded(builder, entry.getValue());
+            }
+        }
     }
 
     /**
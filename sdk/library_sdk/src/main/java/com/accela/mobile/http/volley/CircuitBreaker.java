@@ -0,0 +1,342 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http.volley;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fails requests fast while their endpoint is unhealthy, instead of letting each of them wait
+ * out its timeouts and retries on a network thread.
+ * <p>
+ * Each endpoint, identified by its host and path template (see {@link #keyOf(String)}), has a
+ * circuit recording the outcome of its recent requests. Server errors, timeouts and responses
+ * slower than the slow call threshold count as failures. When the failure rate over the window
+ * reaches the threshold, the circuit opens and requests to the endpoint fail with a
+ * {@link CircuitOpenError} without being sent. Once the open duration has passed the circuit is
+ * half open: a few probe requests are let through, and it closes again if they all succeed, or
+ * opens for another period if one fails.
+ */
+public class CircuitBreaker {
+    /** Number of recent outcomes the failure rate is computed over. */
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    /** Number of outcomes needed before the failure rate is considered. */
+    public static final int DEFAULT_MINIMUM_CALLS = 10;
+    /** Share of failures which opens the circuit. */
+    public static final float DEFAULT_FAILURE_RATE_THRESHOLD = 0.5f;
+    /** Responses slower than this count as failures. */
+    public static final long DEFAULT_SLOW_CALL_MS = 20 * 1000;
+    /** How long an open circuit rejects requests before letting probes through. */
+    public static final long DEFAULT_OPEN_DURATION_MS = 30 * 1000;
+    /** Number of successful probes needed to close a half open circuit. */
+    public static final int DEFAULT_PROBE_COUNT = 2;
+
+    /** State of the circuit of an endpoint. */
+    public enum State {
+        /** Requests are sent and their outcomes recorded. */
+        CLOSED,
+        /** Requests fail without being sent. */
+        OPEN,
+        /** Only probe requests are sent. */
+        HALF_OPEN
+    }
+
+    /** Callback for state changes, called on the thread which recorded the outcome. */
+    public interface Listener {
+        public void onStateChanged(String circuitKey, State previousState, State newState);
+    }
+
+    private final int mWindowSize;
+    private final int mMinimumCalls;
+    private final float mFailureRateThreshold;
+    private final long mSlowCallMs;
+    private final long mOpenDurationMs;
+    private final int mProbeCount;
+
+    private final Map<String, Circuit> mCircuits = new HashMap<String, Circuit>();
+    private volatile Listener mListener;
+
+    /**
+     * Creates a circuit breaker with the default thresholds.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_MINIMUM_CALLS, DEFAULT_FAILURE_RATE_THRESHOLD,
+                DEFAULT_SLOW_CALL_MS, DEFAULT_OPEN_DURATION_MS, DEFAULT_PROBE_COUNT);
+    }
+
+    /**
+     * @param windowSize Number of recent outcomes the failure rate is computed over
+     * @param minimumCalls Number of outcomes needed before the failure rate is considered
+     * @param failureRateThreshold Share of failures, between 0 and 1, which opens the circuit
+     * @param slowCallMs Responses slower than this count as failures, or 0 to ignore latency
+     * @param openDurationMs How long an open circuit rejects requests before probing
+     * @param probeCount Number of successful probes needed to close the circuit again
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, float failureRateThreshold,
+            long slowCallMs, long openDurationMs, int probeCount) {
+        mWindowSize = Math.max(1, windowSize);
+        mMinimumCalls = Math.min(mWindowSize, Math.max(1, minimumCalls));
+        mFailureRateThreshold = failureRateThreshold;
+        mSlowCallMs = slowCallMs;
+        mOpenDurationMs = openDurationMs;
+        mProbeCount = Math.max(1, probeCount);
+    }
+
+    /**
+     * Sets the listener told about the state changes of the circuits, or null.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the current state of the circuit with the given key.
+     */
+    public synchronized State getState(String circuitKey) {
+        Circuit circuit = mCircuits.get(circuitKey);
+        return (circuit != null) ? circuit.mState : State.CLOSED;
+    }
+
+    /**
+     * Asks to send a request to an endpoint.
+     * @param circuitKey The key of the endpoint
+     * @return A permit to report the outcome of the request with, or null if the circuit is
+     *     open and the request must not be sent
+     */
+    public Permit tryAcquire(String circuitKey) {
+        State previousState;
+        Permit permit;
+        synchronized (this) {
+            Circuit circuit = mCircuits.get(circuitKey);
+            if (circuit == null) {
+                circuit = new Circuit(mWindowSize);
+                mCircuits.put(circuitKey, circuit);
+            }
+            previousState = circuit.mState;
+            if (circuit.mState == State.OPEN) {
+                if (SystemClock.elapsedRealtime() - circuit.mOpenedAtMs < mOpenDurationMs) {
+                    return null;
+                }
+                circuit.mState = State.HALF_OPEN;
+                circuit.mProbesInFlight = 0;
+                circuit.mProbeSuccesses = 0;
+            }
+            if (circuit.mState == State.HALF_OPEN) {
+                if (circuit.mProbesInFlight + circuit.mProbeSuccesses >= mProbeCount) {
+                    permit = null;
+                } else {
+                    circuit.mProbesInFlight++;
+                    permit = new Permit(circuitKey, circuit, true);
+                }
+            } else {
+                permit = new Permit(circuitKey, circuit, false);
+            }
+        }
+        if (previousState != State.HALF_OPEN && permit != null && permit.mProbe) {
+            notifyStateChanged(circuitKey, previousState, State.HALF_OPEN);
+        }
+        return permit;
+    }
+
+    private void record(Permit permit, boolean failed, boolean ignored) {
+        State previousState;
+        State newState;
+        synchronized (this) {
+            Circuit circuit = permit.mCircuit;
+            previousState = circuit.mState;
+            if (permit.mProbe) {
+                if (circuit.mState != State.HALF_OPEN) {
+                    return;
+                }
+                circuit.mProbesInFlight--;
+                if (ignored) {
+                    return;
+                }
+                if (failed) {
+                    open(circuit);
+                } else if (++circuit.mProbeSuccesses >= mProbeCount) {
+                    circuit.mState = State.CLOSED;
+                    circuit.clear();
+                }
+            } else {
+                // Outcomes of requests sent before the circuit opened say nothing new.
+                if (circuit.mState != State.CLOSED || ignored) {
+                    return;
+                }
+                circuit.add(failed);
+                if (circuit.mCount >= mMinimumCalls
+                        && circuit.mFailures >= mFailureRateThreshold * circuit.mCount) {
+                    open(circuit);
+                }
+            }
+            newState = circuit.mState;
+        }
+        if (newState != previousState) {
+            notifyStateChanged(permit.mCircuitKey, previousState, newState);
+        }
+    }
+
+    private void open(Circuit circuit) {
+        circuit.mState = State.OPEN;
+        circuit.mOpenedAtMs = SystemClock.elapsedRealtime();
+        circuit.clear();
+    }
+
+    private void notifyStateChanged(String circuitKey, State previousState, State newState) {
+        VolleyLog.d("Circuit %s: %s -> %s", circuitKey, previousState, newState);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onStateChanged(circuitKey, previousState, newState);
+        }
+    }
+
+    /**
+     * Returns the circuit key of a URL: its host and path, with the segments holding IDs, that
+     * is containing a digit, a comma or an escape, replaced by a placeholder. Version segments
+     * such as "v4" are kept, so "https://apis.accela.com/v4/records/ABC-14CAP-00001/documents"
+     * belongs to "apis.accela.com/v4/records/{}/documents".
+     */
+    public static String keyOf(String url) {
+        if (url == null) {
+            return "";
+        }
+        int start = url.indexOf("://");
+        start = (start >= 0) ? start + 3 : 0;
+        int end = url.length();
+        for (int i = start; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+        StringBuilder key = new StringBuilder(end - start);
+        int segmentStart = start;
+        boolean firstSegment = true;
+        while (segmentStart <= end) {
+            int segmentEnd = url.indexOf('/', segmentStart);
+            if (segmentEnd < 0 || segmentEnd > end) {
+                segmentEnd = end;
+            }
+            if (!firstSegment) {
+                key.append('/');
+            }
+            if (!firstSegment && isIdSegment(url, segmentStart, segmentEnd)) {
+                key.append("{}");
+            } else {
+                key.append(url, segmentStart, segmentEnd);
+            }
+            firstSegment = false;
+            segmentStart = segmentEnd + 1;
+        }
+        return key.toString();
+    }
+
+    private static boolean isIdSegment(String url, int start, int end) {
+        boolean version = end - start > 1 && url.charAt(start) == 'v';
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if (c == ',' || c == '%') {
+                return true;
+            }
+            if (Character.isDigit(c)) {
+                if (!version) {
+                    return true;
+                }
+            } else if (i > start) {
+                version = false;
+            }
+        }
+        return false;
+    }
+
+    private static class Circuit {
+        final boolean[] mOutcomes;
+        int mNext = 0;
+        int mCount = 0;
+        int mFailures = 0;
+        State mState = State.CLOSED;
+        long mOpenedAtMs;
+        int mProbesInFlight;
+        int mProbeSuccesses;
+
+        Circuit(int windowSize) {
+            mOutcomes = new boolean[windowSize];
+        }
+
+        void add(boolean failed) {
+            if (mCount == mOutcomes.length) {
+                if (mOutcomes[mNext]) {
+                    mFailures--;
+                }
+            } else {
+                mCount++;
+            }
+            mOutcomes[mNext] = failed;
+            if (failed) {
+                mFailures++;
+            }
+            mNext = (mNext + 1) % mOutcomes.length;
+        }
+
+        void clear() {
+            mNext = 0;
+            mCount = 0;
+            mFailures = 0;
+        }
+    }
+
+    /**
+     * Permission to send one request, which must be reported exactly once with
+     * {@link #success(long)}, {@link #failure()} or {@link #release()}.
+     */
+    public class Permit {
+        final String mCircuitKey;
+        final Circuit mCircuit;
+        final boolean mProbe;
+
+        Permit(String circuitKey, Circuit circuit, boolean probe) {
+            mCircuitKey = circuitKey;
+            mCircuit = circuit;
+            mProbe = probe;
+        }
+
+        /**
+         * Reports a response from the endpoint, a failure if it was slower than the threshold.
+         */
+        public void success(long latencyMs) {
+            record(this, mSlowCallMs > 0 && latencyMs > mSlowCallMs, false);
+        }
+
+        /**
+         * Reports a failure of the endpoint.
+         */
+        public void failure() {
+            record(this, true, false);
+        }
+
+        /**
+         * Reports an outcome which says nothing about the endpoint, such as a lost connection.
+         */
+        public void release() {
+            record(this, false, true);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http.volley;
+
+/**
+ * Indicates that the request was not sent because the circuit of its endpoint is open, see
+ * {@link CircuitBreaker}. The endpoint failed recently and is given time to recover.
+ */
+@SuppressWarnings("serial")
+public class CircuitOpenError extends VolleyError {
+    private final String mCircuitKey;
+
+    public CircuitOpenError(String circuitKey) {
+        super("Circuit open for " + circuitKey);
+        mCircuitKey = circuitKey;
+    }
+
+    /**
+     * Returns the key of the open circuit, the host and path template of the endpoint.
+     */
+    public String getCircuitKey() {
+        return mCircuitKey;
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http.volley;
+
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Performs the requests of a network queue on workers run by an {@link Executor}, instead of a
+ * fixed set of {@link NetworkDispatcher} threads.
+ * <p>
+ * A worker is started for each request added while fewer than the maximum number of workers
+ * are running, and a worker stops as soon as it finds the queue empty, so the pool grows with
+ * the queue depth and shrinks to nothing when idle. Reserved workers beyond the maximum only
+ * perform urgent requests, see {@link Request#isUrgent()}.
+ * <p>
+ * Without a host executor, workers run on threads owned by the dispatcher which end after
+ * being idle for {@link #IDLE_THREAD_KEEP_ALIVE_SECONDS}.
+ */
+public class ElasticNetworkDispatcher {
+    /** How long an idle thread of the dispatcher's own executor is kept. */
+    public static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private final NetworkQueue mQueue;
+    private final Network mNetwork;
+    private final Cache mCache;
+    private final ResponseDelivery mDelivery;
+    private final Executor mExecutor;
+    private final Executor mParseExecutor;
+    /** The executor owned by the dispatcher, null when the host supplied one. */
+    private final ThreadPoolExecutor mOwnExecutor;
+    private final int mReservedWorkers;
+
+    private int mMaxWorkers;
+    private int mActiveWorkers = 0;
+    private int mActiveReservedWorkers = 0;
+    private boolean mQuit = false;
+
+    /**
+     * @param queue The network queue to drain
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     * @param executor Executor running the workers, or null for threads owned by the dispatcher
+     * @param parseExecutor Executor parsing the responses, or null to parse on the workers
+     * @param maxWorkers Maximum number of workers performing requests of any priority
+     * @param reservedWorkers Number of additional workers which only perform urgent requests
+     */
+    ElasticNetworkDispatcher(NetworkQueue queue, Network network, Cache cache,
+            ResponseDelivery delivery, Executor executor, Executor parseExecutor, int maxWorkers,
+            int reservedWorkers) {
+        mQueue = queue;
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        mParseExecutor = parseExecutor;
+        mMaxWorkers = Math.max(1, maxWorkers);
+        mReservedWorkers = Math.max(0, reservedWorkers);
+        if (executor != null) {
+            mExecutor = executor;
+            mOwnExecutor = null;
+        } else {
+            mOwnExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "NetworkDispatcher-" + mCount.getAndIncrement());
+                }
+            });
+            mExecutor = mOwnExecutor;
+        }
+    }
+
+    /**
+     * Set the maximum number of workers performing requests of any priority. Running workers
+     * above a lowered maximum stop once their current request completes.
+     */
+    public void setMaxWorkers(int maxWorkers) {
+        synchronized (this) {
+            mMaxWorkers = Math.max(1, maxWorkers);
+        }
+        scheduleAll();
+    }
+
+    /**
+     * Starts workers for all the queued requests, up to the maximum.
+     */
+    void scheduleAll() {
+        int queued = mQueue.size();
+        for (int i = 0; i < queued && schedule(); i++) {
+        }
+    }
+
+    /**
+     * Starts a worker for a queued request if the maximum allows it. Called whenever a request is
+     * added to the queue.
+     *
+     * @return true if a worker was started
+     */
+    boolean schedule() {
+        final boolean reserved;
+        synchronized (this) {
+            if (mQuit || mQueue.isEmpty()) {
+                return false;
+            }
+            if (mActiveWorkers - mActiveReservedWorkers < mMaxWorkers) {
+                reserved = false;
+            } else if (mActiveReservedWorkers < mReservedWorkers && mQueue.hasUrgent()) {
+                reserved = true;
+                mActiveReservedWorkers++;
+            } else {
+                // The running workers take the request once they are done with their current one.
+                return false;
+            }
+            mActiveWorkers++;
+        }
+        try {
+            mExecutor.execute(new Worker(reserved));
+        } catch (RejectedExecutionException e) {
+            VolleyLog.e(e, "Network worker rejected by executor");
+            synchronized (this) {
+                mActiveWorkers--;
+                if (reserved) {
+                    mActiveReservedWorkers--;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops starting workers. Running workers stop once their current request completes.
+     */
+    public void quit() {
+        synchronized (this) {
+            mQuit = true;
+        }
+        if (mOwnExecutor != null) {
+            mOwnExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the next request a worker may perform, or null after releasing the worker when
+     * there is none. The check and the release are atomic with {@link #schedule()}, so a request
+     * added meanwhile either is seen here or gets a worker of its own.
+     */
+    private Request<?> nextRequest(boolean reserved) {
+        Request<?> request = null;
+        synchronized (this) {
+            boolean overLimit = !reserved && mActiveWorkers - mActiveReservedWorkers > mMaxWorkers;
+            if (!mQuit && !overLimit) {
+                request = reserved ? mQueue.pollUrgent() : mQueue.poll();
+            }
+            if (request == null) {
+                mActiveWorkers--;
+                if (reserved) {
+                    mActiveReservedWorkers--;
+                }
+            }
+        }
+        return request;
+    }
+
+    private class Worker implements Runnable {
+        private final boolean mReserved;
+
+        Worker(boolean reserved) {
+            mReserved = reserved;
+        }
+
+        @Override
+        public void run() {
+            NetworkRequestProcessor processor = new NetworkRequestProcessor(mNetwork, mCache, mDelivery,
+                    mParseExecutor);
+            int threadPriority = Process.getThreadPriority(Process.myTid());
+            try {
+                Request<?> request;
+                while ((request = nextRequest(mReserved)) != null) {
+                    processor.process(request);
+                }
+            } finally {
+                // The thread may belong to the host app, leave it as it was.
+                Process.setThreadPriority(threadPriority);
+            }
+        }
+    }
+}
@@ -18,10 +18,13 @@ package com.accela.mobile.http.volley;
 
 import android.os.Handler;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
 
 /**
- * Delivers responses and errors.
+ * Delivers responses and errors, on the delivery executor of the request if it has one,
+ * see {@link Request#setDeliveryExecutor(Executor)}.
  */
 public class ExecutorDelivery implements ResponseDelivery {
     /** Used for posting responses, typically to the main thread. */
@@ -59,14 +62,19 @@ public class ExecutorDelivery implements ResponseDelivery {
     public void postResponse(Request<?> request, Response<?> response, Runnable runnable) {
         request.markDelivered();
         request.addMarker("post-response");
-        mResponsePoster.execute(new ResponseDeliveryRunnable(request, response, runnable));
+        posterFor(request).execute(new ResponseDeliveryRunnable(request, response, runnable));
     }
 
     @Override
     public void postError(Request<?> request, VolleyError error) {
         request.addMarker("post-error");
         Response<?> response = Response.error(error);
-        mResponsePoster.execute(new ResponseDeliveryRunnable(request, response, null));
+        posterFor(request).execute(new ResponseDeliveryRunnable(request, response, null));
+    }
+
+    private Executor posterFor(Request<?> request) {
+        Executor deliveryExecutor = request.getDeliveryExecutor();
+        return deliveryExecutor != null ? deliveryExecutor : mResponsePoster;
     }
 
     /**
@@ -94,8 +102,19 @@ public class ExecutorDelivery implements ResponseDelivery {
                 return;
             }
 
+            // Followers get their own copy of the response before this request's listener
+            // can change it.
+            List<Request<?>> followers = null;
+            List<Object> followerResults = null;
+            if (!mResponse.intermediate) {
+                followers = mRequest.takeFollowers();
+                followerResults = copyResultsFor(followers);
+            }
+
             // Deliver a normal response or error, depending.
-            if (mResponse.isSuccess()) {
+            if (mResponse.isSuccess() && mResponse.intermediate) {
+                mRequest.deliverIntermediateResponse(mResponse.result);
+            } else if (mResponse.isSuccess()) {
                 mRequest.deliverResponse(mResponse.result);
             } else {
                 mRequest.deliverError(mResponse.error);
@@ -106,6 +125,7 @@ public class ExecutorDelivery implements ResponseDelivery {
             if (mResponse.intermediate) {
                 mRequest.addMarker("intermediate-response");
             } else {
+                deliverToFollowers(followers, followerResults);
                 mRequest.finish("done");
             }
 
@@ -114,5 +134,55 @@ public class ExecutorDelivery implements ResponseDelivery {
                 mRunnable.run();
             }
        }
+
+        /**
+         * Returns the parsed response each follower gets, see
+         * {@link Request#copyCoalescedResponse(Object)}.
+         */
+        @SuppressWarnings("unchecked")
+        private List<Object> copyResultsFor(List<Request<?>> followers) {
+            List<Object> results = new ArrayList<Object>(followers.size());
+            for (Request follower : followers) {
+                results.add(mResponse.isSuccess() ? follower.copyCoalescedResponse(mResponse.result) : null);
+            }
+            return results;
+        }
+
+        /**
+         * Hands the parsed response, or error, to the identical requests which waited
+         * for this one. A follower with a delivery executor of its own gets it there.
+         */
+        private void deliverToFollowers(List<Request<?>> followers, List<Object> results) {
+            Executor poster = posterFor(mRequest);
+            for (int index = 0; index < followers.size(); index++) {
+                final Request follower = followers.get(index);
+                final Object result = results.get(index);
+                Executor followerPoster = posterFor(follower);
+                if (followerPoster == poster) {
+                    deliverToFollower(follower, result);
+                } else {
+                    followerPoster.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliverToFollower(follower, result);
+                        }
+                    });
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void deliverToFollower(Request follower, Object result) {
+            if (follower.isCanceled()) {
+                follower.finish("canceled-at-delivery");
+                return;
+            }
+            if (mResponse.isSuccess()) {
+                follower.deliverResponse(result);
+            } else {
+                follower.deliverError(mResponse.error);
+            }
+            follower.finish("coalesced-done");
+        }
     }
 }
@@ -70,7 +70,8 @@ public class AccelaMultipartFormEntity implements HttpEntity {
 
     @Override
     public boolean isRepeatable() {
-    	return false;
+    	// Only parts backed by a stream of unknown length can't be written twice.
+    	return this.contentLength != -1;
     }
 
     @Override
@@ -16,13 +16,10 @@
 
 package com.accela.mobile.http.volley;
 
-import android.annotation.TargetApi;
-import android.net.TrafficStats;
-import android.os.Build;
 import android.os.Process;
-import android.os.SystemClock;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -35,14 +32,12 @@ import java.util.concurrent.BlockingQueue;
 public class NetworkDispatcher extends Thread {
     /** The queue of requests to service. */
     private final BlockingQueue<Request<?>> mQueue;
-    /** The network interface for processing requests. */
-    private final Network mNetwork;
-    /** The cache to write to. */
-    private final Cache mCache;
-    /** For posting responses and errors. */
-    private final ResponseDelivery mDelivery;
+    /** Performs the requests taken from the queue. */
+    private final NetworkRequestProcessor mProcessor;
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
+    /** Whether this dispatcher only takes urgent requests. */
+    private final boolean mUrgentOnly;
 
     /**
      * Creates a new network dispatcher thread.  You must call {@link #start()}
@@ -57,9 +52,20 @@ public class NetworkDispatcher extends Thread {
             Network network, Cache cache,
             ResponseDelivery delivery) {
         mQueue = queue;
-        mNetwork = network;
-        mCache = cache;
-        mDelivery = delivery;
+        mProcessor = new NetworkRequestProcessor(network, cache, delivery, null);
+        mUrgentOnly = false;
+    }
+
+    /**
+     * Creates a new network dispatcher thread, which only takes urgent requests if
+     * urgentOnly is set, see {@link Request#isUrgent()}. Responses are parsed on the
+     * parse executor unless it is null.
+     */
+    NetworkDispatcher(NetworkQueue queue, Network network, Cache cache,
+            ResponseDelivery delivery, Executor parseExecutor, boolean urgentOnly) {
+        mQueue = queue;
+        mProcessor = new NetworkRequestProcessor(network, cache, delivery, parseExecutor);
+        mUrgentOnly = urgentOnly;
     }
 
     /**
@@ -71,23 +77,14 @@ public class NetworkDispatcher extends Thread {
         interrupt();
     }
 
-    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
-    private void addTrafficStatsTag(Request<?> request) {
-        // Tag the request (if API >= 14)
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            TrafficStats.setThreadStatsTag(request.getTrafficStatsTag());
-        }
-    }
-
     @Override
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         while (true) {
-            long startTimeMs = SystemClock.elapsedRealtime();
             Request<?> request;
             try {
                 // Take a request from the queue.
-                request = mQueue.take();
+                request = mUrgentOnly ? ((NetworkQueue) mQueue).takeUrgent() : mQueue.take();
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) {
@@ -96,57 +93,7 @@ public class NetworkDispatcher extends Thread {
                 continue;
             }
 
-            try {
-                request.addMarker("network-queue-take");
-
-                // If the request was cancelled already, do not perform the
-                // network request.
-                if (request.isCanceled()) {
-                    request.finish("network-discard-cancelled");
-                    continue;
-                }
-
-                addTrafficStatsTag(request);
-
-                // Perform the network request.
-                NetworkResponse networkResponse = mNetwork.performRequest(request);
-                request.addMarker("network-http-complete");
-
-                // If the server returned 304 AND we delivered a response already,
-                // we're done -- don't deliver a second identical response.
-                if (networkResponse.notModified && request.hasHadResponseDelivered()) {
-                    request.finish("not-modified");
-                    continue;
-                }
-
-                // Parse the response here on the worker thread.
-                Response<?> response = request.parseNetworkResponse(networkResponse);
-                request.addMarker("network-parse-complete");
-
-                // Write to cache if applicable.
-                // TODO: Only update cache metadata instead of entire record for 304s.
-                if (request.shouldCache() && response.cacheEntry != null) {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-written");
-                }
-
-                // Post the response back.
-                request.markDelivered();
-                mDelivery.postResponse(request, response);
-            } catch (VolleyError volleyError) {
-                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                parseAndDeliverNetworkError(request, volleyError);
-            } catch (Exception e) {
-                VolleyLog.e(e, "Unhandled exception %s", e.toString());
-                VolleyError volleyError = new VolleyError(e);
-                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                mDelivery.postError(request, volleyError);
-            }
+            mProcessor.process(request);
         }
     }
-
-    private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
-        error = request.parseNetworkError(error);
-        mDelivery.postError(request, error);
-    }
 }
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http.volley;
+
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * The network queue of a {@link RequestQueue}. Besides taking requests in priority order, it
+ * lets the dispatchers reserved for urgent work wait for a HIGH or IMMEDIATE request only.
+ */
+class NetworkQueue extends PriorityBlockingQueue<Request<?>> {
+
+    /** Guards the urgent dispatchers waiting for a request. */
+    private final Object mUrgentLock = new Object();
+
+    /** Told about every request added, or null. */
+    private volatile Runnable mOfferListener;
+
+    /**
+     * Set the listener told about every request added to the queue, after it is added.
+     */
+    void setOfferListener(Runnable offerListener) {
+        mOfferListener = offerListener;
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        boolean added = super.offer(request);
+        if (added && request.isUrgent()) {
+            synchronized (mUrgentLock) {
+                mUrgentLock.notifyAll();
+            }
+        }
+        Runnable offerListener = mOfferListener;
+        if (added && offerListener != null) {
+            offerListener.run();
+        }
+        return added;
+    }
+
+    /**
+     * Removes and returns the head of the queue if it is urgent, or returns null right away.
+     */
+    Request<?> pollUrgent() {
+        synchronized (mUrgentLock) {
+            while (true) {
+                Request<?> head = peek();
+                if (head == null || !head.isUrgent()) {
+                    return null;
+                } else if (remove(head)) {
+                    return head;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the head of the queue is urgent.
+     */
+    boolean hasUrgent() {
+        Request<?> head = peek();
+        return head != null && head.isUrgent();
+    }
+
+    /**
+     * Takes the head of the queue once it is urgent, see {@link Request#isUrgent()}. Since
+     * urgent requests are sorted first, the head is urgent whenever any queued request is.
+     */
+    Request<?> takeUrgent() throws InterruptedException {
+        synchronized (mUrgentLock) {
+            while (true) {
+                Request<?> head = peek();
+                if (head == null || !head.isUrgent()) {
+                    mUrgentLock.wait();
+                } else if (remove(head)) {
+                    return head;
+                }
+                // Otherwise another dispatcher took the head first, look again.
+            }
+        }
+    }
+}
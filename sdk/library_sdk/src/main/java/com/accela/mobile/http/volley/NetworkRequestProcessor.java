@@ -0,0 +1,295 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http.volley;
+
+import android.annotation.TargetApi;
+import android.net.TrafficStats;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Performs a request taken from the network queue on the calling thread: the request is sent,
+ * its response parsed and written to the cache if eligible, then the response or error is
+ * posted back. With a parse executor, parsing and what follows run there instead, so the
+ * calling thread goes back to network I/O as soon as the response is read. Used by
+ * {@link NetworkDispatcher} threads and {@link ElasticNetworkDispatcher} workers; an instance
+ * is confined to one thread.
+ */
+class NetworkRequestProcessor {
+    /** The network interface for processing requests. */
+    private final Network mNetwork;
+    /** The cache to write to. */
+    private final Cache mCache;
+    /** For posting responses and errors. */
+    private final ResponseDelivery mDelivery;
+    /** Runs the parse stage, null to parse on the calling thread. */
+    private final Executor mParseExecutor;
+    /** The thread priority set for the calling thread, unknown until the first request. */
+    private int mThreadPriority = Integer.MIN_VALUE;
+
+    NetworkRequestProcessor(Network network, Cache cache, ResponseDelivery delivery,
+            Executor parseExecutor) {
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        mParseExecutor = parseExecutor;
+    }
+
+    /**
+     * Performs the request and posts its response or error back.
+     */
+    void process(final Request<?> request) {
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        CircuitBreaker.Permit permit = null;
+        try {
+            request.addMarker("network-queue-take");
+
+            // If the request was cancelled already, do not perform the
+            // network request.
+            if (request.isCanceled()) {
+                request.finish("network-discard-cancelled");
+                return;
+            }
+
+            // A token about to expire is refreshed before the request goes out with it.
+            RequestQueue queue = request.getRequestQueue();
+            if (queue != null && awaitFreshToken(queue, request)) {
+                request.addMarker("network-await-token");
+                return;
+            }
+
+            // If the endpoint keeps failing, fail fast instead of waiting out the timeouts.
+            CircuitBreaker circuitBreaker = (queue != null) ? queue.getCircuitBreaker() : null;
+            if (circuitBreaker != null) {
+                permit = circuitBreaker.tryAcquire(request.getCircuitKey());
+                if (permit == null) {
+                    request.addMarker("network-circuit-open");
+                    mDelivery.postError(request, new CircuitOpenError(request.getCircuitKey()));
+                    return;
+                }
+            }
+
+            addTrafficStatsTag(request);
+            setThreadPriority(request);
+
+            // Perform the network request.
+            final NetworkResponse networkResponse = mNetwork.performRequest(request);
+            request.addMarker("network-http-complete");
+            if (permit != null) {
+                permit.success(SystemClock.elapsedRealtime() - startTimeMs);
+                permit = null;
+            }
+
+            // If the server returned 304 AND we delivered a response already,
+            // we're done -- don't deliver a second identical response.
+            if (networkResponse.notModified && request.hasHadResponseDelivered()) {
+                Cache.Entry refreshedEntry = request.parseNotModifiedCacheEntry(networkResponse);
+                if (request.shouldCache() && refreshedEntry != null) {
+                    mCache.put(request.getCacheKey(), refreshedEntry);
+                    request.addMarker("network-cache-refreshed");
+                }
+                request.finish("not-modified");
+                return;
+            }
+
+            if (mParseExecutor != null) {
+                try {
+                    mParseExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Parse threads are shared, the priority follows each request.
+                            Process.setThreadPriority(threadPriorityOf(request));
+                            parseAndDeliver(request, networkResponse, startTimeMs);
+                        }
+                    });
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // Parse pool shut down, parse here.
+                }
+            }
+            parseAndDeliver(request, networkResponse, startTimeMs);
+        } catch (RetryLaterError retryLater) {
+            recordFailure(permit, retryLater.getReason(), startTimeMs);
+            RequestQueue queue = request.getRequestQueue();
+            if (queue == null) {
+                VolleyError reason = retryLater.getReason();
+                reason.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+                parseAndDeliverNetworkError(request, reason);
+                return;
+            }
+            request.addMarker("network-retry-later");
+            queue.retryLater(request, retryLater.getDelayMs());
+        } catch (VolleyError volleyError) {
+            recordFailure(permit, volleyError, startTimeMs);
+            if (isTokenRejected(request, volleyError)
+                    && request.getRequestQueue().awaitTokenRefresh(request, request.getAuthToken())) {
+                request.addMarker("network-token-rejected");
+                return;
+            }
+            volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+            parseAndDeliverNetworkError(request, volleyError);
+        } catch (Exception e) {
+            if (permit != null) {
+                permit.release();
+            }
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            VolleyError volleyError = new VolleyError(e);
+            volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+            mDelivery.postError(request, volleyError);
+        }
+    }
+
+    /**
+     * Parses the response, writes it to the cache if eligible and posts it back. Runs on the
+     * calling thread or on the parse executor.
+     */
+    private void parseAndDeliver(Request<?> request, NetworkResponse networkResponse,
+            long startTimeMs) {
+        try {
+            // A pooled body is given back as soon as it is parsed, unless the request
+            // retained it.
+            Response<?> response;
+            try {
+                if (request.isCanceled()) {
+                    request.finish("parse-discard-cancelled");
+                    return;
+                }
+                response = request.parseNetworkResponse(networkResponse);
+            } finally {
+                if (networkResponse.body != null) {
+                    networkResponse.body.release();
+                }
+            }
+            request.addMarker("network-parse-complete");
+
+            // Write to cache if applicable.
+            // TODO: Only update cache metadata instead of entire record for 304s.
+            if (request.shouldCache() && response.cacheEntry != null) {
+                mCache.put(request.getCacheKey(), response.cacheEntry);
+                request.addMarker("network-cache-written");
+            }
+
+            // If the refreshed body is identical to the intermediate response we
+            // delivered from cache, there is nothing new for the caller.
+            Cache.Entry staleEntry = request.getCacheEntry();
+            if (request.hasHadResponseDelivered() && staleEntry != null
+                    && Arrays.equals(staleEntry.data, networkResponse.data)) {
+                request.finish("not-changed");
+                return;
+            }
+
+            // Post the response back.
+            request.markDelivered();
+            mDelivery.postResponse(request, response);
+        } catch (Exception e) {
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            VolleyError volleyError = new VolleyError(e);
+            volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+            mDelivery.postError(request, volleyError);
+        }
+    }
+
+    /**
+     * Runs urgent requests, the ones a user is waiting on, at the default thread priority and
+     * everything else in the background.
+     */
+    private void setThreadPriority(Request<?> request) {
+        int threadPriority = threadPriorityOf(request);
+        if (threadPriority != mThreadPriority) {
+            Process.setThreadPriority(threadPriority);
+            mThreadPriority = threadPriority;
+        }
+    }
+
+    private static int threadPriorityOf(Request<?> request) {
+        return request.isUrgent() ? Process.THREAD_PRIORITY_DEFAULT : Process.THREAD_PRIORITY_BACKGROUND;
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void addTrafficStatsTag(Request<?> request) {
+        // Tag the request (if API >= 14)
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            TrafficStats.setThreadStatsTag(request.getTrafficStatsTag());
+        }
+    }
+
+    /**
+     * Brings the token of the request up to date, and holds the request back if the token is
+     * about to expire or being refreshed.
+     * @return true if the request waits for the token refresh
+     */
+    private static boolean awaitFreshToken(RequestQueue queue, Request<?> request) {
+        TokenRefresher tokenRefresher = queue.getTokenRefresher();
+        String token = request.getAuthToken();
+        if (tokenRefresher == null || token == null) {
+            return false;
+        }
+        String currentToken = tokenRefresher.getToken();
+        if (currentToken != null && !currentToken.equals(token)) {
+            // Queued before the last refresh.
+            request.setAuthToken(currentToken);
+            token = currentToken;
+        }
+        if (queue.isRefreshingToken() || tokenRefresher.isExpiring(token)) {
+            return queue.awaitTokenRefresh(request, token);
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the server rejected the token the request carried.
+     */
+    private static boolean isTokenRejected(Request<?> request, VolleyError error) {
+        return error instanceof AuthFailureError && error.networkResponse != null
+                && error.networkResponse.statusCode == 401 && request.getAuthToken() != null
+                && request.getRequestQueue() != null;
+    }
+
+    /**
+     * Reports a failed request to the circuit breaker. Server errors and timeouts count against
+     * the endpoint, client errors show it is up, and lost connections or deadlines say nothing.
+     */
+    private static void recordFailure(CircuitBreaker.Permit permit, VolleyError error,
+            long startTimeMs) {
+        if (permit == null) {
+            return;
+        }
+        if (error instanceof DeadlineExceededError || error instanceof NoConnectionError) {
+            permit.release();
+        } else if (error instanceof TimeoutError || error.networkResponse == null) {
+            permit.failure();
+        } else {
+            int statusCode = error.networkResponse.statusCode;
+            if (statusCode >= 500 || statusCode == 429) {
+                permit.failure();
+            } else {
+                permit.success(SystemClock.elapsedRealtime() - startTimeMs);
+            }
+        }
+    }
+
+    private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
+        error = request.parseNetworkError(error);
+        mDelivery.postError(request, error);
+    }
+}
@@ -38,11 +38,30 @@ public class NetworkResponse {
             boolean notModified, long networkTimeMs) {
         this.statusCode = statusCode;
         this.data = data;
+        this.body = null;
         this.headers = headers;
         this.notModified = notModified;
         this.networkTimeMs = networkTimeMs;
     }
 
+    /**
+     * Creates a new network response whose body stays in a pooled buffer, see
+     * {@link Request#acceptsPooledResponse()}. {@link #data} is null for such a response.
+     * @param statusCode the HTTP status code
+     * @param body Response body, released by the network dispatcher once parsed
+     * @param headers Headers returned with this response, or null for none
+     * @param networkTimeMs Round-trip network time to receive network response
+     */
+    public NetworkResponse(int statusCode, PooledBuffer body, Map<String, String> headers,
+            long networkTimeMs) {
+        this.statusCode = statusCode;
+        this.data = null;
+        this.body = body;
+        this.headers = headers;
+        this.notModified = false;
+        this.networkTimeMs = networkTimeMs;
+    }
+
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
             boolean notModified) {
         this(statusCode, data, headers, notModified, 0);
@@ -59,9 +78,15 @@ public class NetworkResponse {
     /** The HTTP status code. */
     public final int statusCode;
 
-    /** Raw data from this response. */
+    /** Raw data from this response, or null if the body is held in {@link #body}. */
     public final byte[] data;
 
+    /**
+     * Pooled body of this response, or null if the body is held in {@link #data}. It is only
+     * valid during {@link Request#parseNetworkResponse(NetworkResponse)}, unless retained.
+     */
+    public final PooledBuffer body;
+
     /** Response headers. */
     public final Map<String, String> headers;
 
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http.volley;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted view over a pooled <code>byte[]</code> holding a response body. The
+ * buffer may be larger than the body; only the first {@link #getLength()} bytes are valid.
+ * <p>
+ * A new buffer holds one reference. Consumers that keep the buffer after the call that handed
+ * it to them take their own reference with {@link #retain()}, and every reference is given back
+ * with {@link #release()}. Once the last reference is released the array goes back to its pool
+ * and must no longer be read.
+ */
+public class PooledBuffer {
+
+    /** Receives the array of a buffer once it is no longer referenced. */
+    public interface Recycler {
+        void recycle(byte[] buf);
+    }
+
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    private final Recycler mRecycler;
+
+    private final int mLength;
+
+    private volatile byte[] mBuffer;
+
+    /**
+     * @param buffer the array holding the data, starting at offset 0
+     * @param length number of valid bytes in the array
+     * @param recycler where the array goes back once released, or null to leave it to the GC
+     */
+    public PooledBuffer(byte[] buffer, int length, Recycler recycler) {
+        mBuffer = buffer;
+        mLength = length;
+        mRecycler = recycler;
+    }
+
+    /**
+     * Returns the underlying array. Only the first {@link #getLength()} bytes are valid.
+     *
+     * @throws IllegalStateException if the buffer was already released
+     */
+    public byte[] getBuffer() {
+        byte[] buffer = mBuffer;
+        if (buffer == null) {
+            throw new IllegalStateException("Buffer already released");
+        }
+        return buffer;
+    }
+
+    /** Returns the number of valid bytes. */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Takes an additional reference, to be given back with {@link #release()}.
+     *
+     * @return this buffer
+     */
+    public PooledBuffer retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            mRefCount.decrementAndGet();
+            throw new IllegalStateException("Buffer already released");
+        }
+        return this;
+    }
+
+    /**
+     * Gives back a reference. The array returns to its pool when no reference is left.
+     */
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            byte[] buffer = mBuffer;
+            mBuffer = null;
+            if (mRecycler != null) {
+                mRecycler.recycle(buffer);
+            }
+        } else if (refCount < 0) {
+            mRefCount.incrementAndGet();
+            throw new IllegalStateException("Buffer released too many times");
+        }
+    }
+
+    /** Returns an exact-size copy of the data, which remains valid after the buffer is released. */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[mLength];
+        System.arraycopy(getBuffer(), 0, copy, 0, mLength);
+        return copy;
+    }
+
+    /** Returns a stream over the data, readable until the buffer is released. */
+    public InputStream asInputStream() {
+        return new ByteArrayInputStream(getBuffer(), 0, mLength);
+    }
+}
@@ -20,14 +20,21 @@ import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.accela.mobile.http.volley.VolleyLog.MarkerLog;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * Base class for all network requests.
@@ -83,12 +90,42 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** Whether or not responses to this request should be cached. */
     private boolean mShouldCache = true;
 
+    /** Priority of this request in the dispatch queues. */
+    private Priority mPriority = Priority.NORMAL;
+
+    /** Whether the request may be sent again after a failure, null to decide by its method. */
+    private Boolean mIdempotent;
+
+    /** Key of the circuit of the endpoint, computed from the URL when first needed. */
+    private String mCircuitKey;
+
+    /** The bearer token sent with the request, or null. */
+    private volatile String mAuthToken;
+
+    /** Whether the request already waited for a token refresh, it only waits once. */
+    private boolean mAwaitedToken = false;
+
+    /** Time by which the request must complete, in {@link SystemClock#elapsedRealtime()} ms, 0 for none. */
+    private volatile long mDeadlineMs = 0;
+
+    /** Executor the response is delivered on, null for the delivery of the queue. */
+    private volatile Executor mDeliveryExecutor;
+
     /** Whether or not this request has been canceled. */
     private boolean mCanceled = false;
 
     /** Whether or not a response has been delivered for this request yet. */
     private boolean mResponseDelivered = false;
 
+    /** The coalescing key this request was added to the queue with. */
+    private volatile String mQueuedCoalescingKey;
+
+    /** Identical requests waiting for the response of this one, see {@link #getCoalescingKey()}. */
+    private List<Request<?>> mFollowers;
+
+    /** Whether the followers were already handed the response of this request. */
+    private boolean mFollowersTaken = false;
+
     /** The retry policy for this request. */
     private RetryPolicy mRetryPolicy;
 
@@ -280,6 +317,67 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return getUrl();
     }
 
+    /**
+     * Returns the key identifying identical requests which can share a single network round
+     * trip, or null if this request must always be sent on its own. While a request with a
+     * key is in flight, requests added with the same key wait for it and receive its parsed
+     * response, or its error. A request only waits for one of the same or a higher
+     * priority. The default implementation returns null.
+     */
+    public String getCoalescingKey() {
+        return null;
+    }
+
+    /**
+     * Returns the parsed response handed to this request when it waited for an identical
+     * one, see {@link #getCoalescingKey()}. It is called before the listener of the request
+     * which went to the network sees the response. The default implementation shares the
+     * same object, requests whose parsed responses can be modified return a copy.
+     */
+    protected T copyCoalescedResponse(T response) {
+        return response;
+    }
+
+    /**
+     * Keeps the coalescing key the request was added with, it is looked up again when the
+     * request finishes, even if {@link #getCoalescingKey()} has changed since.
+     */
+    void setQueuedCoalescingKey(String coalescingKey) {
+        mQueuedCoalescingKey = coalescingKey;
+    }
+
+    String getQueuedCoalescingKey() {
+        return mQueuedCoalescingKey;
+    }
+
+    /**
+     * Makes the given request wait for the response of this one.
+     *
+     * @return false if the response was already handed out, the request must then be sent
+     *         on its own.
+     */
+    synchronized boolean addFollower(Request<?> follower) {
+        if (mFollowersTaken) {
+            return false;
+        }
+        if (mFollowers == null) {
+            mFollowers = new ArrayList<Request<?>>();
+        }
+        mFollowers.add(follower);
+        return true;
+    }
+
+    /**
+     * Returns the requests waiting for the response of this one. Requests can no longer be
+     * added afterwards.
+     */
+    synchronized List<Request<?>> takeFollowers() {
+        mFollowersTaken = true;
+        List<Request<?>> followers = mFollowers;
+        mFollowers = null;
+        return (followers != null) ? followers : Collections.<Request<?>>emptyList();
+    }
+
     /**
      * Annotates this request with an entry retrieved for it from cache.
      * Used for cache coherency support.
@@ -487,7 +585,48 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * Returns the {@link Priority} of this request; {@link Priority#NORMAL} by default.
      */
     public Priority getPriority() {
-        return Priority.NORMAL;
+        return mPriority;
+    }
+
+    /**
+     * Set the priority of this request. Changing the priority of a request which is already
+     * queued doesn't move it in the queue.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setPriority(Priority priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    /**
+     * Returns the executor the response or error of this request is delivered on, or null
+     * when it is delivered by the {@link ResponseDelivery} of the queue, on the main thread
+     * by default.
+     */
+    public Executor getDeliveryExecutor() {
+        return mDeliveryExecutor;
+    }
+
+    /**
+     * Set the executor the response or error of this request is delivered on, for instance
+     * a background executor when the response is written to a database. The listeners are
+     * then called on that executor; use a serial executor if they must run in order.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setDeliveryExecutor(Executor deliveryExecutor) {
+        mDeliveryExecutor = deliveryExecutor;
+        return this;
+    }
+
+    /**
+     * Returns true if this request may run on the dispatchers reserved for urgent work, see
+     * {@link RequestQueue#RequestQueue(Cache, Network, int, int, ResponseDelivery)}.
+     */
+    public boolean isUrgent() {
+        Priority priority = getPriority();
+        return priority == Priority.HIGH || priority == Priority.IMMEDIATE;
     }
 
     /**
@@ -496,7 +635,136 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * attempts remaining, this will cause delivery of a {@link TimeoutError} error.
      */
     public final int getTimeoutMs() {
-        return mRetryPolicy.getCurrentTimeout();
+        int timeoutMs = mRetryPolicy.getCurrentTimeout();
+        long deadlineMs = mDeadlineMs;
+        if (deadlineMs == 0) {
+            return timeoutMs;
+        }
+        // An attempt never outlives the deadline; 0 would mean no timeout at all.
+        long remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+        return (int) Math.max(1, Math.min(timeoutMs, remainingMs));
+    }
+
+    /**
+     * Returns true if sending the request more than once has the same effect as sending it once,
+     * so it may be retried after a failure which the server may have seen. By default GET, HEAD,
+     * OPTIONS, TRACE, PUT and DELETE requests are idempotent, POST and PATCH requests aren't.
+     */
+    public boolean isIdempotent() {
+        if (mIdempotent != null) {
+            return mIdempotent;
+        }
+        switch (mMethod) {
+            case Method.GET:
+            case Method.HEAD:
+            case Method.OPTIONS:
+            case Method.TRACE:
+            case Method.PUT:
+            case Method.DELETE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Set whether the request is idempotent regardless of its method, for instance for a POST
+     * which only reads, or which carries an idempotency key.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setIdempotent(boolean idempotent) {
+        mIdempotent = idempotent;
+        return this;
+    }
+
+    /**
+     * Returns the key of the circuit guarding the endpoint of the request, see
+     * {@link CircuitBreaker#keyOf(String)}.
+     */
+    public String getCircuitKey() {
+        if (mCircuitKey == null) {
+            mCircuitKey = CircuitBreaker.keyOf(mUrl);
+        }
+        return mCircuitKey;
+    }
+
+    /**
+     * Set the key of the circuit guarding the endpoint, when the path template can't be derived
+     * from the URL, or to share a circuit between endpoints.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setCircuitKey(String circuitKey) {
+        mCircuitKey = circuitKey;
+        return this;
+    }
+
+    /**
+     * Returns the bearer token sent in the Authorization header of the request, or null if it
+     * doesn't carry one.
+     */
+    public String getAuthToken() {
+        return mAuthToken;
+    }
+
+    /**
+     * Set the bearer token sent in the Authorization header of the request. The queue replaces it
+     * once the token is refreshed, see {@link TokenRefresher}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setAuthToken(String authToken) {
+        mAuthToken = authToken;
+        return this;
+    }
+
+    /**
+     * Marks the request as waiting for a token refresh. Returns false if it already did.
+     */
+    boolean markAwaitedToken() {
+        if (mAwaitedToken) {
+            return false;
+        }
+        mAwaitedToken = true;
+        return true;
+    }
+
+    /**
+     * Returns the queue the request was added to, or null.
+     */
+    RequestQueue getRequestQueue() {
+        return mRequestQueue;
+    }
+
+    /**
+     * Set the time by which the request must complete, including the time spent waiting in the
+     * queue and all the attempts. The timeout of each attempt is cut to the time left, and once
+     * the deadline has passed no further attempt is made and a {@link DeadlineExceededError} is
+     * delivered.
+     *
+     * @param deadlineMs The deadline in {@link SystemClock#elapsedRealtime()} ms, or 0 for none
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setDeadline(long deadlineMs) {
+        mDeadlineMs = deadlineMs;
+        return this;
+    }
+
+    /**
+     * Returns the deadline of the request in {@link SystemClock#elapsedRealtime()} ms, or 0 if
+     * it has none.
+     */
+    public long getDeadline() {
+        return mDeadlineMs;
+    }
+
+    /**
+     * Returns true if the request has a deadline which has passed.
+     */
+    public boolean isPastDeadline() {
+        long deadlineMs = mDeadlineMs;
+        return deadlineMs != 0 && SystemClock.elapsedRealtime() >= deadlineMs;
     }
 
     /**
@@ -531,6 +799,57 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     abstract protected Response<T> parseNetworkResponse(NetworkResponse response);
 
+    /**
+     * Called on a worker thread when the server answered 304 Not Modified for a request
+     * whose cached response has already been delivered. Subclasses can return the
+     * cache entry to store so the freshness picked up from the new headers is kept,
+     * without parsing the body again.
+     * @param response Response from the network, holding the cached body and merged headers
+     * @return The refreshed cache entry, or null to leave the cache untouched
+     */
+    public Cache.Entry parseNotModifiedCacheEntry(NetworkResponse response) {
+        return null;
+    }
+
+    /**
+     * Returns true if a successful response body can be handed to
+     * {@link #parseNetworkResponse(NetworkResponse)} in {@link NetworkResponse#body}, a pooled
+     * buffer, instead of being copied into {@link NetworkResponse#data}. Responses of requests
+     * which should be cached always come in {@link NetworkResponse#data}.
+     */
+    public boolean acceptsPooledResponse() {
+        return false;
+    }
+
+    /**
+     * Returns true if a successful response body is read straight from the connection
+     * by {@link #parseNetworkResponseStream(InputStream, Map)}, instead of being buffered.
+     */
+    public boolean isStreamingResponse() {
+        return false;
+    }
+
+    /**
+     * Reads a successful response body from the connection on the network thread, for
+     * requests whose {@link #isStreamingResponse()} returns true.
+     *
+     * <p>The default implementation buffers the whole body, so it reaches
+     * {@link #parseNetworkResponse(NetworkResponse)} just like a non-streaming response.</p>
+     * @param in The response body, already decoded from its content encoding
+     * @param headers The response headers
+     * @return The data handed to {@link #parseNetworkResponse(NetworkResponse)} afterwards
+     */
+    public byte[] parseNetworkResponseStream(InputStream in, Map<String, String> headers)
+            throws IOException, VolleyError {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
     /**
      * Subclasses can override this method to parse 'networkError' and return a more specific error.
      *
@@ -552,6 +871,16 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     abstract protected void deliverResponse(T response);
 
+    /**
+     * Delivers a soft-expired cached response which will be followed by a refresh
+     * from the network. By default this is delivered like any other response;
+     * subclasses can override it to tell their listeners the result is stale.
+     * @param response The parsed response of the cache entry
+     */
+    protected void deliverIntermediateResponse(T response) {
+        deliverResponse(response);
+    }
+
     /**
      * Delivers error message to the ErrorListener that the Request was
      * initialized with.
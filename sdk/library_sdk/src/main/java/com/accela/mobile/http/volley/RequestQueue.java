@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -61,6 +62,12 @@ public class RequestQueue {
     private final Map<String, Queue<Request<?>>> mWaitingRequests =
             new HashMap<String, Queue<Request<?>>>();
 
+    /**
+     * Requests in flight by coalescing key, see {@link Request#getCoalescingKey()}. Requests
+     * added with the same key wait for the one in flight instead of being sent.
+     */
+    private final Map<String, Request<?>> mCoalescingRequests = new HashMap<String, Request<?>>();
+
     /**
      * The set of all requests currently being processed by this RequestQueue. A Request
      * will be in this set if it is waiting in any queue or currently being processed by
@@ -73,12 +80,17 @@ public class RequestQueue {
         new PriorityBlockingQueue<Request<?>>();
 
     /** The queue of requests that are actually going out to the network. */
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue =
-        new PriorityBlockingQueue<Request<?>>();
+    private final NetworkQueue mNetworkQueue = new NetworkQueue();
+
+    /** Holds the requests waiting to be retried until their delay has passed. */
+    private final Handler mRetryHandler = new Handler(Looper.getMainLooper());
 
     /** Number of network request dispatcher threads to start. */
     private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
 
+    /** Number of additional network dispatcher threads reserved for urgent requests. */
+    private static final int DEFAULT_RESERVED_THREAD_POOL_SIZE = 1;
+
     /** Cache interface for retrieving and storing responses. */
     private final Cache mCache;
 
@@ -91,6 +103,36 @@ public class RequestQueue {
     /** The network dispatchers. */
     private NetworkDispatcher[] mDispatchers;
 
+    /** The network dispatchers which only take urgent requests. */
+    private NetworkDispatcher[] mReservedDispatchers;
+
+    /** Whether network requests are performed by an elastic pool instead of fixed threads. */
+    private final boolean mElastic;
+
+    /** Executor running the elastic pool, null for threads owned by the pool. */
+    private final Executor mNetworkExecutor;
+
+    /** Maximum number of elastic workers for requests of any priority. */
+    private volatile int mMaxNetworkThreads;
+
+    /** Executor parsing the network responses, null to parse on the network threads. */
+    private Executor mParseExecutor;
+
+    /** Fails requests to unhealthy endpoints fast, null to always send them. */
+    private volatile CircuitBreaker mCircuitBreaker;
+
+    /** Refreshes the bearer token of the requests, or null. */
+    private volatile TokenRefresher mTokenRefresher;
+
+    /** Requests waiting for the token refresh in flight. */
+    private final List<Request<?>> mTokenWaiters = new ArrayList<Request<?>>();
+
+    /** Whether a token refresh is in flight, guarded by mTokenWaiters. */
+    private boolean mTokenRefreshing = false;
+
+    /** The elastic network dispatcher, used instead of the fixed dispatchers. */
+    private ElasticNetworkDispatcher mElasticDispatcher;
+
     /** The cache dispatcher. */
     private CacheDispatcher mCacheDispatcher;
 
@@ -103,14 +145,75 @@ public class RequestQueue {
      * @param cache A Cache to use for persisting responses to disk
      * @param network A Network interface for performing HTTP requests
      * @param threadPoolSize Number of network dispatcher threads to create
+     * @param reservedThreadPoolSize Number of additional network dispatcher threads which only
+     *        take urgent requests, see {@link Request#isUrgent()}, so those never wait behind
+     *        a full pool of lower priority work
      * @param delivery A ResponseDelivery interface for posting responses and errors
      */
     public RequestQueue(Cache cache, Network network, int threadPoolSize,
-            ResponseDelivery delivery) {
+            int reservedThreadPoolSize, ResponseDelivery delivery) {
         mCache = cache;
         mNetwork = network;
         mDispatchers = new NetworkDispatcher[threadPoolSize];
+        mReservedDispatchers = new NetworkDispatcher[Math.max(0, reservedThreadPoolSize)];
         mDelivery = delivery;
+        mElastic = false;
+        mNetworkExecutor = null;
+        mMaxNetworkThreads = threadPoolSize;
+    }
+
+    /**
+     * Creates a queue whose network requests are performed by an elastic pool. Workers are
+     * started as requests back up in the network queue, up to the maximum, and stop when the
+     * queue is empty, so an idle queue holds no network threads. Processing will not begin
+     * until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param maxThreadPoolSize Maximum number of network workers for requests of any priority;
+     *        a reserved one more may run urgent requests, see {@link Request#isUrgent()}
+     * @param networkExecutor Executor to run the network workers on, such as one shared with
+     *        the host app, or null to let the pool create its own threads
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, int maxThreadPoolSize,
+            Executor networkExecutor, ResponseDelivery delivery) {
+        mCache = cache;
+        mNetwork = network;
+        mDispatchers = new NetworkDispatcher[0];
+        mReservedDispatchers = new NetworkDispatcher[0];
+        mDelivery = delivery;
+        mElastic = true;
+        mNetworkExecutor = networkExecutor;
+        mMaxNetworkThreads = Math.max(1, maxThreadPoolSize);
+    }
+
+    /**
+     * Creates a queue whose network requests are performed by an elastic pool, see
+     * {@link #RequestQueue(Cache, Network, int, Executor, ResponseDelivery)}.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param maxThreadPoolSize Maximum number of network workers for requests of any priority
+     * @param networkExecutor Executor to run the network workers on, or null
+     */
+    public RequestQueue(Cache cache, Network network, int maxThreadPoolSize,
+            Executor networkExecutor) {
+        this(cache, network, maxThreadPoolSize, networkExecutor,
+                new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+    }
+
+    /**
+     * Creates the worker pool. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param threadPoolSize Number of network dispatcher threads to create
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, int threadPoolSize,
+            ResponseDelivery delivery) {
+        this(cache, network, threadPoolSize, DEFAULT_RESERVED_THREAD_POOL_SIZE, delivery);
     }
 
     /**
@@ -147,10 +250,168 @@ public class RequestQueue {
         // Create network dispatchers (and corresponding threads) up to the pool size.
         for (int i = 0; i < mDispatchers.length; i++) {
             NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
-                    mCache, mDelivery);
+                    mCache, mDelivery, mParseExecutor, false);
             mDispatchers[i] = networkDispatcher;
             networkDispatcher.start();
         }
+        for (int i = 0; i < mReservedDispatchers.length; i++) {
+            NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
+                    mCache, mDelivery, mParseExecutor, true);
+            mReservedDispatchers[i] = networkDispatcher;
+            networkDispatcher.start();
+        }
+        if (mElastic) {
+            final ElasticNetworkDispatcher elasticDispatcher = new ElasticNetworkDispatcher(
+                    mNetworkQueue, mNetwork, mCache, mDelivery, mNetworkExecutor, mParseExecutor,
+                    mMaxNetworkThreads, DEFAULT_RESERVED_THREAD_POOL_SIZE);
+            mElasticDispatcher = elasticDispatcher;
+            mNetworkQueue.setOfferListener(new Runnable() {
+                @Override
+                public void run() {
+                    elasticDispatcher.schedule();
+                }
+            });
+            // Requests added while the queue was stopped.
+            elasticDispatcher.scheduleAll();
+        }
+    }
+
+    /**
+     * Sets the executor parsing the network responses, so the network threads go back to
+     * network I/O as soon as a response is read. Streamed responses are still read on the
+     * network threads. Takes effect when the queue is next started.
+     *
+     * @param parseExecutor The executor, or null to parse on the network threads
+     */
+    public void setParseExecutor(Executor parseExecutor) {
+        mParseExecutor = parseExecutor;
+    }
+
+    /**
+     * Sets the circuit breaker guarding the endpoints, so requests to an endpoint which keeps
+     * failing fail fast with a {@link CircuitOpenError} instead of holding a network thread.
+     *
+     * @param circuitBreaker The circuit breaker, or null to always send requests
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        mCircuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Returns the circuit breaker guarding the endpoints, or null.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    /**
+     * Sets the refresher of the bearer token. Requests carrying a token which is about to expire
+     * or gets rejected with a 401 then wait for one shared refresh, and are sent again with the
+     * new token.
+     *
+     * @param tokenRefresher The token refresher, or null to send requests with the token they have
+     */
+    public void setTokenRefresher(TokenRefresher tokenRefresher) {
+        mTokenRefresher = tokenRefresher;
+    }
+
+    /**
+     * Returns the refresher of the bearer token, or null.
+     */
+    public TokenRefresher getTokenRefresher() {
+        return mTokenRefresher;
+    }
+
+    /**
+     * Returns true while a token refresh is in flight.
+     */
+    boolean isRefreshingToken() {
+        synchronized (mTokenWaiters) {
+            return mTokenRefreshing;
+        }
+    }
+
+    /**
+     * Holds a request back until the token it carries is refreshed, then puts it back on the
+     * network queue with the new token. Only one refresh runs at a time, requests arriving
+     * meanwhile wait for the same one. A request whose token was already replaced is sent again
+     * right away.
+     * @param request The request to hold back
+     * @param staleToken The token which is expiring or was rejected
+     * @return false if the request can't wait, because there is no refresher or it already waited
+     */
+    boolean awaitTokenRefresh(Request<?> request, String staleToken) {
+        final TokenRefresher tokenRefresher = mTokenRefresher;
+        if (tokenRefresher == null || !request.markAwaitedToken()) {
+            return false;
+        }
+        boolean startRefresh;
+        synchronized (mTokenWaiters) {
+            String currentToken = tokenRefresher.getToken();
+            if (!mTokenRefreshing && currentToken != null && !currentToken.equals(staleToken)) {
+                // Refreshed since the request was sent.
+                request.setAuthToken(currentToken);
+                request.addMarker("token-already-refreshed");
+                mNetworkQueue.add(request);
+                return true;
+            }
+            mTokenWaiters.add(request);
+            startRefresh = !mTokenRefreshing;
+            mTokenRefreshing = true;
+        }
+        if (startRefresh) {
+            final String token = staleToken;
+            mRetryHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    tokenRefresher.refresh(token, new TokenRefresher.Listener() {
+                        @Override
+                        public void onTokenRefreshed(String token) {
+                            finishTokenRefresh(token);
+                        }
+                    });
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Sends the requests which waited for the token refresh again. If the refresh failed they go
+     * with the token they had, and fail as they would have without waiting.
+     */
+    private void finishTokenRefresh(String token) {
+        List<Request<?>> waiters;
+        synchronized (mTokenWaiters) {
+            waiters = new ArrayList<Request<?>>(mTokenWaiters);
+            mTokenWaiters.clear();
+            mTokenRefreshing = false;
+        }
+        for (Request<?> request : waiters) {
+            if (request.isCanceled()) {
+                request.finish("canceled-before-token-refresh");
+                continue;
+            }
+            if (token != null) {
+                request.setAuthToken(token);
+                request.addMarker("token-refreshed");
+            } else {
+                request.addMarker("token-refresh-failed");
+            }
+            mNetworkQueue.add(request);
+        }
+    }
+
+    /**
+     * Sets the maximum number of network workers of an elastic queue. Has no effect on a queue
+     * with a fixed number of network dispatcher threads.
+     */
+    public void setMaxNetworkThreads(int maxThreadPoolSize) {
+        mMaxNetworkThreads = Math.max(1, maxThreadPoolSize);
+        ElasticNetworkDispatcher elasticDispatcher = mElasticDispatcher;
+        if (elasticDispatcher != null) {
+            elasticDispatcher.setMaxWorkers(mMaxNetworkThreads);
+        }
     }
 
     /**
@@ -165,6 +426,16 @@ public class RequestQueue {
                 mDispatchers[i].quit();
             }
         }
+        for (int i = 0; i < mReservedDispatchers.length; i++) {
+            if (mReservedDispatchers[i] != null) {
+                mReservedDispatchers[i].quit();
+            }
+        }
+        if (mElasticDispatcher != null) {
+            mNetworkQueue.setOfferListener(null);
+            mElasticDispatcher.quit();
+            mElasticDispatcher = null;
+        }
     }
 
     /**
@@ -219,6 +490,24 @@ public class RequestQueue {
         });
     }
 
+    /**
+     * Raises the priority of a request already added. A request still waiting for a network
+     * dispatcher moves up the queue, one already sent keeps going and is parsed at its new
+     * priority. A lower priority is ignored.
+     */
+    public void raisePriority(Request<?> request, Request.Priority priority) {
+        if (priority == null || request.getPriority().compareTo(priority) >= 0) {
+            return;
+        }
+        // The queue keeps its order only if the priority isn't changed while it holds the request.
+        boolean queued = mNetworkQueue.remove(request);
+        request.setPriority(priority);
+        if (queued) {
+            request.addMarker("priority-raised");
+            mNetworkQueue.add(request);
+        }
+    }
+
     /**
      * Adds a Request to the dispatch queue.
      * @param request The request to service
@@ -235,6 +524,23 @@ public class RequestQueue {
         request.setSequence(getSequenceNumber());
         request.addMarker("add-to-queue");
 
+        // If an identical request is in flight, share its response. A request doesn't wait
+        // behind one of a lower priority, it goes on its own and later requests wait for it.
+        String coalescingKey = request.getCoalescingKey();
+        request.setQueuedCoalescingKey(coalescingKey);
+        if (coalescingKey != null) {
+            synchronized (mCoalescingRequests) {
+                Request<?> leader = mCoalescingRequests.get(coalescingKey);
+                if (leader != null && !leader.isCanceled()
+                        && leader.getPriority().compareTo(request.getPriority()) >= 0
+                        && leader.addFollower(request)) {
+                    request.addMarker("coalesced-with-in-flight");
+                    return request;
+                }
+                mCoalescingRequests.put(coalescingKey, request);
+            }
+        }
+
         // If the request is uncacheable, skip the cache queue and go straight to the network.
         if (!request.shouldCache()) {
             mNetworkQueue.add(request);
@@ -265,6 +571,26 @@ public class RequestQueue {
         }
     }
 
+    /**
+     * Puts a request back on the network queue once the delay has passed, without holding a
+     * network thread while it waits. The request stays current, so it can still be cancelled.
+     * @param request The request to send again
+     * @param delayMs The time to wait before sending it
+     */
+    void retryLater(final Request<?> request, long delayMs) {
+        mRetryHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCanceled()) {
+                    request.finish("canceled-before-retry");
+                    return;
+                }
+                request.addMarker("retry-after-delay");
+                mNetworkQueue.add(request);
+            }
+        }, delayMs);
+    }
+
     /**
      * Called from {@link Request#finish(String)}, indicating that processing of the given request
      * has finished.
@@ -283,6 +609,25 @@ public class RequestQueue {
           }
         }
 
+        String coalescingKey = request.getQueuedCoalescingKey();
+        if (coalescingKey != null) {
+            List<Request<?>> followers;
+            synchronized (mCoalescingRequests) {
+                if (mCoalescingRequests.get(coalescingKey) == request) {
+                    mCoalescingRequests.remove(coalescingKey);
+                }
+                followers = request.takeFollowers();
+            }
+            // Followers left here got no response, the request was canceled or dropped.
+            for (Request<?> follower : followers) {
+                if (follower.isCanceled()) {
+                    follower.finish("canceled-while-coalesced");
+                } else {
+                    add(follower);
+                }
+            }
+        }
+
         if (request.shouldCache()) {
             synchronized (mWaitingRequests) {
                 String cacheKey = request.getCacheKey();
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http.volley;
+
+/**
+ * Thrown by a {@link Network} when a failed request is to be attempted again after a delay.
+ * The network thread doesn't wait: the request goes back to the network queue once the delay
+ * has passed, see {@link RequestQueue#retryLater(Request, long)}.
+ */
+@SuppressWarnings("serial")
+public class RetryLaterError extends VolleyError {
+    private final long mDelayMs;
+    private final VolleyError mReason;
+
+    /**
+     * @param delayMs Delay before the next attempt in milliseconds
+     * @param reason The failure of the last attempt
+     */
+    public RetryLaterError(long delayMs, VolleyError reason) {
+        super(reason);
+        mDelayMs = delayMs;
+        mReason = reason;
+    }
+
+    /**
+     * Returns the delay before the next attempt in milliseconds.
+     */
+    public long getDelayMs() {
+        return mDelayMs;
+    }
+
+    /**
+     * Returns the failure of the last attempt, delivered if the request can't be retried.
+     */
+    public VolleyError getReason() {
+        return mReason;
+    }
+}
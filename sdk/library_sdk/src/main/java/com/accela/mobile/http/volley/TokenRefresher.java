@@ -0,0 +1,57 @@
+/**
+ * Copyright 2015 Accela, Inc.
+ *
+ * You are hereby granted a non-exclusive, worldwide, royalty-free license to
+ * use, copy, modify, and distribute this software in source code or binary
+ * form for use in connection with the web services and APIs provided by
+ * Accela.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ */
+package com.accela.mobile.http.volley;
+
+/**
+ * Keeps the bearer token of the requests fresh. The {@link RequestQueue} holds back requests
+ * whose token is about to expire or was rejected with a 401, refreshes the token once for all
+ * of them, and sends them again with the new token.
+ */
+public interface TokenRefresher {
+    /**
+     * Callback for the end of a refresh, see {@link TokenRefresher#refresh(String, Listener)}.
+     */
+    interface Listener {
+        /**
+         * Called once the refresh is over, on any thread.
+         *
+         * @param token The new token, or null if it couldn't be refreshed
+         */
+        void onTokenRefreshed(String token);
+    }
+
+    /**
+     * Returns the token requests should carry now, or null if there is none.
+     */
+    String getToken();
+
+    /**
+     * Returns true if the token expires soon enough that it should be refreshed before it is
+     * sent again.
+     */
+    boolean isExpiring(String token);
+
+    /**
+     * Refreshes the token. The queue only runs one refresh at a time and calls this on the main
+     * thread; the listener must be called exactly once.
+     *
+     * @param staleToken The token which expired or was rejected
+     * @param listener Receives the new token
+     */
+    void refresh(String staleToken, Listener listener);
+}
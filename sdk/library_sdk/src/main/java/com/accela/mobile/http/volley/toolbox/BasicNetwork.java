@@ -19,8 +19,11 @@ package com.accela.mobile.http.volley.toolbox;
 import android.os.SystemClock;
 
 import com.accela.mobile.http.volley.AuthFailureError;
+import com.accela.mobile.http.volley.BackoffRetryPolicy;
 import com.accela.mobile.http.volley.Cache;
 import com.accela.mobile.http.volley.Cache.Entry;
+import com.accela.mobile.http.volley.DeadlineExceededError;
+import com.accela.mobile.http.volley.Legacy.DateUtils;
 import com.accela.mobile.http.volley.Legacy.Header;
 import com.accela.mobile.http.volley.Legacy.HttpEntity;
 import com.accela.mobile.http.volley.Legacy.HttpResponse;
@@ -30,7 +33,9 @@ import com.accela.mobile.http.volley.Network;
 import com.accela.mobile.http.volley.NetworkError;
 import com.accela.mobile.http.volley.NetworkResponse;
 import com.accela.mobile.http.volley.NoConnectionError;
+import com.accela.mobile.http.volley.PooledBuffer;
 import com.accela.mobile.http.volley.Request;
+import com.accela.mobile.http.volley.RetryLaterError;
 import com.accela.mobile.http.volley.RetryPolicy;
 import com.accela.mobile.http.volley.ServerError;
 import com.accela.mobile.http.volley.TimeoutError;
@@ -41,13 +46,14 @@ import com.accela.mobile.http.volley.VolleyLog;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
-import java.text.SimpleDateFormat;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 
 /**
@@ -58,7 +64,13 @@ public class BasicNetwork implements Network {
 
     private static int SLOW_REQUEST_THRESHOLD_MS = 3000;
 
-    private static int DEFAULT_POOL_SIZE = 4096;
+    private static int DEFAULT_POOL_SIZE = 256 * 1024;
+
+    /** Too Many Requests, not defined by {@link HttpStatus}. */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /** Spreads the retries of clients told to come back at the same time. */
+    private static final Random sJitter = new Random();
 
     protected final HttpStack mHttpStack;
 
@@ -68,8 +80,8 @@ public class BasicNetwork implements Network {
      * @param httpStack HTTP stack to be used
      */
     public BasicNetwork(HttpStack httpStack) {
-        // If a pool isn't passed in, then build a small default pool that will give us a lot of
-        // benefit and not use too much memory.
+        // If a pool isn't passed in, then build a default pool large enough to hold the bodies
+        // of a few responses landing at once.
         this(httpStack, new ByteArrayPool(DEFAULT_POOL_SIZE));
     }
 
@@ -89,6 +101,11 @@ public class BasicNetwork implements Network {
             HttpResponse httpResponse = null;
             byte[] responseContents = null;
             Map<String, String> responseHeaders = Collections.emptyMap();
+            if (request.isPastDeadline()) {
+                // Waited too long in the queue, or retried until the deadline.
+                request.addMarker("deadline-exceeded");
+                throw new DeadlineExceededError();
+            }
             try {
                 // Gather headers.
                 Map<String, String> headers = new HashMap<String, String>();
@@ -118,6 +135,31 @@ public class BasicNetwork implements Network {
                             SystemClock.elapsedRealtime() - requestStart);
                 }
 
+                // Streaming requests consume a successful body as it arrives.
+                if (request.isStreamingResponse() && statusCode >= 200 && statusCode <= 299
+                        && httpResponse.getEntity() != null) {
+                    InputStream in = httpResponse.getEntity().getContent();
+                    try {
+                        responseContents = request.parseNetworkResponseStream(in, responseHeaders);
+                    } finally {
+                        if (in != null) {
+                            in.close();
+                        }
+                    }
+                    return new NetworkResponse(statusCode, responseContents, responseHeaders, false,
+                            SystemClock.elapsedRealtime() - requestStart);
+                }
+
+                // Successful bodies which won't be cached stay in their pooled buffer.
+                if (request.acceptsPooledResponse() && !request.shouldCache()
+                        && statusCode >= 200 && statusCode <= 299
+                        && httpResponse.getEntity() != null) {
+                    PooledBuffer body = entityToPooledBuffer(httpResponse.getEntity());
+                    long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+                    logSlowRequests(requestLifetime, request, body.getLength(), statusLine);
+                    return new NetworkResponse(statusCode, body, responseHeaders, requestLifetime);
+                }
+
                 // Some responses such as 204s do not have content.  We must check.
                 if (httpResponse.getEntity() != null) {
                   responseContents = entityToBytes(httpResponse.getEntity());
@@ -129,7 +171,7 @@ public class BasicNetwork implements Network {
 
                 // if the request is slow, log it.
                 long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
-                logSlowRequests(requestLifetime, request, responseContents, statusLine);
+                logSlowRequests(requestLifetime, request, responseContents.length, statusLine);
 
                 if (statusCode < 200 || statusCode > 299) {
                     throw new IOException();
@@ -137,9 +179,12 @@ public class BasicNetwork implements Network {
                 return new NetworkResponse(statusCode, responseContents, responseHeaders, false,
                         SystemClock.elapsedRealtime() - requestStart);
             } catch (SocketTimeoutException e) {
-                attemptRetryOnException("socket", request, new TimeoutError());
+                attemptRetryOnTimeout("socket", request);
             } catch (InterruptedIOException e) {
-                attemptRetryOnException("connection", request, new TimeoutError());
+                attemptRetryOnTimeout("connection", request);
+            } catch (ConnectException e) {
+                // The server never saw the request, so it is safe to send again whatever its method.
+                attemptRetryOnException("connect", request, new NoConnectionError(e), 0);
             } catch (MalformedURLException e) {
                 throw new RuntimeException("Bad URL " + request.getUrl(), e);
             } catch (IOException e) {
@@ -154,10 +199,16 @@ public class BasicNetwork implements Network {
                 if (responseContents != null) {
                     networkResponse = new NetworkResponse(statusCode, responseContents,
                             responseHeaders, false, SystemClock.elapsedRealtime() - requestStart);
-                    if (statusCode == HttpStatus.SC_UNAUTHORIZED ||
+                    if (statusCode == HttpStatus.SC_UNAUTHORIZED && request.getAuthToken() != null) {
+                        // Sending the same token again is pointless, the queue refreshes it.
+                        throw new AuthFailureError(networkResponse);
+                    } else if (statusCode == HttpStatus.SC_UNAUTHORIZED ||
                             statusCode == HttpStatus.SC_FORBIDDEN) {
                         attemptRetryOnException("auth",
-                                request, new AuthFailureError(networkResponse));
+                                request, new AuthFailureError(networkResponse), 0);
+                    } else if (isRetryableStatus(statusCode, request)) {
+                        attemptRetryOnException("server", request,
+                                new ServerError(networkResponse), parseRetryAfter(responseHeaders));
                     } else {
                         // TODO: Only throw ServerError for 5xx status codes.
                         throw new ServerError(networkResponse);
@@ -173,25 +224,83 @@ public class BasicNetwork implements Network {
      * Logs requests that took over SLOW_REQUEST_THRESHOLD_MS to complete.
      */
     private void logSlowRequests(long requestLifetime, Request<?> request,
-            byte[] responseContents, StatusLine statusLine) {
+            int responseLength, StatusLine statusLine) {
         if (DEBUG || requestLifetime > SLOW_REQUEST_THRESHOLD_MS) {
             VolleyLog.d("HTTP response for request=<%s> [lifetime=%d], [size=%s], " +
                     "[rc=%d], [retryCount=%s]", request, requestLifetime,
-                    responseContents != null ? responseContents.length : "null",
+                    responseLength,
                     statusLine.getStatusCode(), request.getRetryPolicy().getCurrentRetryCount());
         }
     }
 
+    /**
+     * Retries a request which timed out, unless the server may have processed it already and
+     * sending it again could repeat its effect.
+     */
+    private static void attemptRetryOnTimeout(String logPrefix, Request<?> request)
+            throws VolleyError {
+        if (!request.isIdempotent()) {
+            request.addMarker(String.format("%s-timeout-not-idempotent", logPrefix));
+            throw new TimeoutError();
+        }
+        attemptRetryOnException(logPrefix, request, new TimeoutError(), 0);
+    }
+
+    /**
+     * Returns true if a response with the given error status is worth retrying. The server
+     * refused 429 and 503 responses without processing them, the other transient failures are
+     * only retried for idempotent requests.
+     */
+    private static boolean isRetryableStatus(int statusCode, Request<?> request) {
+        switch (statusCode) {
+            case SC_TOO_MANY_REQUESTS:
+            case HttpStatus.SC_SERVICE_UNAVAILABLE:
+                return true;
+            case HttpStatus.SC_REQUEST_TIMEOUT:
+            case HttpStatus.SC_BAD_GATEWAY:
+            case HttpStatus.SC_GATEWAY_TIMEOUT:
+                return request.isIdempotent();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the delay asked for by the Retry-After header, in seconds or as an HTTP date, or 0.
+     */
+    private static long parseRetryAfter(Map<String, String> headers) {
+        String retryAfter = headers.get("Retry-After");
+        if (retryAfter == null) {
+            return 0;
+        }
+        retryAfter = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(retryAfter) * 1000);
+        } catch (NumberFormatException e) {
+            long retryAt = HttpHeaderParser.parseDateAsEpoch(retryAfter);
+            return (retryAt > 0) ? Math.max(0, retryAt - System.currentTimeMillis()) : 0;
+        }
+    }
+
     /**
      * Attempts to prepare the request for a retry. If there are no more attempts remaining in the
-     * request's retry policy, a timeout exception is thrown.
+     * request's retry policy, a timeout exception is thrown. If the next attempt has to wait, a
+     * {@link RetryLaterError} is thrown so the request is queued again once the delay has passed.
      * @param request The request to use.
+     * @param retryAfterMs The delay asked for by the server, or 0.
      */
     private static void attemptRetryOnException(String logPrefix, Request<?> request,
-            VolleyError exception) throws VolleyError {
+            VolleyError exception, long retryAfterMs) throws VolleyError {
         RetryPolicy retryPolicy = request.getRetryPolicy();
         int oldTimeout = request.getTimeoutMs();
 
+        if (request.isPastDeadline()) {
+            request.addMarker(
+                    String.format("%s-deadline-giveup [timeout=%s]", logPrefix, oldTimeout));
+            DeadlineExceededError deadlineError = new DeadlineExceededError();
+            deadlineError.initCause(exception);
+            throw deadlineError;
+        }
         try {
             retryPolicy.retry(exception);
         } catch (VolleyError e) {
@@ -199,7 +308,32 @@ public class BasicNetwork implements Network {
                     String.format("%s-timeout-giveup [timeout=%s]", logPrefix, oldTimeout));
             throw e;
         }
-        request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
+        long delayMs = 0;
+        if (retryAfterMs > 0) {
+            delayMs = retryAfterMs + nextJitter(retryAfterMs / 10);
+        }
+        if (retryPolicy instanceof BackoffRetryPolicy) {
+            delayMs = Math.max(delayMs, ((BackoffRetryPolicy) retryPolicy).getRetryDelayMs());
+        }
+        long deadline = request.getDeadline();
+        if (deadline > 0 && SystemClock.elapsedRealtime() + delayMs >= deadline) {
+            request.addMarker(String.format("%s-deadline-giveup [delay=%s]", logPrefix, delayMs));
+            DeadlineExceededError deadlineError = new DeadlineExceededError();
+            deadlineError.initCause(exception);
+            throw deadlineError;
+        }
+        request.addMarker(String.format("%s-retry [timeout=%s] [delay=%s]", logPrefix, oldTimeout,
+                delayMs));
+        if (delayMs > 0) {
+            throw new RetryLaterError(delayMs, exception);
+        }
+    }
+
+    private static long nextJitter(long boundMs) {
+        if (boundMs <= 0) {
+            return 0;
+        }
+        return (long) (sJitter.nextDouble() * boundMs);
     }
 
     private void addCacheHeaders(Map<String, String> headers, Cache.Entry entry) {
@@ -214,7 +348,7 @@ public class BasicNetwork implements Network {
 
         if (entry.lastModified > 0) {
             Date refTime = new Date(entry.lastModified);
-            headers.put("If-Modified-Since", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S").format(refTime));
+            headers.put("If-Modified-Since", DateUtils.formatDate(refTime));
         }
     }
 
@@ -227,18 +361,39 @@ public class BasicNetwork implements Network {
     private byte[] entityToBytes(HttpEntity entity) throws IOException, ServerError {
         PoolingByteArrayOutputStream bytes =
                 new PoolingByteArrayOutputStream(mPool, (int) entity.getContentLength());
+        try {
+            readEntity(entity, bytes);
+            return bytes.toByteArray();
+        } finally {
+            bytes.close();
+        }
+    }
+
+    /** Reads the contents of HttpEntity into a pooled buffer, without a final copy. */
+    private PooledBuffer entityToPooledBuffer(HttpEntity entity) throws IOException, ServerError {
+        PoolingByteArrayOutputStream bytes =
+                new PoolingByteArrayOutputStream(mPool, (int) entity.getContentLength());
+        try {
+            readEntity(entity, bytes);
+            return bytes.detachBuffer();
+        } finally {
+            bytes.close();
+        }
+    }
+
+    private void readEntity(HttpEntity entity, PoolingByteArrayOutputStream bytes)
+            throws IOException, ServerError {
         byte[] buffer = null;
         try {
             InputStream in = entity.getContent();
             if (in == null) {
                 throw new ServerError();
             }
-            buffer = mPool.getBuf(1024);
+            buffer = mPool.getBuf(4096);
             int count;
             while ((count = in.read(buffer)) != -1) {
                 bytes.write(buffer, 0, count);
             }
-            return bytes.toByteArray();
         } finally {
             try {
                 // Close the InputStream and release the resources by "consuming the content".
@@ -249,7 +404,6 @@ public class BasicNetwork implements Network {
                 VolleyLog.v("Error occured when calling consumingContent");
             }
             mPool.returnBuf(buffer);
-            bytes.close();
         }
     }
 
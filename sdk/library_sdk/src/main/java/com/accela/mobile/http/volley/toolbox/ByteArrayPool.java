@@ -16,11 +16,9 @@
 
 package com.accela.mobile.http.volley.toolbox;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedList;
-import java.util.List;
+import com.accela.mobile.http.volley.PooledBuffer;
+
+import java.util.ArrayDeque;
 
 /**
  * ByteArrayPool is a source and repository of <code>byte[]</code> objects. Its purpose is to
@@ -39,6 +37,11 @@ import java.util.List;
  * free to return buffers larger than the requested size. The caller needs to be able to gracefully
  * deal with getting buffers any size over the minimum.
  * <p>
+ * Buffers are kept in buckets by size class, the powers of two from {@link #MIN_BUFFER_SIZE} up
+ * to half the size limit, so getting and returning a buffer doesn't depend on the number of
+ * pooled buffers. Buffers handed out for a size class are exactly that size, which lets them be
+ * reused for any request of the same class.
+ * <p>
  * If there is not a suitably-sized buffer in its recycling pool when a buffer is requested, this
  * class will allocate a new buffer and return it.
  * <p>
@@ -49,12 +52,17 @@ import java.util.List;
  * <p>
  * This class ensures that the total size of the buffers in its recycling pool never exceeds a
  * certain byte limit. When a buffer is returned that would cause the pool to exceed the limit,
- * least-recently-used buffers are disposed.
+ * buffers are disposed from the bucket holding the most bytes.
  */
-public class ByteArrayPool {
-    /** The buffer pool, arranged both by last use and by buffer size */
-    private List<byte[]> mBuffersByLastUse = new LinkedList<byte[]>();
-    private List<byte[]> mBuffersBySize = new ArrayList<byte[]>(64);
+public class ByteArrayPool implements PooledBuffer.Recycler {
+    /** Smallest size class, smaller buffers are not pooled. */
+    public static final int MIN_BUFFER_SIZE = 256;
+
+    /** The buffer pool, one bucket per size class, most recently returned buffer last. */
+    private final ArrayDeque<byte[]>[] mBuckets;
+
+    /** The total size of the buffers in each bucket */
+    private final int[] mBucketSizes;
 
     /** The total size of the buffers in the pool */
     private int mCurrentSize = 0;
@@ -65,19 +73,21 @@ public class ByteArrayPool {
      */
     private final int mSizeLimit;
 
-    /** Compares buffers by size */
-    protected static final Comparator<byte[]> BUF_COMPARATOR = new Comparator<byte[]>() {
-        @Override
-        public int compare(byte[] lhs, byte[] rhs) {
-            return lhs.length - rhs.length;
-        }
-    };
-
     /**
      * @param sizeLimit the maximum size of the pool, in bytes
      */
+    @SuppressWarnings("unchecked")
     public ByteArrayPool(int sizeLimit) {
         mSizeLimit = sizeLimit;
+        int classes = 1;
+        while ((MIN_BUFFER_SIZE << classes) <= sizeLimit / 2) {
+            classes++;
+        }
+        mBuckets = new ArrayDeque[classes];
+        for (int i = 0; i < classes; i++) {
+            mBuckets[i] = new ArrayDeque<byte[]>();
+        }
+        mBucketSizes = new int[classes];
     }
 
     /**
@@ -89,13 +99,19 @@ public class ByteArrayPool {
      * @return a byte[] buffer is always returned.
      */
     public synchronized byte[] getBuf(int len) {
-        for (int i = 0; i < mBuffersBySize.size(); i++) {
-            byte[] buf = mBuffersBySize.get(i);
+        int bucket = bucketFor(len);
+        if (bucket < mBuckets.length) {
+            if (!mBuckets[bucket].isEmpty()) {
+                return take(bucket, mBuckets[bucket].pollLast());
+            }
+            return new byte[classSize(bucket)];
+        }
+        // Larger than the largest class, only an oversized buffer of the last bucket can do.
+        int last = mBuckets.length - 1;
+        for (byte[] buf : mBuckets[last]) {
             if (buf.length >= len) {
-                mCurrentSize -= buf.length;
-                mBuffersBySize.remove(i);
-                mBuffersByLastUse.remove(buf);
-                return buf;
+                mBuckets[last].removeFirstOccurrence(buf);
+                return take(last, buf);
             }
         }
         return new byte[len];
@@ -108,28 +124,53 @@ public class ByteArrayPool {
      * @param buf the buffer to return to the pool.
      */
     public synchronized void returnBuf(byte[] buf) {
-        if (buf == null || buf.length > mSizeLimit) {
+        if (buf == null || buf.length < MIN_BUFFER_SIZE || buf.length > mSizeLimit) {
             return;
         }
-        mBuffersByLastUse.add(buf);
-        int pos = Collections.binarySearch(mBuffersBySize, buf, BUF_COMPARATOR);
-        if (pos < 0) {
-            pos = -pos - 1;
-        }
-        mBuffersBySize.add(pos, buf);
+        // A bucket only holds buffers at least as large as its class.
+        int bucket = Math.min(bucketFor(buf.length + 1) - 1, mBuckets.length - 1);
+        mBuckets[bucket].addLast(buf);
+        mBucketSizes[bucket] += buf.length;
         mCurrentSize += buf.length;
         trim();
     }
 
+    @Override
+    public void recycle(byte[] buf) {
+        returnBuf(buf);
+    }
+
+    private byte[] take(int bucket, byte[] buf) {
+        mBucketSizes[bucket] -= buf.length;
+        mCurrentSize -= buf.length;
+        return buf;
+    }
+
     /**
-     * Removes buffers from the pool until it is under its size limit.
+     * Removes the oldest buffers of the fullest bucket until the pool is under its size limit.
      */
-    private synchronized void trim() {
+    private void trim() {
         while (mCurrentSize > mSizeLimit) {
-            byte[] buf = mBuffersByLastUse.remove(0);
-            mBuffersBySize.remove(buf);
-            mCurrentSize -= buf.length;
+            int fullest = 0;
+            for (int i = 1; i < mBucketSizes.length; i++) {
+                if (mBucketSizes[i] > mBucketSizes[fullest]) {
+                    fullest = i;
+                }
+            }
+            take(fullest, mBuckets[fullest].pollFirst());
         }
     }
 
+    /** Returns the bucket of the smallest size class holding len bytes, past the last bucket if none. */
+    private int bucketFor(int len) {
+        int bucket = 0;
+        while (bucket < mBuckets.length && classSize(bucket) < len) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private static int classSize(int bucket) {
+        return MIN_BUFFER_SIZE << bucket;
+    }
 }
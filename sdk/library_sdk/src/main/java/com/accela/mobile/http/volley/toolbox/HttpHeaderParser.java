@@ -34,8 +34,13 @@ public class HttpHeaderParser {
      *
      * @param response The network response to parse headers from
      * @return a cache entry for the given response, or null if the response is not cacheable.
+     *         Responses whose body is held in a pooled buffer are never cached, they have no entry.
      */
     public static Cache.Entry parseCacheHeaders(NetworkResponse response) {
+        // The pooled buffer is released once the response is parsed, an entry can't keep it.
+        if (response.data == null) {
+            return null;
+        }
         long now = System.currentTimeMillis();
 
         Map<String, String> headers = response.headers;
@@ -49,6 +54,7 @@ public class HttpHeaderParser {
         long staleWhileRevalidate = 0;
         boolean hasCacheControl = false;
         boolean mustRevalidate = false;
+        boolean noCache = false;
 
         String serverEtag = null;
         String headerValue;
@@ -64,8 +70,11 @@ public class HttpHeaderParser {
             String[] tokens = headerValue.split(",");
             for (int i = 0; i < tokens.length; i++) {
                 String token = tokens[i].trim();
-                if (token.equals("no-cache") || token.equals("no-store")) {
+                if (token.equals("no-store")) {
                     return null;
+                } else if (token.equals("no-cache")) {
+                    // Storable, but it has to be revalidated with the server before every use.
+                    noCache = true;
                 } else if (token.startsWith("max-age=")) {
                     try {
                         maxAge = Long.parseLong(token.substring(8));
@@ -94,9 +103,17 @@ public class HttpHeaderParser {
 
         serverEtag = headers.get("ETag");
 
+        // A no-cache response is only worth keeping for its validators.
+        if (noCache && serverEtag == null && lastModified == 0) {
+            return null;
+        }
+
         // Cache-Control takes precedence over an Expires header, even if both exist and Expires
         // is more restrictive.
-        if (hasCacheControl) {
+        if (noCache) {
+            softExpire = 0;
+            finalExpire = 0;
+        } else if (hasCacheControl) {
             softExpire = now + maxAge * 1000;
             finalExpire = mustRevalidate
                     ? softExpire
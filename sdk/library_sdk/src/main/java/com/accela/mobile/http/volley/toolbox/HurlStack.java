@@ -37,10 +37,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
@@ -51,6 +51,8 @@ import javax.net.ssl.SSLSocketFactory;
 public class HurlStack implements HttpStack {
 
     private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
 
     /**
      * An interface for transforming URLs before use.
@@ -90,9 +92,7 @@ public class HurlStack implements HttpStack {
     public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
             throws IOException, AuthFailureError {
         String url = request.getUrl();
-        HashMap<String, String> map = new HashMap<String, String>();
-        map.putAll(request.getHeaders());
-        map.putAll(additionalHeaders);
+        Map<String, String> requestHeaders = request.getHeaders();
         if (mUrlRewriter != null) {
             String rewritten = mUrlRewriter.rewriteUrl(url);
             if (rewritten == null) {
@@ -102,8 +102,22 @@ public class HurlStack implements HttpStack {
         }
         URL parsedUrl = new URL(url);
         HttpURLConnection connection = openConnection(parsedUrl, request);
-        for (String headerName : map.keySet()) {
-            connection.addRequestProperty(headerName, map.get(headerName));
+        // The headers go straight to the connection, the additional ones win over the request's.
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                if (!additionalHeaders.containsKey(header.getKey())) {
+                    connection.addRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+        }
+        for (Map.Entry<String, String> header : additionalHeaders.entrySet()) {
+            connection.addRequestProperty(header.getKey(), header.getValue());
+        }
+        // Setting Accept-Encoding ourselves turns off the transparent gzip of HttpURLConnection,
+        // the response is decompressed in entityFromConnection instead.
+        if ((requestHeaders == null || !requestHeaders.containsKey(HEADER_ACCEPT_ENCODING))
+                && !additionalHeaders.containsKey(HEADER_ACCEPT_ENCODING)) {
+            connection.addRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
         }
         setConnectionParametersForRequest(connection, request);
         // Initialize HttpResponse with data from the HttpURLConnection.
@@ -148,7 +162,7 @@ public class HurlStack implements HttpStack {
      * @param connection
      * @return an HttpEntity populated with data from <code>connection</code>.
      */
-    private static HttpEntity entityFromConnection(HttpURLConnection connection) {
+    private static HttpEntity entityFromConnection(HttpURLConnection connection) throws IOException {
         BasicHttpEntity entity = new BasicHttpEntity();
         InputStream inputStream;
         try {
@@ -156,9 +170,17 @@ public class HurlStack implements HttpStack {
         } catch (IOException ioe) {
             inputStream = connection.getErrorStream();
         }
+        String contentEncoding = connection.getContentEncoding();
+        int contentLength = connection.getContentLength();
+        if (inputStream != null && contentLength != 0 && ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+            // Decompress while the body is read, the size of the decoded content isn't known up front.
+            inputStream = new GZIPInputStream(inputStream);
+            contentEncoding = null;
+            contentLength = -1;
+        }
         entity.setContent(inputStream);
-        entity.setContentLength(connection.getContentLength());
-        entity.setContentEncoding(connection.getContentEncoding());
+        entity.setContentLength(contentLength);
+        entity.setContentEncoding(contentEncoding);
         entity.setContentType(connection.getContentType());
         return entity;
     }
@@ -74,6 +74,7 @@ public class ImageRequest extends Request<Bitmap> {
         super(Method.GET, url, errorListener); 
         setRetryPolicy(
                 new DefaultRetryPolicy(IMAGE_TIMEOUT_MS, IMAGE_MAX_RETRIES, IMAGE_BACKOFF_MULT));
+        setPriority(Priority.LOW);
         mListener = listener;
         mDecodeConfig = decodeConfig;
         mMaxWidth = maxWidth;
@@ -91,11 +92,6 @@ public class ImageRequest extends Request<Bitmap> {
         this(url, listener, maxWidth, maxHeight,
                 ScaleType.CENTER_INSIDE, decodeConfig, errorListener);
     }
-    @Override
-    public Priority getPriority() {
-        return Priority.LOW;
-    }
-
     /**
      * Scales one side of a rectangle to fit aspect ratio.
      *
@@ -16,6 +16,8 @@
 
 package com.accela.mobile.http.volley.toolbox;
 
+import com.accela.mobile.http.volley.PooledBuffer;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
@@ -65,6 +67,17 @@ public class PoolingByteArrayOutputStream extends ByteArrayOutputStream {
         mPool.returnBuf(buf);
     }
 
+    /**
+     * Hands the written bytes over without copying them. The stream can't be written to
+     * afterwards; the buffer goes back to the pool once it is released.
+     */
+    public synchronized PooledBuffer detachBuffer() {
+        PooledBuffer detached = new PooledBuffer(buf, count, mPool);
+        buf = null;
+        count = 0;
+        return detached;
+    }
+
     /**
      * Ensures there is enough space in the buffer for the given number of additional bytes.
      */